@@ -0,0 +1,56 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+/**
+ * 一つのベンチマークです.
+ * <br>
+ * setUpで計測に使う状態を作り、invokeが一回の操作として繰り返し呼び出されます。<br>
+ * invokeの戻り値はJITに捨てられないようにBenchmarkRunnerが消費します。<br>
+ *
+ * @author desktopgame
+ */
+public abstract class BenchmarkCase {
+
+    private final String name;
+
+    protected BenchmarkCase(String name) {
+        this.name = name;
+    }
+
+    /**
+     * ベンチマークの名前を返します.
+     *
+     * @return
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 計測の前に一度だけ呼び出されます.
+     *
+     * @throws Exception
+     */
+    protected void setUp() throws Exception {
+    }
+
+    /**
+     * 計測する操作を一回行います.
+     *
+     * @return 消費させる値
+     */
+    protected abstract Object invoke();
+
+    /**
+     * 計測の後に一度だけ呼び出されます.
+     */
+    protected void tearDown() {
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * JMHの平均時間モードに倣ってBenchmarkCaseを計測するクラスです.
+ * <br>
+ * ウォームアップの反復で結果を捨てた後、計測の反復ごとに一回あたりの平均時間を求め、<br>
+ * 反復の間の平均と99.9%の信頼区間の半分を誤差として表示します。<br>
+ * 時刻の取得を減らすため、一回の操作にかかる時間からまとめて呼び出す回数を決めます。<br>
+ *
+ * @author desktopgame
+ */
+public class BenchmarkRunner {
+
+    private int warmupIterations;
+    private int measurementIterations;
+    private long iterationNanos;
+    private PrintStream out;
+    private static volatile Object sink;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis, PrintStream out) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000L;
+        this.out = out;
+    }
+
+    /**
+     * 名前がパターンに一致するベンチマークを順に計測し、結果を表にして出力します.
+     *
+     * @param cases
+     * @param filter
+     * @throws Exception
+     */
+    public void runAll(List<BenchmarkCase> cases, Pattern filter) throws Exception {
+        int width = 10;
+        for (BenchmarkCase c : cases) {
+            width = Math.max(width, c.getName().length());
+        }
+        out.println(String.format("%-" + width + "s  %4s  %12s  %11s  %s", "Benchmark", "Cnt", "Score", "Error", "Units"));
+        for (BenchmarkCase c : cases) {
+            if (!filter.matcher(c.getName()).find()) {
+                continue;
+            }
+            Result r = run(c);
+            out.println(String.format("%-" + width + "s  %4d  %12.3f  +- %8.3f  %s", c.getName(), r.count, r.score, r.error, "us/op"));
+        }
+    }
+
+    /**
+     * 一つのベンチマークを計測します.
+     *
+     * @param c
+     * @return
+     * @throws Exception
+     */
+    public Result run(BenchmarkCase c) throws Exception {
+        c.setUp();
+        try {
+            int batch = calibrate(c);
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration(c, batch);
+            }
+            double[] scores = new double[measurementIterations];
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iteration(c, batch) / 1000.0;
+            }
+            return new Result(scores);
+        } finally {
+            c.tearDown();
+        }
+    }
+
+    private int calibrate(BenchmarkCase c) {
+        // 1ミリ秒ほどかかる回数をまとめて呼び出す
+        long start = System.nanoTime();
+        sink = c.invoke();
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        return (int) Math.max(1, Math.min(1_000_000, 1_000_000L / elapsed));
+    }
+
+    private double iteration(BenchmarkCase c, int batch) {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink = c.invoke();
+            }
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return (double) elapsed / ops;
+    }
+
+    /**
+     * 計測の結果です. 単位はマイクロ秒です。
+     */
+    public static final class Result {
+
+        public final int count;
+        public final double score;
+        public final double error;
+
+        Result(double[] scores) {
+            this.count = scores.length;
+            double sum = 0;
+            for (double s : scores) {
+                sum += s;
+            }
+            this.score = sum / count;
+            double var = 0;
+            for (double s : scores) {
+                var += (s - score) * (s - score);
+            }
+            double sd = count > 1 ? Math.sqrt(var / (count - 1)) : 0;
+            // 反復の数に対するt分布の代わりに、99.9%の正規分布の値を使う
+            this.error = 3.291 * sd / Math.sqrt(count);
+        }
+    }
+}
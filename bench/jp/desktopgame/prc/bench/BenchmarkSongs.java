@@ -0,0 +1,56 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import jp.desktopgame.prc.PianoRollModel;
+import jp.desktopgame.prc.SongGenerator;
+
+/**
+ * ベンチマークに使う曲を作るクラスです. 同じ引数からは常に同じ曲が作られます。
+ *
+ * @author desktopgame
+ */
+public class BenchmarkSongs {
+
+    public static final int KEY_COUNT = 128;
+    public static final int BEAT_COUNT = 4;
+    public static final long SEED = 0x5052434L;
+
+    private BenchmarkSongs() {
+    }
+
+    /**
+     * 指定の数のノートに対して、一小節あたりおよそ100個になる小節の数を返します.
+     *
+     * @param noteCount
+     * @return
+     */
+    public static int measureCountFor(int noteCount) {
+        return Math.max(4, noteCount / 100);
+    }
+
+    /**
+     * モデルにおよそ指定の数のノートを書き込みます.
+     *
+     * @param model
+     * @param noteCount
+     * @param beatWidth ノートのオフセットの計算に使う拍の横幅
+     * @param selectedRatio 選択状態にするノートの割合
+     * @return 書き込んだノートの数
+     */
+    public static int fill(PianoRollModel model, int noteCount, int beatWidth, double selectedRatio) {
+        SongGenerator gen = new SongGenerator(SEED);
+        gen.setMeasureCount(model.getKey(0).getMeasureCount());
+        // 和音は平均で二音なので、一拍あたりの和音の数はノートの数の1/2になる
+        gen.setChordSize(1, 3);
+        gen.setDensity((float) noteCount / gen.getMeasureCount() / BEAT_COUNT / 2f);
+        gen.setSelectionRatio(selectedRatio);
+        return gen.generate(model, beatWidth);
+    }
+}
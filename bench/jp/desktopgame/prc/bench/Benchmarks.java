@@ -0,0 +1,53 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 全てのベンチマークを実行するメインクラスです.
+ * <br>
+ * 使い方: java -Djava.awt.headless=true jp.desktopgame.prc.bench.Benchmarks [-wi 回数] [-i 回数] [-t ミリ秒] [正規表現]<br>
+ * ウォームアップと計測の反復の回数, 一回の反復の時間, 実行するベンチマークの名前を指定できます。<br>
+ * ant bench でも実行でき、引数は -Dbench.args で渡します。<br>
+ * 性能に関わる変更の前後で実行し、bench/baseline.txt の値と比べてください。<br>
+ *
+ * @author desktopgame
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        int warmup = 3;
+        int iterations = 5;
+        long millis = 200;
+        Pattern filter = Pattern.compile("");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    millis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    filter = Pattern.compile(args[i]);
+                    break;
+            }
+        }
+        List<BenchmarkCase> cases = new ArrayList<>();
+        cases.addAll(ModelBenchmarks.cases());
+        cases.addAll(UIBenchmarks.cases());
+        new BenchmarkRunner(warmup, iterations, millis, System.out).runAll(cases, filter);
+    }
+}
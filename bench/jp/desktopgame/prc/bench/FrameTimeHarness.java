@@ -0,0 +1,322 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.JScrollPane;
+import javax.swing.JViewport;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.NoteDragManager;
+import jp.desktopgame.prc.PianoRoll;
+import jp.desktopgame.prc.PianoRollEditorPane;
+import jp.desktopgame.prc.PianoRollLayerUI;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * エディタのペインを画面に出さずに描画して、一フレームあたりの時間を計測するメインクラスです.
+ * <br>
+ * BasicPianoRollUI, BasicKeyboardUI, BasicRulerUI, PianoRollLayerUIを組み込んだPianoRollEditorPaneに対して、<br>
+ * スクロール, ズーム, ノートのドラッグ, 再生位置の移動を決まった手順で行い、その都度ペイン全体をBufferedImageに描画します。<br>
+ * 一フレームの時間は操作と描画の合計です。<br>
+ * どれかの曲と手順でp99が閾値を超えた場合は終了コード1で終了します。<br>
+ * 使い方: java -Djava.awt.headless=true jp.desktopgame.prc.bench.FrameTimeHarness [-frames 数] [-p99 ミリ秒] [-notes 数,数...]<br>
+ * ant frametime でも実行でき、引数は -Dframetime.args で渡します。<br>
+ *
+ * @author desktopgame
+ */
+public class FrameTimeHarness {
+
+    public static final int WIDTH = 1600;
+    public static final int HEIGHT = 800;
+
+    private int frames;
+    private double p99Limit;
+    private PrintStream out;
+    private PianoRollEditorPane pane;
+    private BufferedImage image;
+
+    private interface Script {
+
+        String getName();
+
+        void setUp(FrameTimeHarness h);
+
+        void step(FrameTimeHarness h, int frame);
+
+        default void tearDown(FrameTimeHarness h) {
+        }
+    }
+
+    public FrameTimeHarness(int frames, double p99Limit, PrintStream out) {
+        this.frames = frames;
+        this.p99Limit = p99Limit;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int frames = 240;
+        double p99 = 50;
+        int[] notes = {10_000, 100_000};
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-frames":
+                    frames = Integer.parseInt(args[++i]);
+                    break;
+                case "-p99":
+                    p99 = Double.parseDouble(args[++i]);
+                    break;
+                case "-notes":
+                    notes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + args[i]);
+            }
+        }
+        FrameTimeHarness h = new FrameTimeHarness(frames, p99, System.out);
+        int[] n = notes;
+        boolean[] passed = new boolean[1];
+        SwingUtilities.invokeAndWait(() -> passed[0] = h.runAll(n));
+        System.exit(passed[0] ? 0 : 1);
+    }
+
+    /**
+     * 全ての曲と手順を実行して結果を出力します.
+     *
+     * @param noteCounts 曲のノートの数
+     * @return 全てのp99が閾値以下ならtrue
+     */
+    public boolean runAll(int[] noteCounts) {
+        RepaintManager.currentManager(null).setDoubleBufferingEnabled(false);
+        this.image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        List<Script> scripts = Arrays.asList(new Scroll(), new Zoom(), new Drag(), new Playback());
+        List<String> failures = new ArrayList<>();
+        out.println(String.format("%-16s  %6s  %8s  %8s  %8s  %8s  (ms)", "Fixture", "Frames", "p50", "p90", "p99", "max"));
+        for (int noteCount : noteCounts) {
+            for (Script script : scripts) {
+                String name = script.getName() + "." + noteCount;
+                setUpPane(noteCount);
+                // 一度目はJITのウォームアップとして捨てる
+                run(script);
+                setUpPane(noteCount);
+                long[] times = run(script);
+                Arrays.sort(times);
+                double p99 = percentile(times, 0.99);
+                out.println(String.format("%-16s  %6d  %8.2f  %8.2f  %8.2f  %8.2f%s", name, times.length,
+                        percentile(times, 0.5), percentile(times, 0.9), p99, times[times.length - 1] / 1e6,
+                        p99 > p99Limit ? "  FAIL" : ""));
+                if (p99 > p99Limit) {
+                    failures.add(name);
+                }
+            }
+        }
+        if (!failures.isEmpty()) {
+            out.println("p99 exceeded " + p99Limit + "ms: " + String.join(", ", failures));
+        }
+        return failures.isEmpty();
+    }
+
+    private void setUpPane(int noteCount) {
+        // 前の曲のゴミを計測中に回収しないように、ここで片付けておく
+        this.pane = null;
+        System.gc();
+        PianoRollModel model = new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, BenchmarkSongs.measureCountFor(noteCount), BenchmarkSongs.BEAT_COUNT);
+        BenchmarkSongs.fill(model, noteCount, 96, 0);
+        this.pane = new PianoRollEditorPane();
+        pane.getPianoRoll().setModel(model);
+        pane.setSize(WIDTH, HEIGHT);
+        layout();
+    }
+
+    private long[] run(Script script) {
+        script.setUp(this);
+        layout();
+        render();
+        long[] times = new long[frames];
+        for (int i = 0; i < frames; i++) {
+            long start = System.nanoTime();
+            script.step(this, i);
+            layout();
+            render();
+            times[i] = System.nanoTime() - start;
+        }
+        script.tearDown(this);
+        return times;
+    }
+
+    private void layout() {
+        layout(pane);
+    }
+
+    private static void layout(Container c) {
+        c.doLayout();
+        for (int i = 0; i < c.getComponentCount(); i++) {
+            if (c.getComponent(i) instanceof Container) {
+                layout((Container) c.getComponent(i));
+            }
+        }
+    }
+
+    private void render() {
+        Graphics2D g = image.createGraphics();
+        try {
+            pane.paint(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+
+    PianoRoll getPianoRoll() {
+        return pane.getPianoRoll();
+    }
+
+    JViewport getViewport() {
+        return ((JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, pane.getPianoRoll())).getViewport();
+    }
+
+    void scrollTo(int x, int y) {
+        JViewport vp = getViewport();
+        int maxX = Math.max(0, vp.getViewSize().width - vp.getExtentSize().width);
+        int maxY = Math.max(0, vp.getViewSize().height - vp.getExtentSize().height);
+        vp.setViewPosition(new Point(Math.max(0, Math.min(maxX, x)), Math.max(0, Math.min(maxY, y))));
+    }
+
+    /**
+     * 曲の先頭から右へ一定の速さでスクロールします.
+     */
+    private static class Scroll implements Script {
+
+        @Override
+        public String getName() {
+            return "scroll";
+        }
+
+        @Override
+        public void setUp(FrameTimeHarness h) {
+            h.scrollTo(0, 300);
+        }
+
+        @Override
+        public void step(FrameTimeHarness h, int frame) {
+            h.scrollTo(frame * 48, 300 + (frame % 32) * 4);
+        }
+    }
+
+    /**
+     * 拍の横幅を96から2まで縮めて、また広げます.
+     */
+    private static class Zoom implements Script {
+
+        private static final int[] WIDTHS = {96, 80, 64, 48, 32, 24, 16, 12, 8, 6, 4, 3, 2, 3, 4, 6, 8, 12, 16, 24, 32, 48, 64, 80};
+
+        @Override
+        public String getName() {
+            return "zoom";
+        }
+
+        @Override
+        public void setUp(FrameTimeHarness h) {
+            h.scrollTo(0, 300);
+        }
+
+        @Override
+        public void step(FrameTimeHarness h, int frame) {
+            h.getPianoRoll().setBeatWidth(WIDTHS[frame % WIDTHS.length]);
+        }
+
+        @Override
+        public void tearDown(FrameTimeHarness h) {
+            h.getPianoRoll().setBeatWidth(96);
+        }
+    }
+
+    /**
+     * 画面内のノートをNoteDragManagerで掴んで、往復させます.
+     */
+    private static class Drag implements Script {
+
+        private int baseX;
+        private int baseY;
+
+        @Override
+        public String getName() {
+            return "drag";
+        }
+
+        @Override
+        public void setUp(FrameTimeHarness h) {
+            h.scrollTo(4800, 300);
+            PianoRoll p = h.getPianoRoll();
+            JViewport vp = h.getViewport();
+            Point pos = vp.getViewPosition();
+            List<Note> targets = p.getUI().getNotesIn(new Rectangle(pos.x + 200, pos.y + 100, 400, 200));
+            NoteDragManager dm = p.getUI().getNoteDragManager();
+            dm.clear();
+            dm.touch(targets);
+            targets.forEach((e) -> e.setSelected(true));
+            this.baseX = pos.x + 400;
+            this.baseY = pos.y + 200;
+            dm.start(baseX, baseY);
+        }
+
+        @Override
+        public void step(FrameTimeHarness h, int frame) {
+            int t = frame % 64;
+            int d = t < 32 ? t : 64 - t;
+            h.getPianoRoll().getUI().getNoteDragManager().move(baseX + d * 12, baseY + d * 3);
+        }
+
+        @Override
+        public void tearDown(FrameTimeHarness h) {
+            h.getPianoRoll().getUI().getNoteDragManager().stop();
+        }
+    }
+
+    /**
+     * 再生位置を進めながら、再生バーに合わせてスクロールします.
+     */
+    private static class Playback implements Script {
+
+        @Override
+        public String getName() {
+            return "playback";
+        }
+
+        @Override
+        public void setUp(FrameTimeHarness h) {
+            h.scrollTo(0, 300);
+        }
+
+        @Override
+        public void step(FrameTimeHarness h, int frame) {
+            PianoRollLayerUI layerUI = h.pane.getPianoRollLayerUI();
+            int x = frame * 16;
+            layerUI.setSequencePosition(x);
+            JViewport vp = h.getViewport();
+            if (x >= vp.getViewPosition().x + vp.getExtentSize().width) {
+                h.scrollTo(x, vp.getViewPosition().y);
+            }
+        }
+    }
+}
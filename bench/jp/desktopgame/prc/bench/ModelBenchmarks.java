@@ -0,0 +1,139 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import jp.desktopgame.prc.Beat;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.IndexedPianoRollModel;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.PackedPianoRollModel;
+import jp.desktopgame.prc.PianoRollEditorPane;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * モデルの作成, ノートの列挙, ノートの生成を計測するベンチマークです.
+ *
+ * @author desktopgame
+ */
+public class ModelBenchmarks {
+
+    private ModelBenchmarks() {
+    }
+
+    public static List<BenchmarkCase> cases() {
+        List<BenchmarkCase> r = new ArrayList<>();
+        for (int mc : new int[]{16, 256, 1000}) {
+            r.add(new BenchmarkCase("model.construct.dense." + mc) {
+                @Override
+                protected Object invoke() {
+                    return new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT);
+                }
+            });
+        }
+        r.add(new BenchmarkCase("model.construct.sparse.1000") {
+            @Override
+            protected Object invoke() {
+                return new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, 1000, BenchmarkSongs.BEAT_COUNT, true);
+            }
+        });
+        addQueries(r, "default", (mc) -> new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT));
+        addQueries(r, "indexed", (mc) -> new IndexedPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT));
+        addQueries(r, "packed", (mc) -> new PackedPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT));
+        r.add(new GenerateNote("beat.generateNote.listeners.default", (mc) -> new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT)));
+        r.add(new GenerateNote("beat.generateNote.listeners.packed", (mc) -> new PackedPianoRollModel(BenchmarkSongs.KEY_COUNT, mc, BenchmarkSongs.BEAT_COUNT)));
+        return r;
+    }
+
+    private static void addQueries(List<BenchmarkCase> r, String kind, IntFunction<PianoRollModel> factory) {
+        for (int n : new int[]{1_000, 10_000, 100_000}) {
+            r.add(new Query("model.getAllNotes." + kind + "." + n, factory, n, false));
+        }
+        for (int n : new int[]{1_000, 10_000, 100_000}) {
+            r.add(new Query("model.getSelectedNotes." + kind + "." + n, factory, n, true));
+        }
+    }
+
+    private static class Query extends BenchmarkCase {
+
+        private IntFunction<PianoRollModel> factory;
+        private int noteCount;
+        private boolean selected;
+        private PianoRollModel model;
+
+        public Query(String name, IntFunction<PianoRollModel> factory, int noteCount, boolean selected) {
+            super(name);
+            this.factory = factory;
+            this.noteCount = noteCount;
+            this.selected = selected;
+        }
+
+        @Override
+        protected void setUp() {
+            this.model = factory.apply(BenchmarkSongs.measureCountFor(noteCount));
+            BenchmarkSongs.fill(model, noteCount, 96, 0.01);
+        }
+
+        @Override
+        protected Object invoke() {
+            return selected ? model.getSelectedNotes() : model.getAllNotes();
+        }
+
+        @Override
+        protected void tearDown() {
+            this.model = null;
+        }
+    }
+
+    /**
+     * エディタのペインにつないだモデルで、ノートの生成と削除を一組として計測します.
+     * <br>
+     * UIの索引と再描画, Undoの記録が全て行われます。<br>
+     */
+    private static class GenerateNote extends BenchmarkCase {
+
+        private IntFunction<PianoRollModel> factory;
+        private PianoRollEditorPane pane;
+        private Beat[] beats;
+        private int position;
+
+        public GenerateNote(String name, IntFunction<PianoRollModel> factory) {
+            super(name);
+            this.factory = factory;
+        }
+
+        @Override
+        protected void setUp() {
+            PianoRollModel model = factory.apply(100);
+            BenchmarkSongs.fill(model, 10_000, 96, 0);
+            this.pane = new PianoRollEditorPane();
+            pane.getPianoRoll().setModel(model);
+            this.beats = new Beat[1024];
+            for (int i = 0; i < beats.length; i++) {
+                beats[i] = model.getKey((i * 7) % model.getKeyCount()).getMeasure(i % 100).getBeat(i % 4);
+            }
+        }
+
+        @Override
+        protected Object invoke() {
+            Beat beat = beats[position++ & (beats.length - 1)];
+            Note note = beat.generateNote(48, 0.5f);
+            note.removeFromBeat();
+            return note;
+        }
+
+        @Override
+        protected void tearDown() {
+            this.pane = null;
+            this.beats = null;
+        }
+    }
+}
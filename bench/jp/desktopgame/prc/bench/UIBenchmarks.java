@@ -0,0 +1,141 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.bench;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.PianoRoll;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * ノートの当たり判定と、BufferedImageへの描画を計測するベンチマークです.
+ * <br>
+ * 描画はjava.awt.headless=trueでも実行できます。<br>
+ *
+ * @author desktopgame
+ */
+public class UIBenchmarks {
+
+    public static final int VIEWPORT_WIDTH = 1600;
+    public static final int VIEWPORT_HEIGHT = 768;
+
+    private UIBenchmarks() {
+    }
+
+    public static List<BenchmarkCase> cases() {
+        List<BenchmarkCase> r = new ArrayList<>();
+        for (int n : new int[]{1_000, 10_000, 100_000}) {
+            r.add(new HitTest("ui.getNotesAt." + n, n));
+        }
+        for (int n : new int[]{1_000, 10_000, 100_000}) {
+            for (int bw : new int[]{96, 24, 2}) {
+                r.add(new Paint("ui.paint." + n + ".bw" + bw, n, bw));
+            }
+        }
+        return r;
+    }
+
+    static PianoRoll createPianoRoll(int noteCount, int beatWidth) {
+        PianoRollModel model = new DefaultPianoRollModel(BenchmarkSongs.KEY_COUNT, BenchmarkSongs.measureCountFor(noteCount), BenchmarkSongs.BEAT_COUNT);
+        BenchmarkSongs.fill(model, noteCount, 96, 0.01);
+        PianoRoll p = new PianoRoll();
+        p.setModel(model);
+        p.setBeatWidth(beatWidth);
+        p.setBeatHeight(12);
+        p.setSize(p.getPreferredSize());
+        return p;
+    }
+
+    private static class HitTest extends BenchmarkCase {
+
+        private int noteCount;
+        private PianoRoll p;
+        private int[] points;
+        private int position;
+
+        public HitTest(String name, int noteCount) {
+            super(name);
+            this.noteCount = noteCount;
+        }
+
+        @Override
+        protected void setUp() {
+            this.p = createPianoRoll(noteCount, 96);
+            Dimension d = p.getPreferredSize();
+            Random r = new Random(BenchmarkSongs.SEED);
+            this.points = new int[2048];
+            for (int i = 0; i < points.length; i += 2) {
+                points[i] = r.nextInt(d.width);
+                points[i + 1] = r.nextInt(d.height);
+            }
+        }
+
+        @Override
+        protected Object invoke() {
+            int i = position;
+            this.position = (position + 2) & (points.length - 1);
+            return p.getUI().getNotesAt(points[i], points[i + 1]);
+        }
+
+        @Override
+        protected void tearDown() {
+            this.p = null;
+        }
+    }
+
+    /**
+     * 曲の中央に置いた画面一つ分の範囲を描画します.
+     */
+    private static class Paint extends BenchmarkCase {
+
+        private int noteCount;
+        private int beatWidth;
+        private PianoRoll p;
+        private BufferedImage image;
+        private int x;
+
+        public Paint(String name, int noteCount, int beatWidth) {
+            super(name);
+            this.noteCount = noteCount;
+            this.beatWidth = beatWidth;
+        }
+
+        @Override
+        protected void setUp() {
+            this.p = createPianoRoll(noteCount, beatWidth);
+            Dimension d = p.getPreferredSize();
+            this.image = new BufferedImage(VIEWPORT_WIDTH, VIEWPORT_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            this.x = Math.max(0, (d.width - VIEWPORT_WIDTH) / 2);
+        }
+
+        @Override
+        protected Object invoke() {
+            Graphics2D g = image.createGraphics();
+            try {
+                g.translate(-x, 0);
+                g.setClip(x, 0, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+                p.getUI().paint(g, p);
+            } finally {
+                g.dispose();
+            }
+            return image;
+        }
+
+        @Override
+        protected void tearDown() {
+            this.p = null;
+            this.image = null;
+        }
+    }
+}
@@ -16,12 +16,22 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.event.KeyAdapter;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
 import java.util.stream.Collectors;
@@ -32,6 +42,11 @@ import javax.swing.event.ChangeListener;
 
 /**
  * PianoRollUIの基本L&F実装です.
+ * <br>
+ * 拍の横幅がLOD_BEAT_WIDTHより小さいほど縮小されている場合は、描画の方法を切り替えます。<br>
+ * ノートは一つずつ枠線を付けて描く代わりに、キーごとに一行のビットマップへ書き込み、全てのキーをまとめて一度に描きます。<br>
+ * 背景は小節ごとの格子の代わりにキーごとの帯と、間隔が詰まりすぎない小節の線だけを描きます。<br>
+ * 格子の線は縮小の度合いに関わらず、MIN_LINE_SPACINGより狭い間隔になるものを省きます。<br>
  *
  * @author desktopgame
  */
@@ -43,6 +58,7 @@ public class BasicPianoRollUI extends PianoRollUI {
     private MouseHandler mouseHandler;
     private PianoRollModelHandler pianoRollModelHandler;
     private OnionSkinHandler onionSkinHandler;
+    private ChangeListener dirtyRegionHandler;
     private NoteDragManager noteDragManager;
     private NoteResizeManager noteResizeManager;
     private RectangleSelectManager rectSelectManager;
@@ -50,18 +66,54 @@ public class BasicPianoRollUI extends PianoRollUI {
     private int cursorY;
     private List<Rectangle> ghostRects;
     private Rectangle highlightKey;
+    private NoteIndex noteIndex;
+    private boolean ownsNoteIndex;
+    private Map<Color, BufferedImage> gridTileCache;
+    private DirtyRegionManager dirtyRegionManager;
+    private WritableRaster noteLayerCache;
+    private BufferedImage noteLayerImage;
+    private BitSet noteLayerDirty;
+    private BitSet noteLayerPending;
+    private boolean noteLayerPendingAll;
+    private int noteLayerBeatWidth;
+    private WritableRaster onionLayerCache;
+    private Map<Color, BufferedImage> onionLayerImages;
+    private int paintedNoteCount;
+    private long paintCount;
+    private long lastPaintNanos;
+    private long totalPaintNanos;
+    private long lastPaintArea;
+    private static final Color GRID_LINE_COLOR = new Color(105, 112, 112);
+
+    /**
+     * 拍の横幅がこの値より小さい場合に、ノートと背景を簡略化して描画します.
+     */
+    public static final int LOD_BEAT_WIDTH = 8;
+
+    /**
+     * 格子の線を描画する最小の間隔です.
+     */
+    public static final int MIN_LINE_SPACING = 4;
+
+    private static final long NOTE_LAYER_CACHE_LIMIT = 16L * 1024 * 1024;
+    private static final IndexColorModel NOTE_LAYER_PALETTE = createNoteLayerPalette(Color.pink, Color.cyan);
 
     public BasicPianoRollUI() {
         this.propHandler = new PropertyChangeHandler();
         this.keyHandler = new KeyHandler();
         this.mouseHandler = new MouseHandler();
         this.onionSkinHandler = new OnionSkinHandler();
+        this.dirtyRegionHandler = (e) -> applyNoteLayerInvalidation();
         this.pianoRollModelHandler = new PianoRollModelHandler();
         this.noteDragManager = createNoteDragManager();
         this.noteResizeManager = createNoteResizeManager();
         this.rectSelectManager = new RectangleSelectManager(this);
         this.ghostRects = new ArrayList<>();
         this.highlightKey = new Rectangle();
+        this.gridTileCache = new HashMap<>();
+        this.noteLayerDirty = new BitSet();
+        this.noteLayerPending = new BitSet();
+        this.onionLayerImages = new HashMap<>();
     }
 
     protected NoteDragManager createNoteDragManager() {
@@ -75,11 +127,14 @@ public class BasicPianoRollUI extends PianoRollUI {
     @Override
     public void installUI(JComponent c) {
         this.p = (PianoRoll) c;
+        this.dirtyRegionManager = new DirtyRegionManager(p);
+        dirtyRegionManager.addChangeListener(dirtyRegionHandler);
         p.addPropertyChangeListener(propHandler);
         p.addKeyListener(keyHandler);
         p.addMouseMotionListener(mouseHandler);
         p.addMouseListener(mouseHandler);
         p.getModel().addPianoRollModelListener(pianoRollModelHandler);
+        installNoteIndex(p.getModel());
         updatePrefSize();
     }
 
@@ -90,9 +145,46 @@ public class BasicPianoRollUI extends PianoRollUI {
         p.removeMouseMotionListener(mouseHandler);
         p.removeMouseListener(mouseHandler);
         p.getModel().removePianoRollModelListener(pianoRollModelHandler);
+        p.getGroup().ifPresent((g) -> g.removeChangeListener(onionSkinHandler));
+        // 予約済みのflushが後から実行されても、何もしないようにする
+        dirtyRegionManager.removeChangeListener(dirtyRegionHandler);
+        dirtyRegionManager.discard();
+        this.dirtyRegionManager = null;
+        this.noteIndex = null;
         this.p = null;
     }
 
+    private void installNoteIndex(PianoRollModel model) {
+        // モデル自身が索引を持っていればそれを共有する
+        if (model instanceof IndexedPianoRollModel) {
+            this.noteIndex = ((IndexedPianoRollModel) model).getNoteIndex();
+            this.ownsNoteIndex = false;
+        } else {
+            this.noteIndex = new NoteIndex(model);
+            this.ownsNoteIndex = true;
+        }
+    }
+
+    private Optional<NoteIndex> getNoteIndex(PianoRollModel model) {
+        if (model == p.getModel()) {
+            return Optional.ofNullable(noteIndex);
+        }
+        if (model instanceof IndexedPianoRollModel) {
+            return Optional.of(((IndexedPianoRollModel) model).getNoteIndex());
+        }
+        Optional<PianoRollGroup> groupOpt = p.getGroup();
+        if (groupOpt.isPresent()) {
+            PianoRollGroup group = groupOpt.get();
+            for (int i = 0; i < group.getPianoRollCount(); i++) {
+                PianoRoll e = group.getPianoRoll(i);
+                if (e.getModel() == model && e.getUI() instanceof BasicPianoRollUI) {
+                    return Optional.ofNullable(((BasicPianoRollUI) e.getUI()).noteIndex);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
     @Override
     public void paint(Graphics g, JComponent c) {
         paintImpl((Graphics2D) g);
@@ -175,26 +267,16 @@ public class BasicPianoRollUI extends PianoRollUI {
 
     @Override
     public List<Note> getNotesAt(int x, int y) {
-        ArrayList<Note> notes = new ArrayList<>();
-        getKeyAt(y).ifPresent((Key e) -> {
-            for (int i = 0; i < e.getMeasureCount(); i++) {
-                Measure m = e.getMeasure(i);
-                int measureOffset = (p.getBeatWidth() * m.getBeatCount()) * i;
-                for (int j = 0; j < m.getBeatCount(); j++) {
-                    Beat b = m.getBeat(j);
-                    int beatOffset = measureOffset + (p.getBeatWidth() * j);
-                    for (int k = 0; k < b.getNoteCount(); k++) {
-                        Note n = b.getNote(k);
-                        int sx = beatOffset + n.getOffset();
-                        int ex = sx + n.scaledLength(p.getBeatWidth());
-                        if (x >= sx && x < ex) {
-                            notes.add(n);
-                        }
-                    }
-                }
-            }
-        });
-        return notes;
+        Optional<Key> keyOpt = getKeyAt(y);
+        if (!keyOpt.isPresent()) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(noteIndex.getNotesInRange(keyOpt.get().getIndex() - 1, x, x + 1, p.getBeatWidth()));
+    }
+
+    @Override
+    public List<Note> getNotesIn(Rectangle area) {
+        return noteIndex.getNotesIn(area, p.getBeatWidth(), p.getBeatHeight());
     }
 
     @Override
@@ -276,6 +358,51 @@ public class BasicPianoRollUI extends PianoRollUI {
         return new Rectangle(xOffset, yOffset, width, height);
     }
 
+    /**
+     * 描画した回数を返します.
+     *
+     * @return
+     */
+    public long getPaintCount() {
+        return paintCount;
+    }
+
+    /**
+     * 最後の描画にかかった時間をナノ秒で返します.
+     *
+     * @return
+     */
+    public long getLastPaintNanos() {
+        return lastPaintNanos;
+    }
+
+    /**
+     * これまでの描画にかかった時間の合計をナノ秒で返します.
+     *
+     * @return
+     */
+    public long getTotalPaintNanos() {
+        return totalPaintNanos;
+    }
+
+    /**
+     * 最後に描画した範囲の面積をピクセルで返します.
+     *
+     * @return
+     */
+    public long getLastPaintArea() {
+        return lastPaintArea;
+    }
+
+    /**
+     * モデルに含まれるノートの数を索引から返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteIndex != null ? noteIndex.getNoteCount() : 0;
+    }
+
     @Override
     public PianoRoll getPianoRoll() {
         return p;
@@ -309,18 +436,26 @@ public class BasicPianoRollUI extends PianoRollUI {
     // 描画
     //
     private void paintImpl(Graphics2D g2) {
+        // 記録が無効な場合は、描画のたびにイベントを作成しない
+        PaintFlightEvent event = PaintFlightEvent.isTypeEnabled() ? new PaintFlightEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        this.paintedNoteCount = 0;
         PianoRollModel pModel = p.getModel();
-        final int BW = p.getBeatWidth();
         final int BH = p.getBeatHeight();
-        int y = 0;
         Color c = g2.getColor();
-        int index = 0;
+        Rectangle clip = getPaintBounds(g2);
         drawBackground(g2);
-        for (int i = pModel.getKeyCount() - 1; i >= 0; i--) {
-            int nextY = y + BH;
-            drawNotes(g2, pModel.getKey(index), y, nextY, false, null);
-            y = nextY;
-            index++;
+        int lastKey = getLastVisibleKeyIndex(clip, BH, pModel.getKeyCount());
+        if (isCoarse()) {
+            drawNoteLayer(g2, pModel, clip, false, null);
+        } else {
+            for (int index = getFirstVisibleKeyIndex(clip, BH); index <= lastKey; index++) {
+                int y = index * BH;
+                drawNotes(g2, pModel.getKey(index), y, y + BH, false, null);
+            }
         }
         drawNoteGhost(g2);
         g2.setColor(Color.blue);
@@ -328,6 +463,46 @@ public class BasicPianoRollUI extends PianoRollUI {
         g2.draw(selectArea);
         drawOnionSkin(g2);
         g2.setColor(c);
+        this.lastPaintNanos = System.nanoTime() - start;
+        this.totalPaintNanos += lastPaintNanos;
+        this.lastPaintArea = (long) clip.width * clip.height;
+        this.paintCount++;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.clipX = clip.x;
+                event.clipY = clip.y;
+                event.clipWidth = clip.width;
+                event.clipHeight = clip.height;
+                event.notesDrawn = paintedNoteCount;
+                event.coarse = isCoarse();
+                event.commit();
+            }
+        }
+    }
+
+    private Rectangle getPaintBounds(Graphics2D g2) {
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) {
+            return new Rectangle(0, 0, computeWidth(), computeHeight());
+        }
+        return clip;
+    }
+
+    private static int getFirstVisibleKeyIndex(Rectangle clip, int beatHeight) {
+        return Math.max(0, Math.floorDiv(clip.y, beatHeight));
+    }
+
+    private static int getLastVisibleKeyIndex(Rectangle clip, int beatHeight, int keyCount) {
+        return Math.min(keyCount - 1, Math.floorDiv(clip.y + clip.height - 1, beatHeight));
+    }
+
+    private int getFirstVisibleMeasureIndex(Rectangle clip) {
+        return Math.max(0, Math.floorDiv(clip.x, getMeasureWidth()));
+    }
+
+    private int getLastVisibleMeasureIndex(Rectangle clip, int measureCount) {
+        return Math.min(measureCount - 1, Math.floorDiv(clip.x + clip.width - 1, getMeasureWidth()));
     }
 
     private void repaintNote(Note note) {
@@ -336,12 +511,12 @@ public class BasicPianoRollUI extends PianoRollUI {
         r.y -= 1;
         r.width += 2;
         r.height += 2;
-        p.repaint(r);
+        dirtyRegionManager.addDirtyRegion(r);
     }
 
     private void repaintGhostRects() {
         for (Rectangle rect : ghostRects) {
-            p.repaint(rect);
+            dirtyRegionManager.addDirtyRegion(rect);
         }
         ghostRects.clear();
     }
@@ -356,77 +531,347 @@ public class BasicPianoRollUI extends PianoRollUI {
 
     protected void drawBackground(Graphics2D g2) {
         PianoRollModel pModel = p.getModel();
-        final int BW = p.getBeatWidth();
         final int BH = p.getBeatHeight();
         final int CW = computeWidth();
-        int index = 0;
-        int y = 0;
-        for (int i = pModel.getKeyCount() - 1; i >= 0; i--) {
+        final int MW = getMeasureWidth();
+        Rectangle clip = getPaintBounds(g2);
+        int lastKey = getLastVisibleKeyIndex(clip, BH, pModel.getKeyCount());
+        int firstMeasure = getFirstVisibleMeasureIndex(clip);
+        int lastMeasure = getLastVisibleMeasureIndex(clip, pModel.getKey(0).getMeasureCount());
+        boolean coarse = isCoarse();
+        for (int index = getFirstVisibleKeyIndex(clip, BH); index <= lastKey; index++) {
+            int i = pModel.getKeyCount() - 1 - index;
+            int y = index * BH;
             int nextY = y + BH;
             int indexInBwTable = i % Keyboard.BLACK_WHITE_TABLE.length;
+            Color background;
             if (Keyboard.BLACK_WHITE_TABLE[indexInBwTable] == Key.BLACK) {
-                g2.setColor(Color.darkGray);
+                background = Color.darkGray;
             } else {
-                g2.setColor(Color.lightGray);
+                background = Color.lightGray;
             }
             if (!noteDragManager.getTargets().isEmpty() && cursorY >= y && cursorY < nextY) {
-                g2.setColor(Color.CYAN);
+                background = Color.CYAN;
                 highlightKey.x = 0;
                 highlightKey.y = y;
                 highlightKey.width = CW;
                 highlightKey.height = nextY - y;
             }
-            g2.fillRect(0, y, CW, nextY - y);
+            if (coarse) {
+                // 小節ごとに格子の画像を描く代わりに、見えている範囲を一度に塗りつぶす
+                int right = Math.min(clip.x + clip.width, CW);
+                g2.setColor(background);
+                g2.fillRect(clip.x, y, right - clip.x, BH);
+                g2.setColor(Color.black);
+                g2.drawLine(clip.x, y, right, y);
+            } else {
+                BufferedImage tile = getGridTile(background);
+                for (int j = firstMeasure; j <= lastMeasure; j++) {
+                    g2.drawImage(tile, j * MW, y, null);
+                }
+            }
             drawKey(g2, pModel.getKey(index), y, nextY);
-            g2.setColor(Color.black);
-            g2.drawLine(0, y, getKeyWidth(), y);
-            y = nextY;
-            index++;
+        }
+        if (coarse && lastKey >= 0) {
+            drawMeasureLines(g2, clip, firstMeasure, lastMeasure, Math.min(clip.y + clip.height, computeHeight()));
         }
         g2.setColor(Color.black);
         g2.drawLine(0, computeHeight(), computeWidth(), computeHeight());
         g2.drawLine(computeWidth(), 0, computeWidth(), computeHeight());
     }
 
+    /**
+     * 縮小されている場合に、間隔がMIN_LINE_SPACINGより狭くならないように間引いて小節の線を描画します.
+     *
+     * @param g2
+     * @param clip
+     * @param firstMeasure
+     * @param lastMeasure
+     * @param bottomY
+     */
+    private void drawMeasureLines(Graphics2D g2, Rectangle clip, int firstMeasure, int lastMeasure, int bottomY) {
+        final int MW = Math.max(1, getMeasureWidth());
+        int step = (MIN_LINE_SPACING + MW - 1) / MW;
+        g2.setColor(Color.yellow);
+        for (int j = firstMeasure - (firstMeasure % step); j <= lastMeasure; j += step) {
+            g2.drawLine(j * MW, clip.y, j * MW, bottomY);
+        }
+    }
+
+    /**
+     * ノートと背景を簡略化して描画するならtrueを返します.
+     *
+     * @return
+     */
+    protected boolean isCoarse() {
+        return p.getBeatWidth() < LOD_BEAT_WIDTH;
+    }
+
+    /**
+     * 指定の背景色で塗りつぶした一小節分の格子を返します. 格子は背景色ごとにキャッシュされます。
+     *
+     * @param background
+     * @return
+     */
+    private BufferedImage getGridTile(Color background) {
+        BufferedImage tile = gridTileCache.get(background);
+        if (tile != null) {
+            return tile;
+        }
+        final int BW = p.getBeatWidth();
+        final int BH = p.getBeatHeight();
+        final int BC = p.getModel().getKey(0).getMeasure(0).getBeatCount();
+        final int MW = getMeasureWidth();
+        tile = new BufferedImage(Math.max(1, MW), Math.max(1, BH), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = tile.createGraphics();
+        g2.setColor(background);
+        g2.fillRect(0, 0, MW, BH);
+        // MIN_LINE_SPACINGより狭い間隔で並ぶ線は描かない
+        boolean drawSplit = BW / p.getBeatSplitCount() >= MIN_LINE_SPACING;
+        boolean drawBeat = BW >= MIN_LINE_SPACING;
+        for (int k = 0; k < BC && drawBeat; k++) {
+            int bx = BW * k;
+            g2.setColor(GRID_LINE_COLOR);
+            for (int L = 0; L < p.getBeatSplitCount() && drawSplit; L++) {
+                int lineX = bx + (L * (BW / p.getBeatSplitCount()));
+                g2.drawLine(lineX, 0, lineX, BH);
+            }
+            g2.setColor(Color.white);
+            g2.drawLine(bx, 0, bx, BH);
+        }
+        g2.setColor(Color.yellow);
+        g2.drawLine(0, 0, 0, BH);
+        g2.setColor(Color.black);
+        g2.drawLine(0, 0, MW, 0);
+        g2.dispose();
+        gridTileCache.put(background, tile);
+        return tile;
+    }
+
+    private void invalidateGridTile() {
+        gridTileCache.clear();
+    }
+
+    /**
+     * キャッシュされた格子の上に、カーソル付近の強調された線を描画します.
+     *
+     * @param g2
+     * @param key
+     * @param topY
+     * @param bottomY
+     */
     protected void drawKey(Graphics2D g2, Key key, int topY, int bottomY) {
+        final int BW = p.getBeatWidth();
+        // 未作成の小節を作らないように、拍の数は先頭の小節に揃える
+        final int BC = p.getModel().getKey(0).getMeasure(0).getBeatCount();
+        // 上端はキーの境界線、下端は次のキーに塗りつぶされる
+        if (bottomY - topY < 2 || BW < MIN_LINE_SPACING) {
+            return;
+        }
+        int splitCount = BW / p.getBeatSplitCount() >= MIN_LINE_SPACING ? p.getBeatSplitCount() : 1;
+        int cx = Math.abs(cursorX);
+        int firstBeat = Math.max(0, Math.floorDiv(cx - p.getSnapLimit(), BW));
+        int lastBeat = Math.min((key.getMeasureCount() * BC) - 1, Math.floorDiv(cx + p.getSnapLimit(), BW));
+        for (int k = firstBeat; k <= lastBeat; k++) {
+            int bx = BW * k;
+            for (int L = 0; L < splitCount; L++) {
+                int lineX = bx + (L * (BW / p.getBeatSplitCount()));
+                if (!shouldHeighlightLine(lineX)) {
+                    continue;
+                }
+                g2.setColor(L == 0 && k % BC == 0 ? Color.magenta : Color.yellow);
+                g2.drawLine(lineX, topY + 1, lineX, bottomY - 1);
+            }
+        }
+    }
+
+    protected void drawNotes(Graphics2D g2, Key key, int topY, int bottomY, boolean onionSkin, Color onionSkinColor) {
         final int BW = p.getBeatWidth();
         final int BH = p.getBeatHeight();
-        int mx = 0;
+        Rectangle clip = getPaintBounds(g2);
+        Optional<NoteIndex> indexOpt = getNoteIndex(key.getModel());
+        if (indexOpt.isPresent()) {
+            // drawRectの枠線はノートの幅より1ピクセル外側まで描かれる
+            for (Note note : indexOpt.get().getNotesInRange(key.getIndex() - 1, clip.x - 1, clip.x + clip.width + 1, BW)) {
+                drawNote(g2, note, getNoteRect(note), onionSkin, onionSkinColor);
+                this.paintedNoteCount++;
+            }
+            return;
+        }
         for (int j = 0; j < key.getMeasureCount(); j++) {
+            if (!key.isMeasureMaterialized(j)) {
+                continue;
+            }
             Measure m = key.getMeasure(j);
             int bx = (BW * m.getBeatCount()) * j;
             for (int k = 0; k < m.getBeatCount(); k++) {
+                if (!m.isBeatMaterialized(k)) {
+                    bx += BW;
+                    continue;
+                }
+                Beat beat = m.getBeat(k);
                 int nextBx = bx + BW;
-                for (int L = 0; L < p.getBeatSplitCount(); L++) {
-                    int lineX = bx + (L * (p.getBeatWidth() / p.getBeatSplitCount()));
-                    g2.setColor(shouldHeighlightLine(lineX) ? Color.yellow : new Color(105, 112, 112));
-                    g2.drawLine(lineX, topY, lineX, bottomY);
+                for (int L = 0; L < beat.getNoteCount(); L++) {
+                    Note note = beat.getNote(L);
+                    Rectangle rect = getNoteRect(note);
+                    if (rect.x <= clip.x + clip.width && rect.x + rect.width >= clip.x) {
+                        drawNote(g2, note, rect, onionSkin, onionSkinColor);
+                        this.paintedNoteCount++;
+                    }
                 }
-                g2.setColor(shouldHeighlightLine(bx) ? Color.yellow : Color.white);
-                g2.drawLine(bx, topY, bx, bottomY);
                 bx = nextBx;
             }
-            int nextMx = mx + m.getBeatCount() * BW;
-            g2.setColor(shouldHeighlightLine(mx) ? Color.magenta : Color.yellow);
-            g2.drawLine(mx, topY, mx, bottomY);
-            mx = nextMx;
         }
     }
 
-    protected void drawNotes(Graphics2D g2, Key key, int topY, int bottomY, boolean onionSkin, Color onionSkinColor) {
+    /**
+     * 縮小されている場合に、見えているキーのノートをキーごとに一行のビットマップに書き込み、一度に描画します.
+     * <br>
+     * このピアノロール自身のノートはキー全体の行をキャッシュし、変更されたキーの行だけを書き直します。<br>
+     * オニオンスキンのビットマップとパレットも色ごとに保持し、描画のたびには作成しません。<br>
+     * 選択されたノートは他のノートより優先して書き込まれます。<br>
+     *
+     * @param g2
+     * @param model
+     * @param clip
+     * @param onionSkin
+     * @param onionSkinColor
+     */
+    private void drawNoteLayer(Graphics2D g2, PianoRollModel model, Rectangle clip, boolean onionSkin, Color onionSkinColor) {
         final int BW = p.getBeatWidth();
         final int BH = p.getBeatHeight();
+        final int CW = computeWidth();
+        int firstKey = getFirstVisibleKeyIndex(clip, BH);
+        int lastKey = getLastVisibleKeyIndex(clip, BH, model.getKeyCount());
+        int fromX = Math.max(0, clip.x);
+        int toX = Math.min(clip.x + clip.width, CW);
+        if (toX <= fromX || lastKey < firstKey) {
+            return;
+        }
+        Optional<NoteIndex> indexOpt = getNoteIndex(model);
+        WritableRaster layer;
+        int srcX;
+        int srcY;
+        BufferedImage image;
+        if (!onionSkin && (long) CW * model.getKeyCount() <= NOTE_LAYER_CACHE_LIMIT) {
+            // 再描画がまとめられる前に描画された場合は、ここで変更を反映する
+            applyNoteLayerInvalidation();
+            if (noteLayerCache == null || noteLayerCache.getWidth() != CW || noteLayerCache.getHeight() != model.getKeyCount() || noteLayerBeatWidth != BW) {
+                this.noteLayerCache = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, CW, model.getKeyCount(), 1, null);
+                this.noteLayerImage = new BufferedImage(NOTE_LAYER_PALETTE, noteLayerCache, false, null);
+                this.noteLayerBeatWidth = BW;
+                noteLayerDirty.set(0, model.getKeyCount());
+            }
+            layer = noteLayerCache;
+            image = noteLayerImage;
+            byte[] data = ((DataBufferByte) layer.getDataBuffer()).getData();
+            for (int index = noteLayerDirty.nextSetBit(firstKey); index >= 0 && index <= lastKey; index = noteLayerDirty.nextSetBit(index + 1)) {
+                plotKey(data, index * CW, model, index, indexOpt, 0, CW);
+                noteLayerDirty.clear(index);
+            }
+            srcX = fromX;
+            srcY = firstKey;
+        } else {
+            // オニオンスキンは他のモデルの変更を監視していないので、見えている範囲だけを毎回書き込む
+            // ビットマップは足りなくなった場合にだけ作り直し、左上の部分だけを使う
+            int w = toX - fromX;
+            int rows = lastKey - firstKey + 1;
+            if (onionLayerCache == null || onionLayerCache.getWidth() < w || onionLayerCache.getHeight() < rows) {
+                int cw = onionLayerCache == null ? w : Math.max(w, onionLayerCache.getWidth());
+                int ch = onionLayerCache == null ? rows : Math.max(rows, onionLayerCache.getHeight());
+                this.onionLayerCache = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, cw, ch, 1, null);
+                onionLayerImages.clear();
+            }
+            layer = onionLayerCache;
+            int stride = layer.getWidth();
+            byte[] data = ((DataBufferByte) layer.getDataBuffer()).getData();
+            for (int index = firstKey; index <= lastKey; index++) {
+                plotKey(data, (index - firstKey) * stride, model, index, indexOpt, fromX, toX);
+            }
+            srcX = 0;
+            srcY = 0;
+            // このピアノロール自身のノートはnullの色で保持する
+            Color color = onionSkin ? onionSkinColor : null;
+            image = onionLayerImages.get(color);
+            if (image == null) {
+                image = new BufferedImage(onionSkin ? createNoteLayerPalette(color, color) : NOTE_LAYER_PALETTE, onionLayerCache, false, null);
+                onionLayerImages.put(color, image);
+            }
+        }
+        // 一行を一つのキーの高さに引き伸ばして描く
+        g2.drawImage(image, fromX, firstKey * BH, toX, (lastKey + 1) * BH, srcX, srcY, srcX + (toX - fromX), srcY + (lastKey - firstKey + 1), null);
+    }
+
+    private static IndexColorModel createNoteLayerPalette(Color normal, Color selected) {
+        // 0番を透明にしたパレットなら、アルファの合成をせずに転送できる
+        return new IndexColorModel(2, 3,
+                new byte[]{0, (byte) normal.getRed(), (byte) selected.getRed()},
+                new byte[]{0, (byte) normal.getGreen(), (byte) selected.getGreen()},
+                new byte[]{0, (byte) normal.getBlue(), (byte) selected.getBlue()},
+                0);
+    }
+
+    private void invalidateNoteLayer(int keyIndex) {
+        // イベントごとには書き直さず、再描画がまとめられた時点で一度だけ反映する
+        if (keyIndex < 0) {
+            this.noteLayerPendingAll = true;
+        } else {
+            noteLayerPending.set(keyIndex);
+        }
+    }
+
+    private void applyNoteLayerInvalidation() {
+        if (noteLayerPendingAll) {
+            // キャッシュは大きさが変わらない限り使い回し、全ての行を書き直す
+            noteLayerDirty.set(0, noteLayerCache == null ? 0 : noteLayerCache.getHeight());
+            this.noteLayerPendingAll = false;
+        } else {
+            noteLayerDirty.or(noteLayerPending);
+        }
+        noteLayerPending.clear();
+    }
+
+    private void plotKey(byte[] data, int row, PianoRollModel model, int index, Optional<NoteIndex> indexOpt, int fromX, int toX) {
+        final int BW = p.getBeatWidth();
+        int w = toX - fromX;
+        Arrays.fill(data, row, row + w, (byte) 0);
+        if (indexOpt.isPresent()) {
+            for (Note note : indexOpt.get().getNotesInRange(index, fromX, toX, BW)) {
+                plotNote(data, row, note, NoteIndex.toBeatPosition(note.getBeat()) * BW, BW, fromX, w);
+                this.paintedNoteCount++;
+            }
+            return;
+        }
+        Key key = model.getKey(index);
         for (int j = 0; j < key.getMeasureCount(); j++) {
+            if (!key.isMeasureMaterialized(j)) {
+                continue;
+            }
             Measure m = key.getMeasure(j);
-            int bx = (BW * m.getBeatCount()) * j;
             for (int k = 0; k < m.getBeatCount(); k++) {
+                if (!m.isBeatMaterialized(k)) {
+                    continue;
+                }
                 Beat beat = m.getBeat(k);
-                int nextBx = bx + BW;
+                int bx = ((j * m.getBeatCount()) + k) * BW;
                 for (int L = 0; L < beat.getNoteCount(); L++) {
-                    Note note = beat.getNote(L);
-                    drawNote(g2, note, getNoteRect(note), onionSkin, onionSkinColor);
+                    plotNote(data, row, beat.getNote(L), bx, BW, fromX, w);
                 }
-                bx = nextBx;
+                this.paintedNoteCount += beat.getNoteCount();
+            }
+        }
+    }
+
+    private static void plotNote(byte[] data, int row, Note note, int beatX, int beatWidth, int fromX, int w) {
+        // 1ピクセルに満たないノートも見えるようにする
+        int start = beatX + note.getOffset() - fromX;
+        int end = start + Math.max(1, Math.round(note.getLength() * (float) beatWidth));
+        start = Math.max(0, start);
+        end = Math.min(w, end);
+        byte v = note.isSelected() ? (byte) 2 : (byte) 1;
+        for (int x = row + start; x < row + end; x++) {
+            if (data[x] < v) {
+                data[x] = v;
             }
         }
     }
@@ -480,8 +925,6 @@ public class BasicPianoRollUI extends PianoRollUI {
     }
 
     private void drawOnionSkin(Graphics2D g2, PianoRollGroup group, PianoRoll otherP) {
-        int index = 0;
-        int y = 0;
         final int BH = otherP.getBeatHeight();
         PianoRollModel pModel = otherP.getModel();
         PianoRollModel originPModel = p.getModel();
@@ -489,11 +932,15 @@ public class BasicPianoRollUI extends PianoRollUI {
         if (pModel.getKeyCount() != originPModel.getKeyCount()) {
             return;
         }
-        for (int i = pModel.getKeyCount() - 1; i >= 0; i--) {
-            int nextY = y + BH;
-            drawNotes(g2, pModel.getKey(index), y, nextY, true, group.getSkinColor(otherP));
-            y = nextY;
-            index++;
+        Rectangle clip = getPaintBounds(g2);
+        if (isCoarse()) {
+            drawNoteLayer(g2, pModel, clip, true, group.getSkinColor(otherP));
+            return;
+        }
+        int lastKey = getLastVisibleKeyIndex(clip, BH, pModel.getKeyCount());
+        for (int index = getFirstVisibleKeyIndex(clip, BH); index <= lastKey; index++) {
+            int y = index * BH;
+            drawNotes(g2, pModel.getKey(index), y, y + BH, true, group.getSkinColor(otherP));
         }
     }
 
@@ -510,12 +957,18 @@ public class BasicPianoRollUI extends PianoRollUI {
             if (k.equals("model")) {
                 ((PianoRollModel) o).removePianoRollModelListener(pianoRollModelHandler);
                 ((PianoRollModel) n).addPianoRollModelListener(pianoRollModelHandler);
+                installNoteIndex((PianoRollModel) n);
+                invalidateGridTile();
+                invalidateNoteLayer(-1);
                 updatePrefSize();
             } else if (k.equals("visibleKeyCount")) {
                 updatePrefSize();
             } else if (k.equals("visibleMeasureCount")) {
                 updatePrefSize();
             } else if (k.equals("beatWidth") || k.equals("beatHeight") || k.equals("beatSplitCount") || k.equals("snapLimit")) {
+                if (!k.equals("snapLimit")) {
+                    invalidateGridTile();
+                }
                 updatePrefSize();
                 p.repaint();
             } else if (k.equals("group")) {
@@ -733,46 +1186,63 @@ public class BasicPianoRollUI extends PianoRollUI {
 
         @Override
         public void pianoRollModelUpdate(PianoRollModelEvent e) {
-            Optional<NoteEvent> neOpt = e.getNoteEvent();
-            Optional<BeatEvent> beOpt = e.getBeatEvent();
-            Optional<MeasureEvent> meOpt = e.getMeasureEvent();
-            Optional<KeyEvent> keOpt = e.getInnerEvent();
-            if (neOpt.isPresent()) {
-                NoteEvent ne = neOpt.get();
+            if (ownsNoteIndex) {
+                noteIndex.pianoRollModelUpdate(e);
+            }
+            if (e.getType() == PianoRollModelEventType.BATCH_UPDATE) {
+                e.getBatchEvents().forEach(this::update);
+            } else {
+                update(e);
+            }
+        }
+
+        private void update(PianoRollModelEvent e) {
+            // ドラッグ中は頻繁に呼ばれるので、Optionalを作らずに内側のイベントを取り出す
+            NoteEvent ne = e.peekNoteEvent();
+            BeatEvent be = e.peekBeatEvent();
+            MeasureEvent me = e.peekMeasureEvent();
+            KeyEvent ke = e.peekKeyEvent();
+            if (ne == null || ne.getType() != NoteEventType.PLAY) {
+                invalidateNoteLayer(ke != null ? ke.getSource().getIndex() - 1 : -1);
+            }
+            if (ne != null) {
                 Note note = ne.getSource();
+                if (ne.getType() == NoteEventType.PLAY) {
+                    return;
+                }
                 if (ne.getType() == NoteEventType.OFFSET_CHANGE) {
-                    p.repaint(getNoteRect(note, (int) ne.getOldValue().get(), note.getLength()));
+                    dirtyRegionManager.addDirtyRegion(getNoteRect(note, ne.getOldOffset(), note.getLength()));
                 } else if (ne.getType() == NoteEventType.LENGTH_CHANGE) {
-                    p.repaint(getNoteRect(note, note.getOffset(), (float) ne.getOldValue().get()));
+                    dirtyRegionManager.addDirtyRegion(getNoteRect(note, note.getOffset(), ne.getOldLength()));
                 }
                 repaintNote(note);
                 repaintGhostRects();
-            } else if (beOpt.isPresent()) {
-                BeatEvent be = beOpt.get();
+            } else if (be != null) {
                 if (be.getBeatEventType() == BeatEventType.NOTE_CREATED) {
                     repaintNote(be.getNote());
                     repaintGhostRects();
                 } else {
-                    p.repaint();
+                    dirtyRegionManager.markCompletelyDirty();
                 }
-            } else if (meOpt.isPresent()) {
-                MeasureEvent me = meOpt.get();
+            } else if (me != null) {
                 if (me.getType() == MeasureEventType.BEAT_CREATED || me.getType() == MeasureEventType.BEAT_REMOVED) {
+                    invalidateGridTile();
                     updatePrefSize();
-                    p.repaint();
+                    dirtyRegionManager.markCompletelyDirty();
                 }
-            } else if (keOpt.isPresent()) {
-                KeyEvent ke = keOpt.get();
+            } else if (ke != null) {
                 if (ke.getType() == KeyEventType.MEASURE_CREATED || ke.getType() == KeyEventType.MEASURE_REMOVED) {
+                    invalidateGridTile();
                     updatePrefSize();
-                    p.repaint();
+                    dirtyRegionManager.markCompletelyDirty();
                 }
             } else {
-                if (e.getType() == PianoRollModelEventType.KEY_CREATED || e.getType() == PianoRollModelEventType.KEY_REMOVED) {
+                if (e.getType() == PianoRollModelEventType.KEY_CREATED || e.getType() == PianoRollModelEventType.KEY_REMOVED || e.getType() == PianoRollModelEventType.BULK_LOAD) {
+                    invalidateGridTile();
                     updatePrefSize();
-                    p.repaint();
+                    dirtyRegionManager.markCompletelyDirty();
                 } else {
-                    p.repaint();
+                    dirtyRegionManager.markCompletelyDirty();
                 }
             }
         }
@@ -782,7 +1252,7 @@ public class BasicPianoRollUI extends PianoRollUI {
 
         @Override
         public void stateChanged(ChangeEvent e) {
-            p.repaint();
+            dirtyRegionManager.markCompletelyDirty();
         }
     }
 }
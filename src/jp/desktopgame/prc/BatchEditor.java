@@ -0,0 +1,52 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+/**
+ * PianoRollModel#batchの中でノートをまとめて編集するためのインターフェイスです.
+ * <br>
+ * ここで行われた変更は一つのPianoRollModelEventとして通知され、一つのUndoableEditとして記録されます。<br>
+ *
+ * @author desktopgame
+ */
+public interface BatchEditor {
+
+    /**
+     * 指定の拍にノートを生成します.
+     *
+     * @param beat
+     * @param offset
+     * @param length
+     * @return
+     */
+    public Note generateNote(Beat beat, int offset, float length);
+
+    /**
+     * ノートを削除します.
+     *
+     * @param note
+     */
+    public void removeNote(Note note);
+
+    /**
+     * ノートを別の拍へ移動します. 移動したノートは新しく生成されたノートとして返されます。
+     *
+     * @param note
+     * @param beat
+     * @param offset
+     * @return
+     */
+    public Note moveNote(Note note, Beat beat, int offset);
+
+    public void setOffset(Note note, int offset);
+
+    public void setLength(Note note, float length);
+
+    public void setSelected(Note note, boolean selected);
+}
@@ -19,13 +19,28 @@ public class BeatEvent extends EventObject {
 
     private Note note;
     private BeatEventType beatEventType;
-    private Optional<NoteEvent> innerEvent;
+    private NoteEvent innerEvent;
 
     public BeatEvent(Beat o, Note note, BeatEventType beatEventType, NoteEvent noteEvent) {
         super(o);
         this.note = note;
         this.beatEventType = beatEventType;
-        this.innerEvent = Optional.ofNullable(noteEvent);
+        this.innerEvent = noteEvent;
+    }
+
+    void reset(Note note, BeatEventType beatEventType, NoteEvent noteEvent) {
+        this.note = note;
+        this.beatEventType = beatEventType;
+        this.innerEvent = noteEvent;
+    }
+
+    /**
+     * 内側のイベントも含めて複製した新しいイベントを返します.
+     *
+     * @return
+     */
+    public BeatEvent copy() {
+        return new BeatEvent(getSource(), note, beatEventType, innerEvent == null ? null : innerEvent.copy());
     }
 
     @Override
@@ -42,6 +57,10 @@ public class BeatEvent extends EventObject {
     }
 
     public Optional<NoteEvent> getInnerEvent() {
+        return Optional.ofNullable(innerEvent);
+    }
+
+    NoteEvent peekInnerEvent() {
         return innerEvent;
     }
 }
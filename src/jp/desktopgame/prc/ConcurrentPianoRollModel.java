@@ -0,0 +1,118 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.BitSet;
+
+/**
+ * 変更のたびに変更できないPianoRollSnapshotを公開するPianoRollModelの実装です.
+ * <br>
+ * モデル自体の変更や参照はこれまで通りイベントディスパッチスレッドで行います。<br>
+ * 再生やMIDIの書き出しなど他のスレッドからは、getSnapshotで得た版をロックせずに走査できます。<br>
+ * 版はバッチや、まとめられた変更(beginCompoundUndoableEditからendCompoundUndoableEditまで)の区切りでだけ公開されます。<br>
+ * まとめられていない変更ではイベントを通知する直前に、まとめられた変更では最後のendCompoundUndoableEditで公開されるので、<br>
+ * ドラッグや構造の変更の途中の状態が公開されることはありません。<br>
+ * 新しい版では変更されたキーだけを写し直し、それ以外のキーは前の版と共有します。<br>
+ *
+ * @author desktopgame
+ */
+public class ConcurrentPianoRollModel extends DefaultPianoRollModel {
+
+    private volatile PianoRollSnapshot snapshot;
+    private BitSet dirtyKeys;
+    private boolean dirtyAll;
+    private boolean dirty;
+    private int compoundDepth;
+
+    public ConcurrentPianoRollModel(int keyCount, int measureCount, int beatCount) {
+        this(keyCount, measureCount, beatCount, false);
+    }
+
+    public ConcurrentPianoRollModel(int keyCount, int measureCount, int beatCount, boolean sparse) {
+        super(keyCount, measureCount, beatCount, sparse);
+        this.dirtyKeys = new BitSet();
+        this.dirtyAll = true;
+        publish();
+    }
+
+    @Override
+    protected void firePianoRollModelUpdate(PianoRollModelEvent e) {
+        // スーパークラスのコンストラクタから呼ばれた場合は、最後にまとめて公開する
+        if (dirtyKeys != null) {
+            markDirty(e);
+            if (compoundDepth == 0) {
+                publish();
+            }
+        }
+        super.firePianoRollModelUpdate(e);
+    }
+
+    @Override
+    public void beginCompoundUndoableEdit() {
+        compoundDepth++;
+        super.beginCompoundUndoableEdit();
+    }
+
+    @Override
+    public void endCompoundUndoableEdit() {
+        super.endCompoundUndoableEdit();
+        compoundDepth--;
+        if (compoundDepth == 0 && dirty) {
+            publish();
+        }
+    }
+
+    private void markDirty(PianoRollModelEvent e) {
+        this.dirty = true;
+        switch (e.getType()) {
+            case PROPAGATION_KEY_EVENTS:
+                KeyEvent ke = e.peekKeyEvent();
+                if (ke != null) {
+                    dirtyKeys.set(ke.getSource().getIndex() - 1);
+                }
+                break;
+            case BATCH_UPDATE:
+                for (PianoRollModelEvent be : e.getBatchEvents()) {
+                    markDirty(be);
+                }
+                break;
+            default:
+                this.dirtyAll = true;
+                break;
+        }
+    }
+
+    private void publish() {
+        PianoRollSnapshot prev = snapshot;
+        int keyCount = getKeyCount();
+        // 疎なモデルでは小節を参照すると作成されてしまうので、モデルが持っている数を使う
+        int measureCount = keyCount > 0 ? getMeasureCount() : 0;
+        int beatCount = measureCount > 0 ? getBeatCount() : 0;
+        // 拍の数が変わると全てのノートの位置が変わる
+        boolean all = dirtyAll || prev == null || prev.getKeyCount() != keyCount || prev.getMeasureCount() != measureCount || prev.getBeatCount() != beatCount;
+        KeySnapshot[] keys = new KeySnapshot[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = all || dirtyKeys.get(i) ? KeySnapshot.capture(getKey(i)) : prev.getKey(i);
+        }
+        long version = prev == null ? 0 : prev.getVersion() + 1;
+        this.snapshot = new PianoRollSnapshot(version, measureCount, beatCount, keys);
+        dirtyKeys.clear();
+        this.dirtyAll = false;
+        this.dirty = false;
+    }
+
+    /**
+     * 最後に公開された版を返します. どのスレッドからでも呼び出せます。
+     *
+     * @return
+     */
+    public PianoRollSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+/**
+ * BatchEditorの基本実装です. ノートや拍のメソッドをそのまま呼び出します。
+ *
+ * @author desktopgame
+ */
+public class DefaultBatchEditor implements BatchEditor {
+
+    @Override
+    public Note generateNote(Beat beat, int offset, float length) {
+        return beat.generateNote(offset, length);
+    }
+
+    @Override
+    public void removeNote(Note note) {
+        note.removeFromBeat();
+    }
+
+    @Override
+    public Note moveNote(Note note, Beat beat, int offset) {
+        Note newNote = beat.generateNote(offset, note.getLength());
+        note.removeFromBeat();
+        return newNote;
+    }
+
+    @Override
+    public void setOffset(Note note, int offset) {
+        note.setOffset(offset);
+    }
+
+    @Override
+    public void setLength(Note note, float length) {
+        note.setLength(length);
+    }
+
+    @Override
+    public void setSelected(Note note, boolean selected) {
+        note.setSelected(selected);
+    }
+}
@@ -21,12 +21,17 @@ public class DefaultBeat implements Beat {
     private int index;
     private ArrayList<Note> noteList;
     private EventListenerList listenerList;
+    private NoteListener noteHandler;
+    private EventRecycler<DefaultBeat, BeatEvent> events;
 
     public DefaultBeat(Measure measure, int index) {
         this.measure = measure;
         this.index = index;
         this.noteList = new ArrayList<>();
         this.listenerList = new EventListenerList();
+        this.events = new EventRecycler<>(DefaultBeat::dispatchBeatUpdate);
+        // 削除のときに同じインスタンスを渡せるように保持しておく
+        this.noteHandler = this::noteChange;
     }
 
     @Override
@@ -43,31 +48,45 @@ public class DefaultBeat implements Beat {
     public Note generateNote(int offset, float length) {
         Note note = createNote(offset, length);
         noteList.add(note);
-        note.addNoteChangeListener(this::noteChange);
-        BeatEvent ee = new BeatEvent(this, note, BeatEventType.NOTE_CREATED, null);
-        for (BeatListener listener : listenerList.getListeners(BeatListener.class)) {
-            listener.beatUpdate(ee);
-        }
+        note.addNoteChangeListener(noteHandler);
+        fireBeatUpdate(note, BeatEventType.NOTE_CREATED, null);
         return note;
     }
 
     @Override
     public void restoreNote(Note note) {
         noteList.add(note);
-        BeatEvent ee = new BeatEvent(this, note, BeatEventType.NOTE_CREATED, null);
-        for (BeatListener listener : listenerList.getListeners(BeatListener.class)) {
-            listener.beatUpdate(ee);
-        }
+        note.addNoteChangeListener(noteHandler);
+        fireBeatUpdate(note, BeatEventType.NOTE_CREATED, null);
     }
 
     private void noteChange(NoteEvent e) {
         if (e.getType() == NoteEventType.REMOVED) {
-            e.getSource().removeNoteChangeListener(this::noteChange);
+            e.getSource().removeNoteChangeListener(noteHandler);
             noteList.remove(e.getSource());
         }
-        BeatEvent ee = new BeatEvent(this, e.getSource(), BeatEventType.PROPAGATION_NOTE_EVENTS, e);
-        for (BeatListener listener : listenerList.getListeners(BeatListener.class)) {
-            listener.beatUpdate(ee);
+        fireBeatUpdate(e.getSource(), BeatEventType.PROPAGATION_NOTE_EVENTS, e);
+    }
+
+    private void fireBeatUpdate(Note note, BeatEventType type, NoteEvent inner) {
+        if (listenerList.getListenerCount() == 0) {
+            return;
+        }
+        BeatEvent e = events.reuse();
+        if (e == null) {
+            e = new BeatEvent(this, note, type, inner);
+        } else {
+            e.reset(note, type, inner);
+        }
+        events.fire(this, e);
+    }
+
+    private void dispatchBeatUpdate(BeatEvent e) {
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == BeatListener.class) {
+                ((BeatListener) listeners[i + 1]).beatUpdate(e);
+            }
         }
     }
 
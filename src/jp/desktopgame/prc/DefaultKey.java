@@ -22,36 +22,77 @@ public class DefaultKey implements Key {
     private EventListenerList listenerList;
     private int height;
     private int beatCount;
+    private boolean sparse;
+    private EventRecycler<DefaultKey, KeyEvent> events;
 
     public DefaultKey(PianoRollModel model, int measureCount, int beatCount, int height) {
+        this(model, measureCount, beatCount, height, false);
+    }
+
+    /**
+     * 新しいキーを作成します. sparseがtrueなら小節は最初に参照されるまで作成されません。
+     *
+     * @param model
+     * @param measureCount
+     * @param beatCount
+     * @param height
+     * @param sparse
+     */
+    public DefaultKey(PianoRollModel model, int measureCount, int beatCount, int height, boolean sparse) {
         this.model = model;
         this.measureList = new ArrayList<>();
         this.listenerList = new EventListenerList();
+        this.events = new EventRecycler<>(DefaultKey::dispatchKeyUpdate);
         this.height = height;
         this.beatCount = beatCount;
+        this.sparse = sparse;
         for (int i = 0; i < measureCount; i++) {
             addMeasure(i);
         }
     }
 
     private void addMeasure(int index) {
+        if (sparse) {
+            measureList.add(null);
+        } else {
+            measureList.add(materializeMeasure(index));
+        }
+        fireKeyUpdate(KeyEventType.MEASURE_CREATED, null);
+    }
+
+    private Measure materializeMeasure(int index) {
         Measure m = createMeasure(index, beatCount);
-        measureList.add(m);
         m.addMeasureListener(this::measureUpdate);
-        KeyEvent ee = new KeyEvent(this, KeyEventType.MEASURE_CREATED, null);
-        for (KeyListener listener : listenerList.getListeners(KeyListener.class)) {
-            listener.keyUpdate(ee);
-        }
+        return m;
     }
 
     protected Measure createMeasure(int index, int beatCount) {
-        return new DefaultMeasure(this, index, beatCount);
+        return new DefaultMeasure(this, index, beatCount, sparse);
     }
 
     private void measureUpdate(MeasureEvent e) {
-        KeyEvent ee = new KeyEvent(this, KeyEventType.PROPAGATION_MEASURE_EVENTS, e);
-        for (KeyListener listener : listenerList.getListeners(KeyListener.class)) {
-            listener.keyUpdate(ee);
+        fireKeyUpdate(KeyEventType.PROPAGATION_MEASURE_EVENTS, e);
+    }
+
+    private void fireKeyUpdate(KeyEventType type, MeasureEvent inner) {
+        if (listenerList.getListenerCount() == 0) {
+            return;
+        }
+        KeyEvent e = events.reuse();
+        if (e == null) {
+            e = new KeyEvent(this, type, inner);
+        } else {
+            e.reset(type, inner);
+        }
+        events.fire(this, e);
+    }
+
+    private void dispatchKeyUpdate(KeyEvent e) {
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == KeyListener.class) {
+                ((KeyListener) listeners[i + 1]).keyUpdate(e);
+            }
         }
     }
 
@@ -79,18 +120,36 @@ public class DefaultKey implements Key {
     @Override
     public void shrinkMeasureCount(int measureCount) {
         while (measureCount != measureList.size()) {
-            measureList.remove(measureList.size() - 1);
-            KeyEvent ee = new KeyEvent(this, KeyEventType.MEASURE_REMOVED, null);
-            for (KeyListener listener : listenerList.getListeners(KeyListener.class)) {
-                listener.keyUpdate(ee);
+            Measure m = measureList.remove(measureList.size() - 1);
+            if (m != null) {
+                measureRemoved(m);
             }
+            fireKeyUpdate(KeyEventType.MEASURE_REMOVED, null);
         }
     }
 
+    /**
+     * 小節が取り除かれた直後に呼び出されます. 作成されていなかった小節では呼び出されません。
+     *
+     * @param measure
+     */
+    protected void measureRemoved(Measure measure) {
+    }
+
     @Override
     public Measure getMeasure(int i
     ) {
-        return measureList.get(i);
+        Measure m = measureList.get(i);
+        if (m == null) {
+            m = materializeMeasure(i);
+            measureList.set(i, m);
+        }
+        return m;
+    }
+
+    @Override
+    public boolean isMeasureMaterialized(int i) {
+        return measureList.get(i) != null;
     }
 
     @Override
@@ -98,6 +157,15 @@ public class DefaultKey implements Key {
         return measureList.size();
     }
 
+    /**
+     * 小節を必要になるまで作成しないならtrueを返します.
+     *
+     * @return
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
     @Override
     public int getIndex() {
         return height;
@@ -111,16 +179,20 @@ public class DefaultKey implements Key {
     @Override
     public void extentBeatCount(int beatCount) {
         for (Measure m : measureList) {
-            m.extentBeatCount(beatCount);
+            if (m != null) {
+                m.extentBeatCount(beatCount);
+            }
         }
-        this.beatCount = beatCount;
+        this.beatCount = Math.max(beatCount, this.beatCount);
     }
 
     @Override
     public void shrinkBeatCount(int beatCount) {
         for (Measure m : measureList) {
-            m.shrinkBeatCount(beatCount);
+            if (m != null) {
+                m.shrinkBeatCount(beatCount);
+            }
         }
-        this.beatCount = beatCount;
+        this.beatCount = Math.min(beatCount, this.beatCount);
     }
 }
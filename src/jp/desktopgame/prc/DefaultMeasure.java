@@ -21,26 +21,46 @@ public class DefaultMeasure implements Measure {
     private int index;
     private ArrayList<Beat> beatList;
     private EventListenerList listenerList;
+    private boolean sparse;
+    private EventRecycler<DefaultMeasure, MeasureEvent> events;
 
     public DefaultMeasure(Key key, int index, int beatCount) {
+        this(key, index, beatCount, false);
+    }
+
+    /**
+     * 新しい小節を作成します. sparseがtrueなら拍は最初に参照されるまで作成されません。
+     *
+     * @param key
+     * @param index
+     * @param beatCount
+     * @param sparse
+     */
+    public DefaultMeasure(Key key, int index, int beatCount, boolean sparse) {
         this.key = key;
         this.index = index;
         this.beatList = new ArrayList<>();
         this.listenerList = new EventListenerList();
+        this.events = new EventRecycler<>(DefaultMeasure::dispatchMeasureUpdate);
+        this.sparse = sparse;
         for (int i = 0; i < beatCount; i++) {
             addBeat(i);
         }
     }
 
     private void addBeat(int index) {
+        if (sparse) {
+            beatList.add(null);
+        } else {
+            beatList.add(materializeBeat(index));
+        }
+        fireMeasureUpdate(MeasureEventType.BEAT_CREATED, null);
+    }
+
+    private Beat materializeBeat(int index) {
         Beat b = createBeat(index);
-        beatList.add(b);
         b.addBeatListener(this::beatUpdate);
-
-        MeasureEvent ee = new MeasureEvent(this, MeasureEventType.BEAT_CREATED, null);
-        for (MeasureListener listener : listenerList.getListeners(MeasureListener.class)) {
-            listener.measureUpdate(ee);
-        }
+        return b;
     }
 
     protected Beat createBeat(int index) {
@@ -48,9 +68,28 @@ public class DefaultMeasure implements Measure {
     }
 
     private void beatUpdate(BeatEvent e) {
-        MeasureEvent ee = new MeasureEvent(this, MeasureEventType.PROPAGATION_BEAT_EVENTS, e);
-        for (MeasureListener listener : listenerList.getListeners(MeasureListener.class)) {
-            listener.measureUpdate(ee);
+        fireMeasureUpdate(MeasureEventType.PROPAGATION_BEAT_EVENTS, e);
+    }
+
+    private void fireMeasureUpdate(MeasureEventType type, BeatEvent inner) {
+        if (listenerList.getListenerCount() == 0) {
+            return;
+        }
+        MeasureEvent e = events.reuse();
+        if (e == null) {
+            e = new MeasureEvent(this, type, inner);
+        } else {
+            e.reset(type, inner);
+        }
+        events.fire(this, e);
+    }
+
+    private void dispatchMeasureUpdate(MeasureEvent e) {
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == MeasureListener.class) {
+                ((MeasureListener) listeners[i + 1]).measureUpdate(e);
+            }
         }
     }
 
@@ -75,18 +114,36 @@ public class DefaultMeasure implements Measure {
 
     @Override
     public void shrinkBeatCount(int beatCount) {
-        while (beatCount != this.beatList.size()) {
-            beatList.remove(beatList.size() - 1);
-            MeasureEvent ee = new MeasureEvent(this, MeasureEventType.BEAT_REMOVED, null);
-            for (MeasureListener listener : listenerList.getListeners(MeasureListener.class)) {
-                listener.measureUpdate(ee);
+        while (this.beatList.size() > beatCount) {
+            Beat b = beatList.remove(beatList.size() - 1);
+            if (b != null) {
+                beatRemoved(b);
             }
+            fireMeasureUpdate(MeasureEventType.BEAT_REMOVED, null);
         }
     }
 
+    /**
+     * 拍が取り除かれた直後に呼び出されます. 作成されていなかった拍では呼び出されません。
+     *
+     * @param beat
+     */
+    protected void beatRemoved(Beat beat) {
+    }
+
     @Override
     public Beat getBeat(int i) {
-        return beatList.get(i);
+        Beat b = beatList.get(i);
+        if (b == null) {
+            b = materializeBeat(i);
+            beatList.set(i, b);
+        }
+        return b;
+    }
+
+    @Override
+    public boolean isBeatMaterialized(int i) {
+        return beatList.get(i) != null;
     }
 
     @Override
@@ -22,6 +22,8 @@ public class DefaultNote implements Note {
     private boolean selected;
     private int offset;
     private float length;
+    private NoteEvent event;
+    private boolean firing;
 
     public DefaultNote(Beat beat, int offset, float length) {
         this.beat = beat;
@@ -42,16 +44,39 @@ public class DefaultNote implements Note {
         listenerList.remove(NoteListener.class, listener);
     }
 
+    private void fireNoteChange(NoteEventType type, boolean hasValue, double oldValue, double newValue) {
+        Object[] listeners = listenerList.getListenerList();
+        if (listeners.length == 0) {
+            return;
+        }
+        // 通知の途中で同じノートが変更された場合は、外側の通知中のイベントを書き換えないように新しく作る
+        NoteEvent e = firing || event == null ? new NoteEvent(this, type) : event;
+        e.reset(this, type, hasValue, oldValue, newValue);
+        boolean outer = !firing;
+        if (outer) {
+            this.event = e;
+            this.firing = true;
+        }
+        try {
+            for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                if (listeners[i] == NoteListener.class) {
+                    ((NoteListener) listeners[i + 1]).noteChange(e);
+                }
+            }
+        } finally {
+            if (outer) {
+                this.firing = false;
+            }
+        }
+    }
+
     @Override
     public void setSelected(boolean selected) {
         if (this.selected == selected) {
             return;
         }
         this.selected = selected;
-        NoteEvent e = new NoteEvent(this, NoteEventType.SELECTION_CHANGE, !selected, selected);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.SELECTION_CHANGE, true, selected ? 0 : 1, selected ? 1 : 0);
     }
 
     @Override
@@ -63,10 +88,7 @@ public class DefaultNote implements Note {
     public void setOffset(int offset) {
         int old = this.offset;
         this.offset = offset;
-        NoteEvent e = new NoteEvent(this, NoteEventType.OFFSET_CHANGE, old, offset);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.OFFSET_CHANGE, true, old, offset);
     }
 
     @Override
@@ -76,12 +98,9 @@ public class DefaultNote implements Note {
 
     @Override
     public void setLength(float length) {
-        float len = length;
+        float old = this.length;
         this.length = length;
-        NoteEvent e = new NoteEvent(this, NoteEventType.LENGTH_CHANGE, len, length);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.LENGTH_CHANGE, true, old, length);
     }
 
     @Override
@@ -91,18 +110,12 @@ public class DefaultNote implements Note {
 
     @Override
     public void play() {
-        NoteEvent e = new NoteEvent(this, NoteEventType.PLAY, null, null);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.PLAY, false, 0, 0);
     }
 
     @Override
     public void removeFromBeat() {
-        NoteEvent e = new NoteEvent(this, NoteEventType.REMOVED);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.REMOVED, false, 0, 0);
     }
 
     @Override
@@ -111,10 +124,7 @@ public class DefaultNote implements Note {
             return;
         }
         this.isTrigger = isTrigger;
-        NoteEvent e = new NoteEvent(this, NoteEventType.TRIGGER_CHANGE, !isTrigger, isTrigger);
-        for (NoteListener listener : listenerList.getListeners(NoteListener.class)) {
-            listener.noteChange(e);
-        }
+        fireNoteChange(NoteEventType.TRIGGER_CHANGE, true, isTrigger ? 0 : 1, isTrigger ? 1 : 0);
     }
 
     @Override
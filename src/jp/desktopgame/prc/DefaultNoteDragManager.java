@@ -86,20 +86,19 @@ public class DefaultNoteDragManager implements NoteDragManager {
     public void stop() {
         int diffX = (this.getCurrentX() - this.getBaseX());
         int diffY = (this.getCurrentY() - this.getBaseY());
-        for (Note note : this.getTargets()) {
-            Rectangle rect = ui.getNoteRect(note);
-            rect.x += diffX;
-            rect.y += diffY;
-            Optional<Measure> measureOpt = ui.getMeasureAt(rect.x, rect.y);
-            measureOpt.ifPresent((Measure measure) -> {
-                int xOffset = ui.measureIndexToXOffset(measure.getIndex());
-                xOffset += ui.getPianoRoll().getBeatWidth() * ui.getRelativeBeatIndex(rect.x);
-                measure.getBeat(ui.getRelativeBeatIndex(rect.x)).generateNote(rect.x - xOffset, note.getLength());
-            });
-            if (measureOpt.isPresent()) {
-                note.removeFromBeat();
+        ui.getPianoRoll().getModel().batch((editor) -> {
+            for (Note note : this.getTargets()) {
+                Rectangle rect = ui.getNoteRect(note);
+                rect.x += diffX;
+                rect.y += diffY;
+                Optional<Measure> measureOpt = ui.getMeasureAt(rect.x, rect.y);
+                measureOpt.ifPresent((Measure measure) -> {
+                    int xOffset = ui.measureIndexToXOffset(measure.getIndex());
+                    xOffset += ui.getPianoRoll().getBeatWidth() * ui.getRelativeBeatIndex(rect.x);
+                    editor.moveNote(note, measure.getBeat(ui.getRelativeBeatIndex(rect.x)), rect.x - xOffset);
+                });
             }
-        }
+        });
         dragTargets.clear();
         this.hasFocus = false;
         NoteDragEvent e = new NoteDragEvent(this);
@@ -9,15 +9,14 @@
 package jp.desktopgame.prc;
 
 import java.util.ArrayList;
-import java.util.Optional;
+import java.util.List;
+import java.util.function.Consumer;
 import javax.swing.event.EventListenerList;
 import javax.swing.event.UndoableEditListener;
+import javax.swing.undo.UndoableEdit;
 import javax.swing.undo.UndoableEditSupport;
-import jp.desktopgame.prc.undo.NoteCreateEdit;
-import jp.desktopgame.prc.undo.NoteLengthEdit;
-import jp.desktopgame.prc.undo.NoteOffsetEdit;
-import jp.desktopgame.prc.undo.NoteRemoveEdit;
-import jp.desktopgame.prc.undo.NoteSelectEdit;
+import jp.desktopgame.prc.undo.ModelSnapshot;
+import jp.desktopgame.prc.undo.UndoJournal;
 
 /**
  *
@@ -30,14 +29,41 @@ public class DefaultPianoRollModel implements PianoRollModel {
     private int measureCount;
     private int beatCount;
     private UndoableEditSupport ues;
+    private UndoJournal undoJournal;
     private int undoableEditStack;
+    private int undoableEditListenerCount;
+    private int compoundDepth;
+    private boolean sparse;
+    private List<PianoRollModelEvent> batchEvents;
+    private int batchDepth;
+    private int bulkDepth;
+    private long firedEventCount;
+    private EventRecycler<DefaultPianoRollModel, PianoRollModelEvent> events;
 
     public DefaultPianoRollModel(int keyCount, int measureCount, int beatCount) {
+        this(keyCount, measureCount, beatCount, false);
+    }
+
+    /**
+     * 新しいモデルを作成します.
+     * <br>
+     * sparseがtrueなら小節と拍はノートの生成や参照によって初めて必要になった時点で作成されるので、<br>
+     * メモリの使用量と作成にかかる時間は格子の大きさではなくノートの数に比例します。
+     *
+     * @param keyCount
+     * @param measureCount
+     * @param beatCount
+     * @param sparse
+     */
+    public DefaultPianoRollModel(int keyCount, int measureCount, int beatCount, boolean sparse) {
+        this.sparse = sparse;
         this.keyList = new ArrayList<>();
         this.listenerList = new EventListenerList();
+        this.events = new EventRecycler<>(DefaultPianoRollModel::firePianoRollModelUpdate);
         this.measureCount = measureCount;
         this.beatCount = beatCount;
-        this.ues = new UndoableEditSupport();
+        this.ues = new UndoableEditSupport(this);
+        this.undoJournal = new UndoJournal(this);
         for (int i = 0; i < keyCount; i++) {
             addKey(i);
         }
@@ -49,61 +75,195 @@ public class DefaultPianoRollModel implements PianoRollModel {
         k.addKeyListener(this::keyUpdate);
         PianoRollModelEvent ee = new PianoRollModelEvent(this, PianoRollModelEventType.KEY_CREATED, null);
         postUndoableEdit(ee);
-        for (PianoRollModelListener listener : listenerList.getListeners(PianoRollModelListener.class)) {
-            listener.pianoRollModelUpdate(ee);
-        }
+        firePianoRollModelUpdate(ee);
     }
 
     protected Key createKey(int measureCount, int beatCount, int height) {
-        return new DefaultKey(this, measureCount, beatCount, height + 1);
+        return new DefaultKey(this, measureCount, beatCount, height + 1, sparse);
+    }
+
+    /**
+     * キーが取り除かれた直後に呼び出されます.
+     *
+     * @param key
+     */
+    protected void keyRemoved(Key key) {
     }
 
     private void keyUpdate(KeyEvent e) {
-        PianoRollModelEvent ee = new PianoRollModelEvent(this, PianoRollModelEventType.PROPAGATION_KEY_EVENTS, e);
+        if (bulkDepth > 0) {
+            return;
+        }
+        if (batchDepth > 0) {
+            // まとめて通知するまで保持するので、再利用されるイベントは複製しておく
+            PianoRollModelEvent ee = new PianoRollModelEvent(this, PianoRollModelEventType.PROPAGATION_KEY_EVENTS, e.copy());
+            postUndoableEdit(ee);
+            batchEvents.add(ee);
+            return;
+        }
+        PianoRollModelEvent ee = events.reuse();
+        if (ee == null) {
+            ee = new PianoRollModelEvent(this, PianoRollModelEventType.PROPAGATION_KEY_EVENTS, e);
+        } else {
+            ee.reset(PianoRollModelEventType.PROPAGATION_KEY_EVENTS, e);
+        }
         postUndoableEdit(ee);
-        for (PianoRollModelListener listener : listenerList.getListeners(PianoRollModelListener.class)) {
-            listener.pianoRollModelUpdate(ee);
+        events.fire(this, ee);
+    }
+
+    @Override
+    public void batch(Consumer<BatchEditor> c) {
+        if (batchDepth == 0) {
+            this.batchEvents = new ArrayList<>();
+        }
+        batchDepth++;
+        // Undo/Redoの適用中は空の変更を記録しないようにする
+        boolean record = undoableEditStack == 0;
+        if (record) {
+            beginCompoundUndoableEdit();
+        }
+        try {
+            c.accept(new DefaultBatchEditor());
+        } finally {
+            if (record) {
+                endCompoundUndoableEdit();
+            }
+            batchDepth--;
+        }
+        if (batchDepth == 0) {
+            List<PianoRollModelEvent> events = batchEvents;
+            this.batchEvents = null;
+            if (!events.isEmpty()) {
+                firePianoRollModelUpdate(new PianoRollModelEvent(this, PianoRollModelEventType.BATCH_UPDATE, null, events));
+            }
         }
     }
 
-    private void postUndoableEdit(PianoRollModelEvent e) {
-        if (undoableEditStack > 0) {
-            return;
+    @Override
+    public void bulkLoad(Consumer<BatchEditor> c) {
+        bulkDepth++;
+        undoableEditStack++;
+        try {
+            c.accept(new DefaultBatchEditor());
+        } finally {
+            undoableEditStack--;
+            bulkDepth--;
         }
-        Optional<BeatEvent> beOpt = e.getBeatEvent();
-        if (beOpt.isPresent()) {
-            BeatEvent be = beOpt.get();
-            if (be.getBeatEventType() == BeatEventType.NOTE_CREATED) {
-                ues.postEdit(new NoteCreateEdit(this, be.getSource(), be.getNote()));
-                return;
+        if (bulkDepth == 0) {
+            firePianoRollModelUpdate(new PianoRollModelEvent(this, PianoRollModelEventType.BULK_LOAD, null));
+        }
+    }
+
+    /**
+     * リスナーに通知したイベントの数を返します. BATCH_UPDATEは一つとして数えます。
+     *
+     * @return
+     */
+    public long getFiredEventCount() {
+        return firedEventCount;
+    }
+
+    /**
+     * イベントの通知と変更の記録を止めます. サブクラスが遅延して読み込んだノートを追加する場合に使用します。
+     */
+    protected void beginSilentUpdate() {
+        bulkDepth++;
+        undoableEditStack++;
+    }
+
+    /**
+     * イベントの通知と変更の記録を再開します. 止めていた間のイベントは通知されません。
+     */
+    protected void endSilentUpdate() {
+        undoableEditStack--;
+        bulkDepth--;
+    }
+
+    protected void firePianoRollModelUpdate(PianoRollModelEvent e) {
+        // 記録が無効な場合は、通知のたびにイベントを作成しない
+        ModelUpdateFlightEvent event = ModelUpdateFlightEvent.isTypeEnabled() ? new ModelUpdateFlightEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        // getListenersは配列を複製するので、内部の配列を直接走査する
+        Object[] listeners = listenerList.getListenerList();
+        int count = 0;
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == PianoRollModelListener.class) {
+                ((PianoRollModelListener) listeners[i + 1]).pianoRollModelUpdate(e);
+                count++;
             }
         }
-        Optional<NoteEvent> noOpt = e.getNoteEvent();
-        if (noOpt.isPresent()) {
-            NoteEvent no = noOpt.get();
-            Optional<Object> o = no.getOldValue();
-            Optional<Object> n = no.getNewValue();
-            if (no.getType() == NoteEventType.REMOVED) {
-                ues.postEdit(new NoteRemoveEdit(this, no.getSource().getBeat(), no.getSource()));
-            } else if (no.getType() == NoteEventType.OFFSET_CHANGE) {
-                ues.postEdit(new NoteOffsetEdit(this, no.getSource(), (int) o.get()));
-            } else if (no.getType() == NoteEventType.LENGTH_CHANGE) {
-                ues.postEdit(new NoteLengthEdit(this, no.getSource(), (float) o.get()));
-            } else if (no.getType() == NoteEventType.SELECTION_CHANGE) {
-                ues.postEdit(new NoteSelectEdit(this, no.getSource()));
+        this.firedEventCount++;
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.eventType = e.getType().name();
+                event.listenerCount = count;
+                event.batchSize = e.getType() == PianoRollModelEventType.BATCH_UPDATE ? e.getBatchEvents().size() : 0;
+                event.commit();
             }
+        }
+    }
+
+    private void postUndoableEdit(PianoRollModelEvent e) {
+        // 受け取るリスナーがいなければ、記録しても破棄されることがないので記録しない
+        if (undoableEditStack > 0 || undoableEditListenerCount == 0) {
+            return;
+        }
+        BeatEvent be = e.peekBeatEvent();
+        NoteEvent no = e.peekNoteEvent();
+        if (be != null && be.getBeatEventType() == BeatEventType.NOTE_CREATED) {
+            undoJournal.recordCreate(be.getSource(), be.getNote());
+        } else if (no != null && no.getType() == NoteEventType.REMOVED) {
+            undoJournal.recordRemove(no.getSource().getBeat(), no.getSource());
+        } else if (no != null && no.getType() == NoteEventType.OFFSET_CHANGE) {
+            undoJournal.recordOffset(no.getSource(), no.getOldOffset(), no.getNewOffset());
+        } else if (no != null && no.getType() == NoteEventType.LENGTH_CHANGE) {
+            undoJournal.recordLength(no.getSource(), no.getOldLength(), no.getNewLength());
+        } else if (no != null && no.getType() == NoteEventType.SELECTION_CHANGE) {
+            undoJournal.recordSelection(no.getSource(), no.getSource().isSelected());
+        } else {
+            return;
+        }
+        // まとめている途中でなければ、一つの変更としてすぐに通知する
+        if (compoundDepth == 0) {
+            commitUndoableEdit();
+        }
+    }
+
+    private void commitUndoableEdit() {
+        UndoableEdit edit = undoJournal.commit();
+        if (edit == null) {
             return;
         }
+        if (undoableEditListenerCount == 0) {
+            // まとめている途中でリスナーが取り除かれた場合は、記録をすぐに解放する
+            edit.die();
+        } else {
+            ues.postEdit(edit);
+        }
+    }
+
+    /**
+     * 変更履歴を記録しているジャーナルを返します.
+     *
+     * @return
+     */
+    public UndoJournal getUndoJournal() {
+        return undoJournal;
     }
 
     @Override
     public void addUndoableEditListener(UndoableEditListener listener) {
         ues.addUndoableEditListener(listener);
+        this.undoableEditListenerCount = ues.getUndoableEditListeners().length;
     }
 
     @Override
     public void removeUndoableEditListener(UndoableEditListener listener) {
         ues.removeUndoableEditListener(listener);
+        this.undoableEditListenerCount = ues.getUndoableEditListeners().length;
     }
 
     @Override
@@ -118,55 +278,64 @@ public class DefaultPianoRollModel implements PianoRollModel {
 
     @Override
     public void extentKeyCount(int keyCount) {
-        int start = keyList.size();
-        while (keyList.size() < keyCount) {
-            addKey(start);
-            start++;
-        }
+        changeStructure(Math.max(keyCount, getKeyCount()), measureCount, beatCount, () -> {
+            int start = keyList.size();
+            while (keyList.size() < keyCount) {
+                addKey(start);
+                start++;
+            }
+        });
     }
 
     @Override
     public void shrinkKeyCount(int keyCount) {
-        while (keyCount != keyList.size()) {
-            keyList.remove(keyList.size() - 1);
-            PianoRollModelEvent ee = new PianoRollModelEvent(this, PianoRollModelEventType.KEY_CREATED, null);
-            postUndoableEdit(ee);
-            for (PianoRollModelListener listener : listenerList.getListeners(PianoRollModelListener.class)) {
-                listener.pianoRollModelUpdate(ee);
+        changeStructure(Math.min(keyCount, getKeyCount()), measureCount, beatCount, () -> {
+            while (keyList.size() > keyCount) {
+                keyRemoved(keyList.remove(keyList.size() - 1));
+                PianoRollModelEvent ee = new PianoRollModelEvent(this, PianoRollModelEventType.KEY_REMOVED, null);
+                firePianoRollModelUpdate(ee);
             }
-        }
+        });
     }
 
     @Override
     public void extentMeasureCount(int measureCount) {
-        for (Key k : keyList) {
-            k.extentMeasureCount(measureCount);
-        }
-        this.measureCount = measureCount;
+        changeStructure(getKeyCount(), Math.max(measureCount, this.measureCount), beatCount, () -> {
+            for (Key k : keyList) {
+                k.extentMeasureCount(measureCount);
+            }
+            this.measureCount = Math.max(measureCount, this.measureCount);
+        });
     }
 
     @Override
     public void shrinkMeasureCount(int measureCount) {
-        for (Key k : keyList) {
-            k.shrinkMeasureCount(measureCount);
-        }
-        this.measureCount = measureCount;
+        changeStructure(getKeyCount(), Math.min(measureCount, this.measureCount), beatCount, () -> {
+            for (Key k : keyList) {
+                k.shrinkMeasureCount(measureCount);
+            }
+            this.measureCount = Math.min(measureCount, this.measureCount);
+        });
     }
 
     @Override
     public void extentBeatCount(int beatCount) {
-        for (Key k : keyList) {
-            k.extentBeatCount(beatCount);
-        }
-        this.beatCount = beatCount;
+        changeStructure(getKeyCount(), measureCount, Math.max(beatCount, this.beatCount), () -> {
+            for (Key k : keyList) {
+                k.extentBeatCount(beatCount);
+            }
+            this.beatCount = Math.max(beatCount, this.beatCount);
+        });
     }
 
     @Override
     public void shrinkBeatCount(int beatCount) {
-        for (Key k : keyList) {
-            k.shrinkBeatCount(beatCount);
-        }
-        this.beatCount = beatCount;
+        changeStructure(getKeyCount(), measureCount, Math.min(beatCount, this.beatCount), () -> {
+            for (Key k : keyList) {
+                k.shrinkBeatCount(beatCount);
+            }
+            this.beatCount = Math.min(beatCount, this.beatCount);
+        });
     }
 
     @Override
@@ -180,28 +349,58 @@ public class DefaultPianoRollModel implements PianoRollModel {
 
     @Override
     public void resizeMeasureCount(int measureCount) {
-        for (Key k : keyList) {
-            if (k.getMeasureCount() < measureCount) {
-                k.extentMeasureCount(measureCount);
-            } else {
-                k.shrinkMeasureCount(measureCount);
+        changeStructure(getKeyCount(), measureCount, beatCount, () -> {
+            for (Key k : keyList) {
+                if (k.getMeasureCount() < measureCount) {
+                    k.extentMeasureCount(measureCount);
+                } else {
+                    k.shrinkMeasureCount(measureCount);
+                }
             }
-        }
+            this.measureCount = measureCount;
+        });
     }
 
     @Override
     public void resizeBeatCount(int beatCount) {
-        for (Key k : keyList) {
-            for (int i = 0; i < k.getMeasureCount(); i++) {
-                Measure m = k.getMeasure(i);
-                if (m.getBeatCount() < beatCount) {
-                    m.extentBeatCount(beatCount);
-                } else {
-                    m.shrinkBeatCount(beatCount);
-                }
+        changeStructure(getKeyCount(), measureCount, beatCount, () -> {
+            // 拍の数が既に大きい(小さい)小節はそれぞれ何もしないので、両方呼べば全ての小節が揃う
+            for (Key k : keyList) {
+                k.extentBeatCount(beatCount);
+                k.shrinkBeatCount(beatCount);
+            }
+            this.beatCount = beatCount;
+        });
+    }
+
+    /**
+     * キー/小節/拍の数を変更し、失われるノートと一緒に一つの変更として記録します.
+     *
+     * @param keyCount 変更後のキーの数
+     * @param measureCount 変更後の小節の数
+     * @param beatCount 変更後の拍の数
+     * @param change
+     */
+    private void changeStructure(int keyCount, int measureCount, int beatCount, Runnable change) {
+        // キーごとのイベントが途中の状態で通知されるので、全体を一つの変更としてまとめる
+        beginCompoundUndoableEdit();
+        try {
+            if (undoableEditStack > 0 || undoableEditListenerCount == 0 || (keyCount == getKeyCount() && measureCount == this.measureCount && beatCount == this.beatCount)) {
+                change.run();
+                return;
+            }
+            ModelSnapshot dropped = ModelSnapshot.captureDropped(this, keyCount, measureCount, beatCount);
+            // 個々のノートやキーの削除は記録せず、スナップショットから戻す
+            undoableEditStack++;
+            try {
+                change.run();
+            } finally {
+                undoableEditStack--;
             }
+            undoJournal.recordStructure(dropped);
+        } finally {
+            endCompoundUndoableEdit();
         }
-        this.beatCount = beatCount;
     }
 
     @Override
@@ -216,12 +415,42 @@ public class DefaultPianoRollModel implements PianoRollModel {
 
     @Override
     public void beginCompoundUndoableEdit() {
-        ues.beginUpdate();
+        compoundDepth++;
     }
 
     @Override
     public void endCompoundUndoableEdit() {
-        ues.endUpdate();
+        compoundDepth--;
+        if (compoundDepth == 0) {
+            commitUndoableEdit();
+        }
+    }
+
+    /**
+     * 小節と拍を必要になるまで作成しないならtrueを返します.
+     *
+     * @return
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * 小節の数を返します. 小節は作成されません。
+     *
+     * @return
+     */
+    public int getMeasureCount() {
+        return measureCount;
+    }
+
+    /**
+     * 小節あたりの拍の数を返します. 小節は作成されません。
+     *
+     * @return
+     */
+    public int getBeatCount() {
+        return beatCount;
     }
 
     @Override
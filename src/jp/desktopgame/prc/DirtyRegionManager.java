@@ -0,0 +1,133 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.awt.Rectangle;
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+
+/**
+ * 再描画が必要な領域をまとめて、一度の再描画にするクラスです.
+ * <br>
+ * 追加された領域は一つの矩形に統合され、現在のイベントの処理が終わった後に一度だけrepaintされます。<br>
+ * ノートの一括削除や貼り付けのように、一度に大量のイベントが発火する場合に使用します。<br>
+ * repaintの直前にChangeListenerに通知されるので、イベントごとではなく再描画ごとに一度だけキャッシュを無効にできます。<br>
+ *
+ * @author desktopgame
+ */
+public class DirtyRegionManager {
+
+    private JComponent component;
+    private Rectangle dirtyRegion;
+    private boolean completelyDirty;
+    private boolean scheduled;
+    private int flushCount;
+    private EventListenerList listenerList;
+
+    public DirtyRegionManager(JComponent component) {
+        this.component = component;
+        this.listenerList = new EventListenerList();
+    }
+
+    /**
+     * まとめられた領域を再描画する直前に発火されるイベントを監視するリスナーを追加します.
+     *
+     * @param listener
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listenerList.add(ChangeListener.class, listener);
+    }
+
+    /**
+     * まとめられた領域を再描画する直前に発火されるイベントを監視するリスナーを削除します.
+     *
+     * @param listener
+     */
+    public void removeChangeListener(ChangeListener listener) {
+        listenerList.remove(ChangeListener.class, listener);
+    }
+
+    protected void fireStateChanged(ChangeEvent e) {
+        for (ChangeListener listener : listenerList.getListeners(ChangeListener.class)) {
+            listener.stateChanged(e);
+        }
+    }
+
+    /**
+     * 再描画が必要な領域を追加します.
+     *
+     * @param rect
+     */
+    public void addDirtyRegion(Rectangle rect) {
+        if (rect.isEmpty()) {
+            return;
+        }
+        if (dirtyRegion == null) {
+            this.dirtyRegion = new Rectangle(rect);
+        } else {
+            dirtyRegion.add(rect);
+        }
+        schedule();
+    }
+
+    /**
+     * コンポーネント全体を再描画が必要な状態にします.
+     */
+    public void markCompletelyDirty() {
+        this.completelyDirty = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        this.scheduled = true;
+        SwingUtilities.invokeLater(this::flush);
+    }
+
+    /**
+     * まとめられた領域を直ちに再描画します.
+     */
+    public void flush() {
+        this.scheduled = false;
+        if (completelyDirty || dirtyRegion != null) {
+            fireStateChanged(new ChangeEvent(this));
+        }
+        if (completelyDirty) {
+            component.repaint();
+            this.flushCount++;
+        } else if (dirtyRegion != null) {
+            component.repaint(dirtyRegion);
+            this.flushCount++;
+        }
+        this.completelyDirty = false;
+        this.dirtyRegion = null;
+    }
+
+    /**
+     * まとめられた領域を再描画せずに破棄します. 予約済みのflushは何もしません。
+     */
+    public void discard() {
+        this.completelyDirty = false;
+        this.dirtyRegion = null;
+    }
+
+    /**
+     * これまでに実際に発行されたrepaintの回数を返します.
+     *
+     * @return
+     */
+    public int getFlushCount() {
+        return flushCount;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 通知のたびに作成されるイベントを再利用するクラスです.
+ * <br>
+ * 通知の途中で再び変更された場合は、外側の通知中のイベントを書き換えないように新しく作ります。<br>
+ *
+ * @author desktopgame
+ * @param <S> 通知するオブジェクト
+ * @param <E> イベント
+ */
+final class EventRecycler<S, E> {
+
+    private final BiConsumer<S, E> dispatcher;
+    private E event;
+    private boolean firing;
+
+    /**
+     * 新しいEventRecyclerを作成します.
+     *
+     * @param dispatcher リスナーにイベントを通知する関数
+     */
+    EventRecycler(BiConsumer<S, E> dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * 再利用できるイベントを返します.
+     * <br>
+     * まだ一度も通知していないか、通知の途中であればnullを返すので、呼び出し側で新しく作成します。<br>
+     *
+     * @return
+     */
+    E reuse() {
+        return firing ? null : event;
+    }
+
+    /**
+     * イベントを通知します.
+     * <br>
+     * 通知の途中でなければ、このイベントを次の通知で再利用します。<br>
+     *
+     * @param source
+     * @param e
+     */
+    void fire(S source, E e) {
+        if (firing) {
+            dispatcher.accept(source, e);
+            return;
+        }
+        this.event = e;
+        this.firing = true;
+        try {
+            dispatcher.accept(source, e);
+        } finally {
+            this.firing = false;
+        }
+    }
+}
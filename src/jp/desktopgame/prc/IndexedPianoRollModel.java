@@ -0,0 +1,66 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.List;
+
+/**
+ * ノートの索引を持つPianoRollModelの実装です.
+ * <br>
+ * キー/小節/拍の構造はDefaultPianoRollModelと同じですが、<br>
+ * 全てのノートや選択中のノートの取得はNoteIndexを通して行うので、空の拍を走査しません。<br>
+ *
+ * @author desktopgame
+ */
+public class IndexedPianoRollModel extends DefaultPianoRollModel {
+
+    private NoteIndex noteIndex;
+
+    public IndexedPianoRollModel(int keyCount, int measureCount, int beatCount) {
+        this(keyCount, measureCount, beatCount, false);
+    }
+
+    public IndexedPianoRollModel(int keyCount, int measureCount, int beatCount, boolean sparse) {
+        super(keyCount, measureCount, beatCount, sparse);
+        this.noteIndex = new NoteIndex(this);
+    }
+
+    @Override
+    protected void firePianoRollModelUpdate(PianoRollModelEvent e) {
+        // リスナーが索引を参照できるように先に更新する
+        if (noteIndex != null) {
+            noteIndex.pianoRollModelUpdate(e);
+        }
+        super.firePianoRollModelUpdate(e);
+    }
+
+    /**
+     * このモデルの索引を返します.
+     *
+     * @return
+     */
+    public NoteIndex getNoteIndex() {
+        return noteIndex;
+    }
+
+    @Override
+    public List<Note> getAllNotes() {
+        return noteIndex.getAllNotes();
+    }
+
+    @Override
+    public List<Note> getSelectedNotes() {
+        return noteIndex.getSelectedNotes();
+    }
+
+    @Override
+    public void clearAllSelection() {
+        noteIndex.clearAllSelection();
+    }
+}
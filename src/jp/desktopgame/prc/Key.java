@@ -58,6 +58,18 @@ public interface Key {
      */
     public int getMeasureCount();
 
+    /**
+     * 指定位置の小節が既に作成されているならtrueを返します.
+     * <br>
+     * 小節を必要になるまで作成しない実装では、走査の際にこのメソッドで空の小節を読み飛ばせます。
+     *
+     * @param i
+     * @return
+     */
+    public default boolean isMeasureMaterialized(int i) {
+        return true;
+    }
+
     /**
      * このキーの位置を返します.
      *
@@ -79,4 +91,14 @@ public interface Key {
         }
         return ml;
     }
+
+    public default List<Measure> copyMaterializedMeasureList() {
+        ArrayList<Measure> ml = new ArrayList<>();
+        for (int i = 0; i < getMeasureCount(); i++) {
+            if (isMeasureMaterialized(i)) {
+                ml.add(getMeasure(i));
+            }
+        }
+        return ml;
+    }
 }
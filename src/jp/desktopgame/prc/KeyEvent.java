@@ -18,12 +18,26 @@ import java.util.Optional;
 public class KeyEvent extends EventObject {
 
     private KeyEventType type;
-    private Optional<MeasureEvent> innerEvent;
+    private MeasureEvent innerEvent;
 
     public KeyEvent(Key o, KeyEventType type, MeasureEvent innerEvent) {
         super(o);
         this.type = type;
-        this.innerEvent = Optional.ofNullable(innerEvent);
+        this.innerEvent = innerEvent;
+    }
+
+    void reset(KeyEventType type, MeasureEvent innerEvent) {
+        this.type = type;
+        this.innerEvent = innerEvent;
+    }
+
+    /**
+     * 内側のイベントも含めて複製した新しいイベントを返します.
+     *
+     * @return
+     */
+    public KeyEvent copy() {
+        return new KeyEvent(getSource(), type, innerEvent == null ? null : innerEvent.copy());
     }
 
     @Override
@@ -36,6 +50,10 @@ public class KeyEvent extends EventObject {
     }
 
     public Optional<MeasureEvent> getInnerEvent() {
+        return Optional.ofNullable(innerEvent);
+    }
+
+    MeasureEvent peekInnerEvent() {
         return innerEvent;
     }
 }
@@ -0,0 +1,152 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 一つのキーのノートを写し取った変更できない値です.
+ * <br>
+ * ノートは拍の絶対位置とオフセットの順に並べられ、列ごとのプリミティブ配列に保持されます。<br>
+ * 作成された後は変更されないので、どのスレッドからでもロックせずに参照できます。<br>
+ *
+ * @author desktopgame
+ * @see PianoRollSnapshot
+ */
+public final class KeySnapshot {
+
+    static final KeySnapshot EMPTY = new KeySnapshot(new int[0], new int[0], new float[0], new int[0], new boolean[0]);
+
+    private final int[] beatPositions;
+    private final int[] offsets;
+    private final float[] lengths;
+    private final int[] velocities;
+    private final boolean[] selections;
+
+    private KeySnapshot(int[] beatPositions, int[] offsets, float[] lengths, int[] velocities, boolean[] selections) {
+        this.beatPositions = beatPositions;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.velocities = velocities;
+        this.selections = selections;
+    }
+
+    /**
+     * キーのノートを写し取ります. モデルを変更するスレッドから呼び出す必要があります。
+     *
+     * @param key
+     * @return
+     */
+    static KeySnapshot capture(Key key) {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < key.getMeasureCount(); i++) {
+            if (!key.isMeasureMaterialized(i)) {
+                continue;
+            }
+            Measure measure = key.getMeasure(i);
+            for (int j = 0; j < measure.getBeatCount(); j++) {
+                if (!measure.isBeatMaterialized(j)) {
+                    continue;
+                }
+                Beat beat = measure.getBeat(j);
+                for (int k = 0; k < beat.getNoteCount(); k++) {
+                    notes.add(beat.getNote(k));
+                }
+            }
+        }
+        int n = notes.size();
+        if (n == 0) {
+            return EMPTY;
+        }
+        // 位置とオフセットを一つのlongに詰めて並べ替える
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            Note note = notes.get(i);
+            long pos = ((long) NoteIndex.toBeatPosition(note.getBeat()) << 16) + note.getOffset();
+            order[i] = (pos << 24) | i;
+        }
+        Arrays.sort(order);
+        int[] beatPositions = new int[n];
+        int[] offsets = new int[n];
+        float[] lengths = new float[n];
+        int[] velocities = new int[n];
+        boolean[] selections = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            Note note = notes.get((int) (order[i] & 0xFFFFFF));
+            beatPositions[i] = NoteIndex.toBeatPosition(note.getBeat());
+            offsets[i] = note.getOffset();
+            lengths[i] = note.getLength();
+            velocities[i] = note instanceof PackedNote ? ((PackedNote) note).getVelocity() : PackedNoteStore.VELOCITY_DEFAULT;
+            selections[i] = note.isSelected();
+        }
+        return new KeySnapshot(beatPositions, offsets, lengths, velocities, selections);
+    }
+
+    /**
+     * ノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return beatPositions.length;
+    }
+
+    /**
+     * 指定位置のノートが含まれる拍の絶対位置を返します.
+     *
+     * @param i
+     * @return
+     * @see NoteIndex#toBeatPosition(jp.desktopgame.prc.Beat)
+     */
+    public int getBeatPosition(int i) {
+        return beatPositions[i];
+    }
+
+    /**
+     * 指定位置のノートの拍の中でのオフセットを返します.
+     *
+     * @param i
+     * @return
+     */
+    public int getOffset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * 指定位置のノートの長さを返します.
+     *
+     * @param i
+     * @return
+     */
+    public float getLength(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * 指定位置のノートのベロシティを返します.
+     *
+     * @param i
+     * @return
+     */
+    public int getVelocity(int i) {
+        return velocities[i];
+    }
+
+    /**
+     * 指定位置のノートが選択されていたならtrueを返します.
+     *
+     * @param i
+     * @return
+     */
+    public boolean isSelected(int i) {
+        return selections[i];
+    }
+}
@@ -8,6 +8,10 @@
  */
 package jp.desktopgame.prc;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -54,4 +58,61 @@ public class MIDI {
         }
         return r;
     }
+
+    /**
+     * モデルをスタンダードMIDIファイルとしてストリームに書き出します. ノートの一覧は作成されません。
+     *
+     * @param model
+     * @param out
+     * @param format
+     * @param channel
+     * @param timebase
+     * @param velocity
+     * @param beatWidth
+     * @throws IOException
+     */
+    public static void writeMidiFile(PianoRollModel model, OutputStream out, int format, int channel, int timebase, int velocity, int beatWidth) throws IOException {
+        MidiFileWriter w = new MidiFileWriter(format, timebase, beatWidth);
+        w.setChannel(channel);
+        w.setVelocity(velocity);
+        w.write(model, out);
+    }
+
+    /**
+     * モデルをスタンダードMIDIファイルとしてチャンネルに書き出します. ノートの一覧は作成されません。
+     *
+     * @param model
+     * @param ch
+     * @param format
+     * @param channel
+     * @param timebase
+     * @param velocity
+     * @param beatWidth
+     * @throws IOException
+     */
+    public static void writeMidiFile(PianoRollModel model, WritableByteChannel ch, int format, int channel, int timebase, int velocity, int beatWidth) throws IOException {
+        MidiFileWriter w = new MidiFileWriter(format, timebase, beatWidth);
+        w.setChannel(channel);
+        w.setVelocity(velocity);
+        w.write(model, ch);
+    }
+
+    /**
+     * スタンダードMIDIファイルを読み込んで、モデルにノートを追加します. 追加したノートの数を返します。
+     * <br>
+     * ノートはPianoRollModel#bulkLoadで追加されるので、この変更をUndoすることはできません。<br>
+     *
+     * @param model
+     * @param in
+     * @param channel 読み込むチャンネル. -1なら全てのチャンネル
+     * @param beatWidth
+     * @return
+     * @throws IOException
+     */
+    public static int importInto(PianoRollModel model, InputStream in, int channel, int beatWidth) throws IOException {
+        MidiFileReader r = new MidiFileReader(beatWidth);
+        r.setChannel(channel);
+        r.read(model, in);
+        return r.getNoteCount();
+    }
 }
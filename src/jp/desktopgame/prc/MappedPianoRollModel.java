@@ -0,0 +1,270 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * メモリにマップしたプロジェクトファイルから、キーごとに遅延してノートを読み込むPianoRollModelの実装です.
+ * <br>
+ * 作成した時点ではキーの表だけが読まれ、小節や拍、ノートは作成されません。<br>
+ * キーのノートは、そのキーの小節が初めて参照された時点でブロックから復号されます。<br>
+ * 遅延した読み込みではイベントは通知されず、変更履歴にも記録されません。<br>
+ * 全てのノートを返すメソッドは、先に全てのキーを読み込みます。<br>
+ * 読み込まれていないキーのisMeasureMaterializedは、ブロックの位置の列だけを復号して、ノートのある小節かどうかを返します。<br>
+ * ブロックが不正な場合は、読み込んだ時点でUncheckedIOExceptionがスローされます。<br>
+ * マップしたファイルはモデルが回収されるまで開かれたままなので、Windowsでは同じファイルに上書き保存できません。<br>
+ *
+ * @author desktopgame
+ */
+public class MappedPianoRollModel extends PackedPianoRollModel {
+
+    private ByteBuffer buffer;
+    private int resolution;
+    private int beatWidth;
+    private int[] noteCounts;
+    private int[] blockLengths;
+    private long[] blockOffsets;
+    private BitSet[] measureMasks;
+
+    MappedPianoRollModel(ByteBuffer buffer, int keyCount, int measureCount, int beatCount, int resolution, int beatWidth, int[] noteCounts, int[] blockLengths, long[] blockOffsets) {
+        super(keyCount, measureCount, beatCount, true);
+        this.buffer = buffer;
+        this.resolution = resolution;
+        this.beatWidth = beatWidth;
+        this.noteCounts = noteCounts;
+        this.blockLengths = blockLengths;
+        this.blockOffsets = blockOffsets;
+        this.measureMasks = new BitSet[keyCount];
+    }
+
+    @Override
+    protected Key createKey(int measureCount, int beatCount, int height) {
+        return new MappedKey(this, measureCount, beatCount, height + 1);
+    }
+
+    /**
+     * 指定のキーのノートが既に読み込まれているならtrueを返します.
+     *
+     * @param keyIndex
+     * @return
+     */
+    public boolean isKeyLoaded(int keyIndex) {
+        return ((MappedKey) getKey(keyIndex)).loaded;
+    }
+
+    /**
+     * 全てのキーのノートを読み込みます.
+     */
+    public void loadAll() {
+        for (int i = 0; i < getKeyCount(); i++) {
+            ((MappedKey) getKey(i)).ensureLoaded();
+        }
+    }
+
+    /**
+     * 指定のキーのブロックをそのまま書き出せるならtrueを返します.
+     * <br>
+     * ファイルにブロックがあり、キーが変更されておらず、解像度が同じ場合です。<br>
+     *
+     * @param keyIndex
+     * @param resolution
+     * @return
+     */
+    boolean isKeyReusable(int keyIndex, int resolution) {
+        if (keyIndex >= noteCounts.length || resolution != this.resolution) {
+            return false;
+        }
+        return !((MappedKey) getKey(keyIndex)).modified;
+    }
+
+    ByteBuffer getKeyBlock(int keyIndex) {
+        ByteBuffer b = buffer.duplicate();
+        b.position((int) blockOffsets[keyIndex]);
+        b.limit((int) blockOffsets[keyIndex] + blockLengths[keyIndex]);
+        return b.slice();
+    }
+
+    int getKeyNoteCount(int keyIndex) {
+        return noteCounts[keyIndex];
+    }
+
+    @Override
+    public List<Note> getAllNotes() {
+        loadAll();
+        return super.getAllNotes();
+    }
+
+    @Override
+    public List<Note> getSelectedNotes() {
+        loadAll();
+        return super.getSelectedNotes();
+    }
+
+    private boolean hasNotesInMeasure(MappedKey key, int measureIndex) {
+        int keyIndex = key.getIndex() - 1;
+        if (keyIndex >= noteCounts.length || noteCounts[keyIndex] == 0) {
+            return false;
+        }
+        BitSet mask = measureMasks[keyIndex];
+        if (mask == null) {
+            // ノートを作らずに、位置の列だけからノートのある小節を求める
+            int[] ticks = readTicks(keyIndex);
+            mask = new BitSet();
+            for (int tick : ticks) {
+                mask.set(Math.max(0, Math.floorDiv(tick, resolution)) / key.beatCount);
+            }
+            measureMasks[keyIndex] = mask;
+        }
+        return mask.get(measureIndex);
+    }
+
+    private int[] readTicks(int keyIndex) {
+        try {
+            return ProjectReader.readColumn(getKeyBlock(keyIndex), noteCounts[keyIndex]);
+        } catch (IOException e) {
+            throw new UncheckedIOException("key " + keyIndex, e);
+        }
+    }
+
+    private void load(MappedKey key) {
+        int keyIndex = key.getIndex() - 1;
+        if (keyIndex >= noteCounts.length) {
+            return;
+        }
+        try {
+            load(key, keyIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("key " + keyIndex, e);
+        }
+        measureMasks[keyIndex] = null;
+    }
+
+    private void load(MappedKey key, int keyIndex) throws IOException {
+        int n = noteCounts[keyIndex];
+        ByteBuffer b = getKeyBlock(keyIndex);
+        int[] ticks = ProjectReader.readColumn(b, n);
+        int[] lengths = ProjectReader.readColumn(b, n);
+        int[] velocities = ProjectReader.readColumn(b, n);
+        // 全てのノートを検査してから作成するので、不正なブロックのノートが一部だけ作られることはない
+        long limit = (long) key.getMeasureCount() * key.beatCount * resolution;
+        for (int i = 0; i < n; i++) {
+            float length = Float.intBitsToFloat(lengths[i]);
+            if (ticks[i] < -resolution || ticks[i] >= limit) {
+                throw new IOException("note out of range: " + ticks[i]);
+            }
+            if (!(length >= 0) || Float.isInfinite(length)) {
+                throw new IOException("illegal note length: " + length);
+            }
+            if (velocities[i] < 0 || velocities[i] > 127) {
+                throw new IOException("illegal velocity: " + velocities[i]);
+            }
+        }
+        beginSilentUpdate();
+        try {
+            for (int i = 0; i < n; i++) {
+                // 負のオフセットで先頭の拍からはみ出したノートは、先頭の拍の負のオフセットに戻す
+                int beatPos = Math.max(0, Math.floorDiv(ticks[i], resolution));
+                int measureIndex = beatPos / key.beatCount;
+                int offset = (int) ((ticks[i] - ((long) beatPos * resolution)) * beatWidth / resolution);
+                Beat beat = key.getMeasure(measureIndex).getBeat(beatPos % key.beatCount);
+                Note note = beat.generateNote(offset, Float.intBitsToFloat(lengths[i]));
+                ((PackedNote) note).setVelocity(velocities[i]);
+            }
+        } finally {
+            endSilentUpdate();
+        }
+    }
+
+    private static class MappedKey extends PackedKey {
+
+        private boolean loaded;
+        private boolean loading;
+        private boolean modified;
+        private int beatCount;
+
+        public MappedKey(MappedPianoRollModel model, int measureCount, int beatCount, int height) {
+            super(model, measureCount, beatCount, height, true);
+            this.beatCount = beatCount;
+            addKeyListener((e) -> {
+                if (!loading) {
+                    this.modified = true;
+                }
+            });
+        }
+
+        private void ensureLoaded() {
+            MappedPianoRollModel model = (MappedPianoRollModel) getModel();
+            // スーパークラスのコンストラクタの中ではまだファイルが設定されていない
+            if (loaded || loading || model.buffer == null) {
+                return;
+            }
+            this.loading = true;
+            try {
+                model.load(this);
+                this.loaded = true;
+            } finally {
+                this.loading = false;
+            }
+        }
+
+        @Override
+        public Measure getMeasure(int i) {
+            ensureLoaded();
+            return super.getMeasure(i);
+        }
+
+        @Override
+        public boolean isMeasureMaterialized(int i) {
+            MappedPianoRollModel model = (MappedPianoRollModel) getModel();
+            if (loaded || loading || model.buffer == null) {
+                return super.isMeasureMaterialized(i);
+            }
+            return model.hasNotesInMeasure(this, i);
+        }
+
+        @Override
+        void releaseNotes() {
+            // 読み込まれていないキーのノートはストアに無い
+            if (loaded) {
+                super.releaseNotes();
+            }
+        }
+
+        @Override
+        public void extentMeasureCount(int measureCount) {
+            ensureLoaded();
+            super.extentMeasureCount(measureCount);
+        }
+
+        @Override
+        public void shrinkMeasureCount(int measureCount) {
+            ensureLoaded();
+            super.shrinkMeasureCount(measureCount);
+        }
+
+        @Override
+        public void extentBeatCount(int beatCount) {
+            ensureLoaded();
+            super.extentBeatCount(beatCount);
+            this.beatCount = beatCount;
+        }
+
+        @Override
+        public void shrinkBeatCount(int beatCount) {
+            ensureLoaded();
+            super.shrinkBeatCount(beatCount);
+            this.beatCount = beatCount;
+        }
+    }
+}
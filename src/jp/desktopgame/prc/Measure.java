@@ -51,6 +51,16 @@ public interface Measure {
      */
     public int getBeatCount();
 
+    /**
+     * 指定位置の拍が既に作成されているならtrueを返します.
+     *
+     * @param i
+     * @return
+     */
+    public default boolean isBeatMaterialized(int i) {
+        return true;
+    }
+
     public int getIndex();
 
     public Key getKey();
@@ -62,4 +72,14 @@ public interface Measure {
         }
         return bl;
     }
+
+    public default List<Beat> copyMaterializedBeatList() {
+        ArrayList<Beat> bl = new ArrayList<>();
+        for (int i = 0; i < this.getBeatCount(); i++) {
+            if (isBeatMaterialized(i)) {
+                bl.add(getBeat(i));
+            }
+        }
+        return bl;
+    }
 }
@@ -18,12 +18,26 @@ import java.util.Optional;
 public class MeasureEvent extends EventObject {
 
     private MeasureEventType type;
-    private Optional<BeatEvent> innerEvent;
+    private BeatEvent innerEvent;
 
     public MeasureEvent(Measure o, MeasureEventType type, BeatEvent innerEvent) {
         super(o);
         this.type = type;
-        this.innerEvent = Optional.ofNullable(innerEvent);
+        this.innerEvent = innerEvent;
+    }
+
+    void reset(MeasureEventType type, BeatEvent innerEvent) {
+        this.type = type;
+        this.innerEvent = innerEvent;
+    }
+
+    /**
+     * 内側のイベントも含めて複製した新しいイベントを返します.
+     *
+     * @return
+     */
+    public MeasureEvent copy() {
+        return new MeasureEvent(getSource(), type, innerEvent == null ? null : innerEvent.copy());
     }
 
     @Override
@@ -36,6 +50,10 @@ public class MeasureEvent extends EventObject {
     }
 
     public Optional<BeatEvent> getInnerEvent() {
+        return Optional.ofNullable(innerEvent);
+    }
+
+    BeatEvent peekInnerEvent() {
         return innerEvent;
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * MidiFileWriterがスタンダードMIDIファイルを書き出したことを表すJFRのイベントです.
+ *
+ * @author desktopgame
+ */
+@Name("jp.desktopgame.prc.MidiExport")
+@Label("MIDI Export")
+@Description("One standard MIDI file written by MidiFileWriter")
+@Category({"PianoRollComponent", "MIDI"})
+public final class MidiExportFlightEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(MidiExportFlightEvent.class);
+
+    /**
+     * このイベントの記録が有効ならtrueを返します. 無効な場合はイベントを作成する必要はありません。
+     *
+     * @return
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    @Label("Format")
+    public int format;
+
+    @Label("Track Count")
+    public int trackCount;
+
+    @Label("Track Bytes")
+    @Description("Total size of the track chunks")
+    @DataAmount
+    public long trackBytes;
+}
@@ -0,0 +1,347 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * スタンダードMIDIファイルを読み込んでPianoRollModelにノートを追加するクラスです.
+ * <br>
+ * ファイルは先頭から一度だけ読まれ、javax.sound.midiのSequenceやMidiEventは作成されません。<br>
+ * ノートオンとノートオフはチャンネルと音の高さごとのプリミティブなスタックで対応付けられます。<br>
+ * ノートはPianoRollModel#bulkLoadで追加されるので、ノートごとのイベントや変更履歴は作成されません。<br>
+ * ファイルの終わりまで読み込めた場合にだけモデルに追加するので、途中で失敗した場合はモデルは変更されません。<br>
+ * MThdとMTrk以外のチャンクは読み飛ばされます。<br>
+ *
+ * @author desktopgame
+ */
+public class MidiFileReader {
+
+    private int beatWidth;
+    private int channel;
+    private int noteCount;
+
+    public MidiFileReader(int beatWidth) {
+        this.beatWidth = beatWidth;
+        this.channel = -1;
+    }
+
+    /**
+     * 読み込むチャンネルを設定します. -1なら全てのチャンネルを読み込みます。
+     *
+     * @param channel
+     */
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * 最後の読み込みで追加されたノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * ストリームからスタンダードMIDIファイルを読み込んで、モデルにノートを追加します.
+     * <br>
+     * モデルの範囲を超える小節は追加され、範囲外の音の高さのノートは無視されます。<br>
+     * 例外がスローされた場合、モデルは変更されていません。<br>
+     * ストリームは閉じられません。<br>
+     *
+     * @param model
+     * @param in
+     * @throws IOException
+     */
+    public void read(PianoRollModel model, InputStream in) throws IOException {
+        this.noteCount = 0;
+        NoteBuffer notes = decode(new Decoder(new BufferedInputStream(in, 8192)));
+        model.bulkLoad((editor) -> {
+            NoteSink sink = new NoteSink(model, editor, notes.division);
+            for (int i = 0; i < notes.size; i++) {
+                sink.add(notes.pitches[i], notes.starts[i], notes.ends[i]);
+            }
+            this.noteCount = sink.count;
+        });
+    }
+
+    private NoteBuffer decode(Decoder d) throws IOException {
+        if (!d.readTag().equals("MThd")) {
+            throw new IOException("missing chunk: MThd");
+        }
+        int headerLength = d.readInt();
+        d.readShort();
+        int trackCount = d.readShort();
+        int division = d.readShort();
+        d.skip(headerLength - 6);
+        if ((division & 0x8000) != 0) {
+            throw new IOException("SMPTE time division is not supported");
+        }
+        NoteBuffer sink = new NoteBuffer(division);
+        PitchStacks stacks = new PitchStacks();
+        for (int i = 0; i < trackCount; i++) {
+            String tag = d.readTag();
+            long length = d.readInt() & 0xFFFFFFFFL;
+            if (!tag.equals("MTrk")) {
+                // 知らないチャンクは長さの分だけ読み飛ばす
+                d.skip(length);
+                i--;
+                continue;
+            }
+            long end = d.getPosition() + length;
+            long tick = 0;
+            int status = 0;
+            stacks.clear();
+            while (d.getPosition() < end) {
+                tick += d.readVarInt();
+                int b = d.read();
+                int running = status;
+                if (b >= 0x80) {
+                    status = b;
+                    b = -1;
+                } else if (status < 0x80 || status >= 0xF0) {
+                    throw new IOException("running status without status byte");
+                }
+                if (status == 0xFF) {
+                    // メタイベント
+                    d.read();
+                    d.skip(d.readVarInt());
+                    status = 0;
+                    continue;
+                }
+                if (status == 0xF0 || status == 0xF7) {
+                    // システムエクスクルーシブ
+                    d.skip(d.readVarInt());
+                    status = 0;
+                    continue;
+                }
+                if (status > 0xF0) {
+                    // システムコモン/リアルタイムメッセージはデータバイトを読み飛ばす
+                    // リアルタイムメッセージはランニングステータスを取り消さない
+                    d.skip(getSystemDataLength(status));
+                    status = status >= 0xF8 ? running : 0;
+                    continue;
+                }
+                int data1 = b >= 0 ? b : d.read();
+                int command = status & 0xF0;
+                if (command == 0xC0 || command == 0xD0) {
+                    continue;
+                }
+                int data2 = d.read();
+                int ch = status & 0x0F;
+                if (channel >= 0 && ch != channel) {
+                    continue;
+                }
+                if (command == 0x90 && data2 > 0) {
+                    stacks.push(ch, data1, tick);
+                } else if (command == 0x80 || command == 0x90) {
+                    long start = stacks.pop(ch, data1);
+                    if (start >= 0) {
+                        sink.add(data1, start, tick);
+                    }
+                }
+            }
+            // 閉じられていないノートはトラックの終わりで閉じる
+            for (int ch = 0; ch < 16; ch++) {
+                for (int pitch = 0; pitch < 128; pitch++) {
+                    long start;
+                    while ((start = stacks.pop(ch, pitch)) >= 0) {
+                        sink.add(pitch, start, tick);
+                    }
+                }
+            }
+        }
+        return sink;
+    }
+
+    private static int getSystemDataLength(int status) {
+        switch (status) {
+            case 0xF1:
+            case 0xF3:
+                return 1;
+            case 0xF2:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 読み込んだノートを、モデルに追加するまでティックのまま保持するクラスです.
+     */
+    private static final class NoteBuffer {
+
+        private final int division;
+        private int[] pitches;
+        private long[] starts;
+        private long[] ends;
+        private int size;
+
+        NoteBuffer(int division) {
+            this.division = division;
+            this.pitches = new int[256];
+            this.starts = new long[256];
+            this.ends = new long[256];
+        }
+
+        void add(int pitch, long start, long end) {
+            if (size == pitches.length) {
+                this.pitches = Arrays.copyOf(pitches, size * 2);
+                this.starts = Arrays.copyOf(starts, size * 2);
+                this.ends = Arrays.copyOf(ends, size * 2);
+            }
+            pitches[size] = pitch;
+            starts[size] = start;
+            ends[size] = end;
+            this.size++;
+        }
+    }
+
+    /**
+     * ティックで表されたノートを小節, 拍, オフセットに変換してモデルに追加するクラスです.
+     */
+    private class NoteSink {
+
+        private final PianoRollModel model;
+        private final BatchEditor editor;
+        private final int division;
+        private final int beatCount;
+        private int measureCount;
+        private int count;
+
+        NoteSink(PianoRollModel model, BatchEditor editor, int division) {
+            this.model = model;
+            this.editor = editor;
+            this.division = division;
+            Key key0 = model.getKey(0);
+            this.measureCount = key0.getMeasureCount();
+            this.beatCount = key0.getMeasure(0).getBeatCount();
+        }
+
+        void add(int pitch, long start, long end) {
+            int keyIndex = model.getKeyCount() - 1 - pitch;
+            if (keyIndex < 0 || keyIndex >= model.getKeyCount() || end <= start) {
+                return;
+            }
+            long beatPos = start / division;
+            int measureIndex = (int) (beatPos / beatCount);
+            int beatIndex = (int) (beatPos % beatCount);
+            int offset = (int) ((start % division) * beatWidth / division);
+            float length = (float) (end - start) / (float) division;
+            if (measureIndex >= measureCount) {
+                this.measureCount = measureIndex + 1;
+                model.extentMeasureCount(measureCount);
+            }
+            Beat beat = model.getKey(keyIndex).getMeasure(measureIndex).getBeat(beatIndex);
+            editor.generateNote(beat, offset, length);
+            this.count++;
+        }
+    }
+
+    /**
+     * チャンネルと音の高さごとに、ノートオンのティックを積むスタックです.
+     */
+    private static final class PitchStacks {
+
+        private final long[][] stacks;
+        private final int[] depths;
+
+        PitchStacks() {
+            this.stacks = new long[16 * 128][];
+            this.depths = new int[16 * 128];
+        }
+
+        void push(int ch, int pitch, long tick) {
+            int i = (ch * 128) + pitch;
+            long[] stack = stacks[i];
+            if (stack == null) {
+                stack = stacks[i] = new long[4];
+            } else if (depths[i] == stack.length) {
+                stack = stacks[i] = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[depths[i]++] = tick;
+        }
+
+        long pop(int ch, int pitch) {
+            int i = (ch * 128) + pitch;
+            if (depths[i] == 0) {
+                return -1;
+            }
+            return stacks[i][--depths[i]];
+        }
+
+        void clear() {
+            Arrays.fill(depths, 0);
+        }
+    }
+
+    /**
+     * 読み込んだバイト数を数えながらビッグエンディアンの値を読むクラスです.
+     */
+    private static final class Decoder {
+
+        private final InputStream in;
+        private long position;
+
+        Decoder(InputStream in) {
+            this.in = in;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            this.position++;
+            return b;
+        }
+
+        int readShort() throws IOException {
+            return (read() << 8) | read();
+        }
+
+        int readInt() throws IOException {
+            return (read() << 24) | (read() << 16) | (read() << 8) | read();
+        }
+
+        long readVarInt() throws IOException {
+            long v = 0;
+            int b;
+            do {
+                b = read();
+                v = (v << 7) | (b & 0x7F);
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        String readTag() throws IOException {
+            char[] tag = new char[4];
+            for (int i = 0; i < tag.length; i++) {
+                tag[i] = (char) read();
+            }
+            return new String(tag);
+        }
+
+        void skip(long n) throws IOException {
+            for (long i = 0; i < n; i++) {
+                read();
+            }
+        }
+    }
+}
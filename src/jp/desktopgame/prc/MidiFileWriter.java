@@ -0,0 +1,455 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * PianoRollModelをスタンダードMIDIファイル(フォーマット0/1)として書き出すクラスです.
+ * <br>
+ * ノートは小節と拍の順にモデルから直接取り出され、ティックの順に並べ替えながら書き出されます。<br>
+ * 保持するのは鳴っている途中のノートのイベントだけなので、ノートの数に関わらず使用するメモリは一定です。<br>
+ * トラックの長さはヘッダに先に書く必要があるため、同じ走査を二回行い、一回目で長さだけを数えます。<br>
+ * 複数のモデルを書き出す場合は、モデルごとのトラックをForkJoinPoolで並列に符号化してから順に書き出します。<br>
+ * 音の高さが0から127の範囲に無いノートはMIDIで表せないので書き出されません。<br>
+ *
+ * @author desktopgame
+ */
+public class MidiFileWriter {
+
+    private int format;
+    private int timebase;
+    private int beatWidth;
+    private int channel;
+    private int velocity;
+    private float bpm;
+    private ForkJoinPool pool;
+
+    public MidiFileWriter(int format, int timebase, int beatWidth) {
+        if (format != 0 && format != 1) {
+            throw new IllegalArgumentException("unsupported format: " + format);
+        }
+        this.format = format;
+        this.timebase = timebase;
+        this.beatWidth = beatWidth;
+        this.channel = 0;
+        this.velocity = 100;
+        this.bpm = 0;
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * ノートを書き出すチャンネルを設定します.
+     *
+     * @param channel 0から15
+     */
+    public void setChannel(int channel) {
+        if (channel < 0 || channel > 15) {
+            throw new IllegalArgumentException("illegal channel: " + channel);
+        }
+        this.channel = channel;
+    }
+
+    /**
+     * ノートのベロシティを設定します.
+     *
+     * @param velocity 1から127. 0のノートオンはノートオフとして扱われるので指定できません
+     */
+    public void setVelocity(int velocity) {
+        if (velocity < 1 || velocity > 127) {
+            throw new IllegalArgumentException("illegal velocity: " + velocity);
+        }
+        this.velocity = velocity;
+    }
+
+    /**
+     * テンポを設定します. 0以下ならテンポは書き出されません。
+     *
+     * @param bpm
+     */
+    public void setTempo(float bpm) {
+        this.bpm = bpm;
+    }
+
+    /**
+     * 複数のモデルを書き出すときにトラックを符号化するプールを設定します.
+     *
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * モデルをチャンネルに書き出します.
+     *
+     * @param model
+     * @param ch
+     * @throws IOException
+     */
+    public void write(PianoRollModel model, WritableByteChannel ch) throws IOException {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 8192);
+        write(model, out);
+        out.flush();
+    }
+
+    /**
+     * モデルをストリームに書き出します. ストリームは閉じられません。
+     *
+     * @param model
+     * @param out
+     * @throws IOException
+     */
+    public void write(PianoRollModel model, OutputStream out) throws IOException {
+        MidiExportFlightEvent event = MidiExportFlightEvent.isTypeEnabled() ? new MidiExportFlightEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        out.write(new byte[]{'M', 'T', 'h', 'd'});
+        writeInt(out, 6);
+        writeShort(out, format);
+        writeShort(out, format == 0 ? 1 : 2);
+        writeShort(out, timebase);
+        long bytes;
+        if (format == 0) {
+            bytes = writeTrack(model, true, true, out);
+        } else {
+            bytes = writeTrack(model, true, false, out);
+            bytes += writeTrack(model, false, true, out);
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.format = format;
+                event.trackCount = format == 0 ? 1 : 2;
+                event.trackBytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * グループに含まれるピアノロールのモデルを、グループの順に一つずつのトラックとしてストリームに書き出します.
+     *
+     * @param group
+     * @param out
+     * @throws IOException
+     * @see #write(java.util.List, java.io.OutputStream)
+     */
+    public void write(PianoRollGroup group, OutputStream out) throws IOException {
+        List<PianoRollModel> models = new ArrayList<>();
+        for (int i = 0; i < group.getPianoRollCount(); i++) {
+            models.add(group.getPianoRoll(i).getModel());
+        }
+        write(models, out);
+    }
+
+    /**
+     * 複数のモデルを一つずつのトラックとしてストリームに書き出します. ストリームは閉じられません。
+     * <br>
+     * 設定されたフォーマットに関わらず、テンポのトラックに続けてモデルの数だけトラックを持つフォーマット1で書き出します。<br>
+     * i番目のモデルのノートは setChannel で設定したチャンネル + i (16で割った余り) で書き出されます。<br>
+     * トラックはモデルごとのタスクとして並列に符号化されます。呼び出したスレッドは全てのタスクが終わるまで待つので、<br>
+     * モデルを編集するスレッドから呼び出せば、符号化の途中でモデルが変更されることはありません。<br>
+     *
+     * @param models
+     * @param out
+     * @throws IOException
+     */
+    public void write(List<? extends PianoRollModel> models, OutputStream out) throws IOException {
+        MidiExportFlightEvent event = MidiExportFlightEvent.isTypeEnabled() ? new MidiExportFlightEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        List<ForkJoinTask<byte[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < models.size(); i++) {
+            PianoRollModel model = models.get(i);
+            int ch = (channel + i) & 0x0F;
+            tasks.add(pool.submit(() -> encodeTrack(model, false, true, ch)));
+        }
+        out.write(new byte[]{'M', 'T', 'h', 'd'});
+        writeInt(out, 6);
+        writeShort(out, 1);
+        writeShort(out, models.size() + 1);
+        writeShort(out, timebase);
+        // テンポのトラックはモデルを参照しないので、待っている間にこのスレッドで書き出す
+        long bytes = writeTrack(null, true, false, out);
+        for (ForkJoinTask<byte[]> task : tasks) {
+            byte[] track = task.join();
+            out.write(new byte[]{'M', 'T', 'r', 'k'});
+            writeInt(out, track.length);
+            out.write(track);
+            bytes += track.length;
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.format = 1;
+                event.trackCount = models.size() + 1;
+                event.trackBytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    private byte[] encodeTrack(PianoRollModel model, boolean tempo, boolean notes, int channel) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try {
+            encodeTrack(model, tempo, notes, channel, new TrackEncoder(buf));
+        } catch (IOException e) {
+            // ByteArrayOutputStreamへの書き込みは失敗しない
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    private long writeTrack(PianoRollModel model, boolean tempo, boolean notes, OutputStream out) throws IOException {
+        TrackEncoder counter = new TrackEncoder(null);
+        encodeTrack(model, tempo, notes, channel, counter);
+        out.write(new byte[]{'M', 'T', 'r', 'k'});
+        writeInt(out, (int) counter.getByteCount());
+        encodeTrack(model, tempo, notes, channel, new TrackEncoder(out));
+        return counter.getByteCount();
+    }
+
+    private void encodeTrack(PianoRollModel model, boolean tempo, boolean notes, int channel, TrackEncoder enc) throws IOException {
+        if (tempo && bpm > 0) {
+            int usec = Math.round(60_000_000f / bpm);
+            enc.writeMeta(0, 0x51, new byte[]{(byte) (usec >> 16), (byte) (usec >> 8), (byte) usec});
+        }
+        long endTick = 0;
+        if (notes) {
+            endTick = encodeNotes(model, channel, enc);
+        }
+        enc.writeMeta(endTick, 0x2F, new byte[0]);
+    }
+
+    private long encodeNotes(PianoRollModel model, int channel, TrackEncoder enc) throws IOException {
+        if (model.getKeyCount() == 0) {
+            return 0;
+        }
+        EventHeap heap = new EventHeap();
+        Key key0 = model.getKey(0);
+        int measureCount = key0.getMeasureCount();
+        int beatCount = measureCount > 0 ? key0.getMeasure(0).getBeatCount() : 0;
+        float f = (float) timebase / (float) beatWidth;
+        long lastTick = 0;
+        for (int i = 0; i < measureCount; i++) {
+            for (int j = 0; j < beatCount; j++) {
+                long beatTick = ((long) i * beatCount + j) * timebase;
+                // 負のオフセットは一拍分まで前の拍にはみ出せるので、一つ前の拍より前のイベントだけを確定する
+                lastTick = Math.max(lastTick, flush(heap, beatTick - timebase, channel, enc));
+                for (int k = 0; k < model.getKeyCount(); k++) {
+                    Key key = model.getKey(k);
+                    if (!key.isMeasureMaterialized(i)) {
+                        continue;
+                    }
+                    Measure measure = key.getMeasure(i);
+                    if (!measure.isBeatMaterialized(j)) {
+                        continue;
+                    }
+                    Beat beat = measure.getBeat(j);
+                    int height = model.getKeyHeight(key.getIndex());
+                    if (height < 0 || height > 127) {
+                        continue;
+                    }
+                    for (int L = 0; L < beat.getNoteCount(); L++) {
+                        Note note = beat.getNote(L);
+                        long start = beatTick + Math.round((float) note.getOffset() * f);
+                        long on = Math.max(0, start);
+                        // 同じティックではオフが先に取り出されるので、長さが0のノートも1ティックは鳴らす
+                        long off = Math.max(on + 1, start + note.scaledLength(timebase));
+                        heap.push(EventHeap.pack(on, true, height, velocity));
+                        heap.push(EventHeap.pack(off, false, height, 0));
+                    }
+                }
+            }
+        }
+        return Math.max(lastTick, flush(heap, Long.MAX_VALUE, channel, enc));
+    }
+
+    private long flush(EventHeap heap, long limit, int channel, TrackEncoder enc) throws IOException {
+        long tick = 0;
+        while (!heap.isEmpty() && EventHeap.tickOf(heap.peek()) <= limit) {
+            long e = heap.pop();
+            tick = EventHeap.tickOf(e);
+            int status = (EventHeap.isOn(e) ? 0x90 : 0x80) | (channel & 0x0F);
+            enc.writeShortMessage(tick, status, EventHeap.pitchOf(e), EventHeap.velocityOf(e));
+        }
+        return tick;
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    private static void writeShort(OutputStream out, int v) throws IOException {
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * トラックのイベントを可変長のデルタタイムで書き出すクラスです. 書き出し先がnullなら長さだけを数えます。
+     */
+    private static final class TrackEncoder {
+
+        private final OutputStream out;
+        private long byteCount;
+        private long lastTick;
+        private int runningStatus;
+
+        TrackEncoder(OutputStream out) {
+            this.out = out;
+            this.runningStatus = -1;
+        }
+
+        long getByteCount() {
+            return byteCount;
+        }
+
+        void writeShortMessage(long tick, int status, int data1, int data2) throws IOException {
+            writeDelta(tick);
+            // ランニングステータスを使って同じステータスバイトを省略する
+            if (status != runningStatus) {
+                writeByte(status);
+                this.runningStatus = status;
+            }
+            writeByte(data1);
+            writeByte(data2);
+        }
+
+        void writeMeta(long tick, int type, byte[] data) throws IOException {
+            writeDelta(tick);
+            writeByte(0xFF);
+            writeByte(type);
+            writeVarInt(data.length);
+            for (byte b : data) {
+                writeByte(b);
+            }
+            this.runningStatus = -1;
+        }
+
+        private void writeDelta(long tick) throws IOException {
+            long delta = Math.max(0, tick - lastTick);
+            this.lastTick = Math.max(lastTick, tick);
+            writeVarInt(delta);
+        }
+
+        private void writeVarInt(long v) throws IOException {
+            int shift = 63 - Long.numberOfLeadingZeros(v | 1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7) {
+                writeByte((int) ((v >>> shift) & 0x7F) | 0x80);
+            }
+            writeByte((int) (v & 0x7F));
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+            }
+            this.byteCount++;
+        }
+    }
+
+    /**
+     * ティック, オン/オフ, 音の高さ, ベロシティを一つのlongに詰めたイベントの最小ヒープです.
+     * <br>
+     * 同じティックではオフがオンより先に取り出されます。<br>
+     */
+    private static final class EventHeap {
+
+        private long[] heap;
+        private int size;
+
+        EventHeap() {
+            this.heap = new long[64];
+        }
+
+        static long pack(long tick, boolean on, int pitch, int velocity) {
+            return (tick << 16) | (on ? 1L << 15 : 0) | ((long) (pitch & 0x7F) << 7) | (velocity & 0x7F);
+        }
+
+        static long tickOf(long e) {
+            return e >>> 16;
+        }
+
+        static boolean isOn(long e) {
+            return (e & (1L << 15)) != 0;
+        }
+
+        static int pitchOf(long e) {
+            return (int) ((e >>> 7) & 0x7F);
+        }
+
+        static int velocityOf(long e) {
+            return (int) (e & 0x7F);
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long e) {
+            if (size == heap.length) {
+                this.heap = Arrays.copyOf(heap, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= e) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = e;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long e = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = (i * 2) + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (e <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = e;
+            return top;
+        }
+    }
+}
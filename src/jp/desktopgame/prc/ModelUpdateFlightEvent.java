@@ -0,0 +1,51 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * DefaultPianoRollModelがリスナーへ一つのイベントを通知したことを表すJFRのイベントです.
+ *
+ * @author desktopgame
+ */
+@Name("jp.desktopgame.prc.ModelUpdate")
+@Label("Piano Roll Model Update")
+@Description("Fan-out of one PianoRollModelEvent to the model listeners")
+@Category({"PianoRollComponent", "Model"})
+@StackTrace(false)
+public final class ModelUpdateFlightEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(ModelUpdateFlightEvent.class);
+
+    /**
+     * このイベントの記録が有効ならtrueを返します. 無効な場合はイベントを作成する必要はありません。
+     *
+     * @return
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    @Label("Event Type")
+    public String eventType;
+
+    @Label("Listener Count")
+    public int listenerCount;
+
+    @Label("Batch Size")
+    @Description("Number of events merged into a BATCH_UPDATE")
+    public int batchSize;
+}
@@ -12,26 +12,96 @@ import java.util.EventObject;
 import java.util.Optional;
 
 /**
+ * ノートの変更を表すイベントです.
+ * <br>
+ * DefaultNoteやPackedNoteは同じインスタンスを次の変更でも再利用します。<br>
+ * 通知の後もイベントを保持する場合はcopyで複製してください。<br>
  *
  * @author desktopgame
  */
 public class NoteEvent extends EventObject {
 
     private NoteEventType type;
-    private Optional<Object> oldValue;
-    private Optional<Object> newValue;
+    private boolean hasValue;
+    private double oldValue;
+    private double newValue;
+    private Object oldObject;
+    private Object newObject;
 
     public NoteEvent(Note o, NoteEventType type, Object oldValue, Object newValue) {
         super(o);
         this.type = type;
-        this.oldValue = Optional.ofNullable(oldValue);
-        this.newValue = Optional.ofNullable(newValue);
+        this.hasValue = oldValue != null || newValue != null;
+        this.oldValue = toDouble(oldValue);
+        this.newValue = toDouble(newValue);
+        this.oldObject = oldValue;
+        this.newObject = newValue;
     }
 
     public NoteEvent(Note o, NoteEventType type) {
         this(o, type, null, null);
     }
 
+    /**
+     * イベントの内容を置き換えます. 値はボックス化されずに保持されます。
+     *
+     * @param o
+     * @param type
+     * @param hasValue
+     * @param oldValue
+     * @param newValue
+     */
+    void reset(Note o, NoteEventType type, boolean hasValue, double oldValue, double newValue) {
+        this.source = o;
+        this.type = type;
+        this.hasValue = hasValue;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.oldObject = null;
+        this.newObject = null;
+    }
+
+    private static double toDouble(Object v) {
+        if (v instanceof Number) {
+            return ((Number) v).doubleValue();
+        } else if (v instanceof Boolean) {
+            return ((Boolean) v) ? 1 : 0;
+        }
+        return 0;
+    }
+
+    private Object box(double v) {
+        if (!hasValue) {
+            return null;
+        }
+        switch (type) {
+            case OFFSET_CHANGE:
+                return (int) v;
+            case LENGTH_CHANGE:
+                return (float) v;
+            case SELECTION_CHANGE:
+            case TRIGGER_CHANGE:
+                return v != 0;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 同じ内容の新しいイベントを返します.
+     *
+     * @return
+     */
+    public NoteEvent copy() {
+        NoteEvent e = new NoteEvent(getSource(), type);
+        e.hasValue = hasValue;
+        e.oldValue = oldValue;
+        e.newValue = newValue;
+        e.oldObject = oldObject;
+        e.newObject = newObject;
+        return e;
+    }
+
     @Override
     public Note getSource() {
         return (Note) super.getSource();
@@ -42,10 +112,46 @@ public class NoteEvent extends EventObject {
     }
 
     public Optional<Object> getOldValue() {
-        return oldValue;
+        return Optional.ofNullable(oldObject != null ? oldObject : box(oldValue));
     }
 
     public Optional<Object> getNewValue() {
-        return newValue;
+        return Optional.ofNullable(newObject != null ? newObject : box(newValue));
+    }
+
+    /**
+     * OFFSET_CHANGEの場合に、変更前のオフセットを返します.
+     *
+     * @return
+     */
+    public int getOldOffset() {
+        return (int) oldValue;
+    }
+
+    /**
+     * OFFSET_CHANGEの場合に、変更後のオフセットを返します.
+     *
+     * @return
+     */
+    public int getNewOffset() {
+        return (int) newValue;
+    }
+
+    /**
+     * LENGTH_CHANGEの場合に、変更前の長さを返します.
+     *
+     * @return
+     */
+    public float getOldLength() {
+        return (float) oldValue;
+    }
+
+    /**
+     * LENGTH_CHANGEの場合に、変更後の長さを返します.
+     *
+     * @return
+     */
+    public float getNewLength() {
+        return (float) newValue;
     }
 }
@@ -0,0 +1,331 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ノートをキーごとに拍の絶対位置で整列して保持する索引です.
+ * <br>
+ * モデルのイベントを監視して差分だけを更新するので、キー/小節/拍の木を毎回走査する必要がありません。<br>
+ * 拍の絶対位置は 小節の位置 * 小節あたりの拍数 + 拍の位置 で計算されます。<br>
+ * 拍や小節、キーの数が変化した場合には位置がずれるため、次の問い合わせの時点で作り直します。<br>
+ * 範囲の問い合わせでは、キーごとに記録したオフセットと長さの最大値の分だけ手前の拍から候補を探します。<br>
+ *
+ * @author desktopgame
+ */
+public class NoteIndex implements PianoRollModelListener {
+
+    private PianoRollModel model;
+    private List<KeyBucket> keyTable;
+    private LinkedHashSet<Note> selectedNotes;
+    private int noteCount;
+    private boolean dirty;
+
+    private static class KeyBucket {
+
+        public final TreeMap<Integer, List<Note>> beatTable = new TreeMap<>();
+        public float maxLength;
+        public int minOffset;
+        public int maxOffset;
+
+        public void extend(Note note) {
+            this.maxLength = Math.max(maxLength, note.getLength());
+            this.minOffset = Math.min(minOffset, note.getOffset());
+            this.maxOffset = Math.max(maxOffset, note.getOffset());
+        }
+    }
+
+    public NoteIndex(PianoRollModel model) {
+        this.model = model;
+        this.keyTable = new ArrayList<>();
+        this.selectedNotes = new LinkedHashSet<>();
+        rebuild();
+    }
+
+    /**
+     * モデルを走査して索引を作り直します.
+     */
+    public void rebuild() {
+        keyTable.clear();
+        selectedNotes.clear();
+        this.noteCount = 0;
+        for (int i = 0; i < model.getKeyCount(); i++) {
+            keyTable.add(new KeyBucket());
+            Key key = model.getKey(i);
+            for (int j = 0; j < key.getMeasureCount(); j++) {
+                if (!key.isMeasureMaterialized(j)) {
+                    continue;
+                }
+                Measure measure = key.getMeasure(j);
+                for (int k = 0; k < measure.getBeatCount(); k++) {
+                    if (!measure.isBeatMaterialized(k)) {
+                        continue;
+                    }
+                    Beat beat = measure.getBeat(k);
+                    for (int L = 0; L < beat.getNoteCount(); L++) {
+                        add(beat.getNote(L));
+                    }
+                }
+            }
+        }
+        this.dirty = false;
+    }
+
+    private void validate() {
+        if (dirty) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 拍の絶対位置を返します.
+     *
+     * @param beat
+     * @return
+     */
+    public static int toBeatPosition(Beat beat) {
+        Measure measure = beat.getMeasure();
+        return (measure.getIndex() * measure.getBeatCount()) + beat.getIndex();
+    }
+
+    private static int toKeyListIndex(Note note) {
+        return note.getBeat().getMeasure().getKey().getIndex() - 1;
+    }
+
+    private void add(Note note) {
+        int keyIndex = toKeyListIndex(note);
+        if (keyIndex < 0 || keyIndex >= keyTable.size()) {
+            this.dirty = true;
+            return;
+        }
+        KeyBucket bucket = keyTable.get(keyIndex);
+        bucket.beatTable.computeIfAbsent(toBeatPosition(note.getBeat()), (e) -> new ArrayList<>()).add(note);
+        bucket.extend(note);
+        if (note.isSelected()) {
+            selectedNotes.add(note);
+        }
+        this.noteCount++;
+    }
+
+    private void remove(Note note) {
+        int keyIndex = toKeyListIndex(note);
+        if (keyIndex < 0 || keyIndex >= keyTable.size()) {
+            this.dirty = true;
+            return;
+        }
+        TreeMap<Integer, List<Note>> beatTable = keyTable.get(keyIndex).beatTable;
+        int pos = toBeatPosition(note.getBeat());
+        List<Note> notes = beatTable.get(pos);
+        if (notes == null || !notes.remove(note)) {
+            return;
+        }
+        if (notes.isEmpty()) {
+            beatTable.remove(pos);
+        }
+        selectedNotes.remove(note);
+        this.noteCount--;
+    }
+
+    private void extend(Note note) {
+        int keyIndex = toKeyListIndex(note);
+        if (keyIndex < 0 || keyIndex >= keyTable.size()) {
+            this.dirty = true;
+            return;
+        }
+        keyTable.get(keyIndex).extend(note);
+    }
+
+    /**
+     * 索引に含まれるノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        validate();
+        return noteCount;
+    }
+
+    /**
+     * 指定のキーに含まれるノートの数を返します.
+     *
+     * @param keyIndex
+     * @return
+     */
+    public int getNoteCount(int keyIndex) {
+        validate();
+        int count = 0;
+        for (List<Note> notes : keyTable.get(keyIndex).beatTable.values()) {
+            count += notes.size();
+        }
+        return count;
+    }
+
+    /**
+     * 全てのノートをキー、拍の順に返します.
+     *
+     * @return
+     */
+    public List<Note> getAllNotes() {
+        validate();
+        ArrayList<Note> r = new ArrayList<>(noteCount);
+        for (KeyBucket bucket : keyTable) {
+            for (List<Note> notes : bucket.beatTable.values()) {
+                r.addAll(notes);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 選択されている全てのノートを返します.
+     *
+     * @return
+     */
+    public List<Note> getSelectedNotes() {
+        validate();
+        return new ArrayList<>(selectedNotes);
+    }
+
+    /**
+     * 指定のキーで、拍の絶対位置が fromBeat 以上 toBeat 未満の拍に属するノートを返します.
+     *
+     * @param keyIndex
+     * @param fromBeat
+     * @param toBeat
+     * @return
+     */
+    public List<Note> getNotes(int keyIndex, int fromBeat, int toBeat) {
+        validate();
+        if (keyIndex < 0 || keyIndex >= keyTable.size() || fromBeat >= toBeat) {
+            return Collections.emptyList();
+        }
+        ArrayList<Note> r = new ArrayList<>();
+        for (List<Note> notes : keyTable.get(keyIndex).beatTable.subMap(fromBeat, toBeat).values()) {
+            r.addAll(notes);
+        }
+        return r;
+    }
+
+    /**
+     * 指定のキーで、画面上の範囲 [fromX, toX) と重なるノートを返します.
+     *
+     * @param keyIndex
+     * @param fromX
+     * @param toX
+     * @param beatWidth
+     * @return
+     */
+    public List<Note> getNotesInRange(int keyIndex, int fromX, int toX, int beatWidth) {
+        validate();
+        if (keyIndex < 0 || keyIndex >= keyTable.size() || fromX >= toX) {
+            return Collections.emptyList();
+        }
+        // オフセットと長さの最大値の分だけ前後に広げて候補を絞り込む
+        KeyBucket bucket = keyTable.get(keyIndex);
+        int fromBeat = Math.floorDiv(fromX - bucket.maxOffset, beatWidth) - (int) Math.ceil(bucket.maxLength) - 1;
+        int toBeat = Math.floorDiv(toX - bucket.minOffset, beatWidth) + 1;
+        ArrayList<Note> r = new ArrayList<>();
+        for (Map.Entry<Integer, List<Note>> entry : bucket.beatTable.subMap(fromBeat, toBeat).entrySet()) {
+            int beatX = entry.getKey() * beatWidth;
+            for (Note note : entry.getValue()) {
+                int sx = beatX + note.getOffset();
+                int ex = sx + note.scaledLength(beatWidth);
+                if (sx < toX && ex > fromX) {
+                    r.add(note);
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 画面上の矩形と重なるノートを返します. 重なりの判定はRectangle#intersectsと同じです。
+     *
+     * @param area
+     * @param beatWidth
+     * @param beatHeight
+     * @return
+     */
+    public List<Note> getNotesIn(Rectangle area, int beatWidth, int beatHeight) {
+        validate();
+        if (area.width <= 0 || area.height <= 0) {
+            return Collections.emptyList();
+        }
+        int fromKey = Math.max(0, Math.floorDiv(area.y, beatHeight));
+        int toKey = Math.min(keyTable.size() - 1, Math.floorDiv(area.y + area.height - 1, beatHeight));
+        ArrayList<Note> r = new ArrayList<>();
+        for (int i = fromKey; i <= toKey; i++) {
+            r.addAll(getNotesInRange(i, area.x, area.x + area.width, beatWidth));
+        }
+        return r;
+    }
+
+    /**
+     * 全てのノートの選択状態を解除します.
+     */
+    public void clearAllSelection() {
+        validate();
+        if (selectedNotes.isEmpty()) {
+            return;
+        }
+        Collection<Note> notes = new ArrayList<>(selectedNotes);
+        model.batch((editor) -> notes.forEach((e) -> editor.setSelected(e, false)));
+    }
+
+    @Override
+    public void pianoRollModelUpdate(PianoRollModelEvent e) {
+        if (dirty) {
+            return;
+        }
+        if (e.getType() == PianoRollModelEventType.BATCH_UPDATE) {
+            for (PianoRollModelEvent be : e.getBatchEvents()) {
+                pianoRollModelUpdate(be);
+            }
+            return;
+        }
+        NoteEvent ne = e.peekNoteEvent();
+        BeatEvent be = e.peekBeatEvent();
+        if (ne != null) {
+            Note note = ne.getSource();
+            switch (ne.getType()) {
+                case REMOVED:
+                    remove(note);
+                    break;
+                case OFFSET_CHANGE:
+                case LENGTH_CHANGE:
+                    extend(note);
+                    break;
+                case SELECTION_CHANGE:
+                    if (note.isSelected()) {
+                        selectedNotes.add(note);
+                    } else {
+                        selectedNotes.remove(note);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else if (be != null) {
+            if (be.getBeatEventType() == BeatEventType.NOTE_CREATED) {
+                add(be.getNote());
+            }
+        } else {
+            // 拍/小節/キーの増減によって絶対位置が変わる
+            this.dirty = true;
+        }
+    }
+}
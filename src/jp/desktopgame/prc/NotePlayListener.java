@@ -11,10 +11,21 @@ package jp.desktopgame.prc;
 import java.util.EventListener;
 
 /**
+ * 再生中のノートのオン/オフを受け取るリスナーです.
+ * <br>
+ * 発音の遅れを避けるため、notePlayはイベントディスパッチスレッドではなくPlaybackSchedulerのスレッドから呼び出されます。<br>
+ * Swingのコンポーネントを操作する場合は、SwingUtilities#invokeLaterを使用してください。<br>
+ * 呼び出しの間はスケジューラのロックを保持していないので、PlaybackSchedulerのメソッドを呼び出すことができます。<br>
  *
  * @author desktopgame
+ * @see PlaybackScheduler
  */
 public interface NotePlayListener extends EventListener {
 
+    /**
+     * ノートが鳴り始めたか、鳴り終わったときに呼び出されます. PlaybackSchedulerのスレッドから呼び出されます。
+     *
+     * @param e
+     */
     public void notePlay(NotePlayEvent e);
 }
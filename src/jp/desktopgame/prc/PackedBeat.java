@@ -0,0 +1,150 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.Arrays;
+import javax.swing.event.EventListenerList;
+
+/**
+ * ノートをPackedNoteStoreのスロット番号として保持する拍です.
+ *
+ * @author desktopgame
+ */
+public class PackedBeat implements Beat {
+
+    private Measure measure;
+    private int index;
+    private PackedNoteStore store;
+    private int[] slots;
+    private int slotCount;
+    private EventListenerList listenerList;
+    private EventRecycler<PackedBeat, BeatEvent> events;
+
+    public PackedBeat(Measure measure, int index, PackedNoteStore store) {
+        this.measure = measure;
+        this.index = index;
+        this.store = store;
+        this.slots = new int[0];
+        this.listenerList = new EventListenerList();
+        this.events = new EventRecycler<>(PackedBeat::dispatchBeatUpdate);
+    }
+
+    @Override
+    public void addBeatListener(BeatListener listener) {
+        listenerList.add(BeatListener.class, listener);
+    }
+
+    @Override
+    public void removeBeatListener(BeatListener listener) {
+        listenerList.remove(BeatListener.class, listener);
+    }
+
+    private void addSlot(int slot) {
+        if (slotCount == slots.length) {
+            this.slots = Arrays.copyOf(slots, Math.max(2, slotCount * 2));
+        }
+        slots[slotCount++] = slot;
+    }
+
+    private void removeSlot(int slot) {
+        for (int i = 0; i < slotCount; i++) {
+            if (slots[i] == slot) {
+                System.arraycopy(slots, i + 1, slots, i, slotCount - i - 1);
+                slotCount--;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Note generateNote(int offset, float length) {
+        int slot = store.allocate(this, offset, length);
+        addSlot(slot);
+        Note note = store.get(slot);
+        fireBeatUpdate(note, BeatEventType.NOTE_CREATED, null);
+        return note;
+    }
+
+    @Override
+    public void restoreNote(Note note) {
+        PackedNote pn = (PackedNote) note;
+        if (pn.getStore() != store) {
+            throw new IllegalArgumentException("note belongs to another store");
+        }
+        store.attach(pn.getSlot(), this);
+        addSlot(pn.getSlot());
+        fireBeatUpdate(note, BeatEventType.NOTE_CREATED, null);
+    }
+
+    void noteChange(NoteEvent e) {
+        if (e.getType() == NoteEventType.REMOVED) {
+            int slot = ((PackedNote) e.getSource()).getSlot();
+            removeSlot(slot);
+            store.release(slot);
+        }
+        fireBeatUpdate(e.getSource(), BeatEventType.PROPAGATION_NOTE_EVENTS, e);
+    }
+
+    /**
+     * 拍がモデルから取り除かれたときに、持っている全てのノートのスロットを解放します.
+     * <br>
+     * removeNoteと同じ経路で解放するので、変更履歴が参照しているスロットは再利用されません。<br>
+     */
+    void releaseNotes() {
+        for (int i = 0; i < slotCount; i++) {
+            store.release(slots[i]);
+        }
+        this.slotCount = 0;
+    }
+
+    private void fireBeatUpdate(Note note, BeatEventType type, NoteEvent inner) {
+        if (listenerList.getListenerCount() == 0) {
+            return;
+        }
+        BeatEvent e = events.reuse();
+        if (e == null) {
+            e = new BeatEvent(this, note, type, inner);
+        } else {
+            e.reset(note, type, inner);
+        }
+        events.fire(this, e);
+    }
+
+    private void dispatchBeatUpdate(BeatEvent e) {
+        Object[] listeners = listenerList.getListenerList();
+        for (int i = listeners.length - 2; i >= 0; i -= 2) {
+            if (listeners[i] == BeatListener.class) {
+                ((BeatListener) listeners[i + 1]).beatUpdate(e);
+            }
+        }
+    }
+
+    @Override
+    public Note getNote(int i) {
+        if (i < 0 || i >= slotCount) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + slotCount);
+        }
+        return store.get(slots[i]);
+    }
+
+    @Override
+    public int getNoteCount() {
+        return slotCount;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public Measure getMeasure() {
+        return measure;
+    }
+}
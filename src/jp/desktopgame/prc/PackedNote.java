@@ -0,0 +1,154 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+/**
+ * PackedNoteStoreのスロットを指す軽量なNoteの実装です.
+ * <br>
+ * 状態は全てストアに保持されるので、同じスロットを指すインスタンスは等価として扱われます。<br>
+ *
+ * @author desktopgame
+ */
+public final class PackedNote implements Note {
+
+    private final PackedNoteStore store;
+    private final int slot;
+
+    PackedNote(PackedNoteStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    /**
+     * このノートが保存されているストアを返します.
+     *
+     * @return
+     */
+    public PackedNoteStore getStore() {
+        return store;
+    }
+
+    /**
+     * このノートのスロットを返します.
+     *
+     * @return
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    @Override
+    public void addNoteChangeListener(NoteListener listener) {
+        store.addNoteListener(slot, listener);
+    }
+
+    @Override
+    public void removeNoteChangeListener(NoteListener listener) {
+        store.removeNoteListener(slot, listener);
+    }
+
+    @Override
+    public void play() {
+        store.fireNoteChange(this, NoteEventType.PLAY, false, 0, 0);
+    }
+
+    @Override
+    public void removeFromBeat() {
+        store.fireNoteChange(this, NoteEventType.REMOVED, false, 0, 0);
+    }
+
+    @Override
+    public void setSelected(boolean selected) {
+        if (store.isSelected(slot) == selected) {
+            return;
+        }
+        store.setSelected(slot, selected);
+        store.fireNoteChange(this, NoteEventType.SELECTION_CHANGE, true, selected ? 0 : 1, selected ? 1 : 0);
+    }
+
+    @Override
+    public boolean isSelected() {
+        return store.isSelected(slot);
+    }
+
+    @Override
+    public void setOffset(int offset) {
+        int old = store.getOffset(slot);
+        store.setOffset(slot, offset);
+        store.fireNoteChange(this, NoteEventType.OFFSET_CHANGE, true, old, offset);
+    }
+
+    @Override
+    public int getOffset() {
+        return store.getOffset(slot);
+    }
+
+    @Override
+    public void setLength(float length) {
+        float old = store.getLength(slot);
+        store.setLength(slot, length);
+        store.fireNoteChange(this, NoteEventType.LENGTH_CHANGE, true, old, length);
+    }
+
+    @Override
+    public float getLength() {
+        return store.getLength(slot);
+    }
+
+    @Override
+    public void setTrigger(boolean isTrigger) {
+        if (store.isTrigger(slot) == isTrigger) {
+            return;
+        }
+        store.setTrigger(slot, isTrigger);
+        store.fireNoteChange(this, NoteEventType.TRIGGER_CHANGE, true, isTrigger ? 0 : 1, isTrigger ? 1 : 0);
+    }
+
+    @Override
+    public boolean isTrigger() {
+        return store.isTrigger(slot);
+    }
+
+    /**
+     * ベロシティを設定します.
+     *
+     * @param velocity
+     */
+    public void setVelocity(int velocity) {
+        store.setVelocity(slot, velocity);
+    }
+
+    /**
+     * ベロシティを返します.
+     *
+     * @return
+     */
+    public int getVelocity() {
+        return store.getVelocity(slot);
+    }
+
+    @Override
+    public Beat getBeat() {
+        return store.getOwner(slot);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PackedNote)) {
+            return false;
+        }
+        PackedNote other = (PackedNote) obj;
+        return store == other.store && slot == other.slot;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + slot;
+    }
+}
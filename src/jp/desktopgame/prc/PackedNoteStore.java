@@ -0,0 +1,315 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.swing.event.EventListenerList;
+
+/**
+ * ノートの属性を列ごとにプリミティブ配列で保持するストアです.
+ * <br>
+ * ノートは番号(スロット)で識別され、Noteとしてはその都度PackedNoteを作成して返します。<br>
+ * 削除されたスロットは、Undoの履歴やスナップショットから参照されなくなった時点で再利用されます。<br>
+ * 参照する側はretain/unretainでスロットの参照の数を増減させます。<br>
+ *
+ * @author desktopgame
+ */
+public class PackedNoteStore {
+
+    private static final byte LIVE = 1;
+    private static final byte SELECTED = 2;
+    private static final byte TRIGGER = 4;
+    private static final byte FREE = 8;
+
+    public static final int VELOCITY_DEFAULT = 100;
+
+    private int size;
+    private int liveCount;
+    private int[] keys;
+    private int[] measures;
+    private int[] beats;
+    private int[] offsets;
+    private float[] lengths;
+    private byte[] velocities;
+    private byte[] flags;
+    private PackedBeat[] owners;
+    private int[] pins;
+    private int[] freeSlots;
+    private int freeCount;
+    private HashMap<Integer, EventListenerList> listenerTable;
+    private NoteEvent event;
+    private boolean firing;
+
+    public PackedNoteStore() {
+        this(64);
+    }
+
+    public PackedNoteStore(int capacity) {
+        this.keys = new int[capacity];
+        this.measures = new int[capacity];
+        this.beats = new int[capacity];
+        this.offsets = new int[capacity];
+        this.lengths = new float[capacity];
+        this.velocities = new byte[capacity];
+        this.flags = new byte[capacity];
+        this.owners = new PackedBeat[capacity];
+        this.pins = new int[capacity];
+        this.freeSlots = new int[16];
+        this.listenerTable = new HashMap<>();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= keys.length) {
+            return;
+        }
+        int n = Math.max(capacity, keys.length * 2);
+        this.keys = Arrays.copyOf(keys, n);
+        this.measures = Arrays.copyOf(measures, n);
+        this.beats = Arrays.copyOf(beats, n);
+        this.offsets = Arrays.copyOf(offsets, n);
+        this.lengths = Arrays.copyOf(lengths, n);
+        this.velocities = Arrays.copyOf(velocities, n);
+        this.flags = Arrays.copyOf(flags, n);
+        this.owners = Arrays.copyOf(owners, n);
+        this.pins = Arrays.copyOf(pins, n);
+    }
+
+    int allocate(PackedBeat owner, int offset, float length) {
+        int slot = pollFreeSlot();
+        if (slot < 0) {
+            ensureCapacity(size + 1);
+            slot = size++;
+        } else if (!listenerTable.isEmpty()) {
+            // 前のノートに登録されたリスナーは引き継がない
+            listenerTable.remove(slot);
+        }
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        velocities[slot] = (byte) VELOCITY_DEFAULT;
+        flags[slot] = TRIGGER;
+        attach(slot, owner);
+        return slot;
+    }
+
+    void attach(int slot, PackedBeat owner) {
+        Measure measure = owner.getMeasure();
+        keys[slot] = measure.getKey().getIndex() - 1;
+        measures[slot] = measure.getIndex();
+        beats[slot] = owner.getIndex();
+        owners[slot] = owner;
+        if ((flags[slot] & LIVE) == 0) {
+            flags[slot] |= LIVE;
+            this.liveCount++;
+        }
+    }
+
+    void release(int slot) {
+        if ((flags[slot] & LIVE) != 0) {
+            flags[slot] &= ~LIVE;
+            this.liveCount--;
+            offerFreeSlot(slot);
+        }
+    }
+
+    /**
+     * スロットへの参照の数を増やします. 参照されている間は、削除されてもスロットは再利用されません。
+     *
+     * @param slot
+     */
+    public void retain(int slot) {
+        pins[slot]++;
+    }
+
+    /**
+     * スロットへの参照の数を減らします.
+     *
+     * @param slot
+     */
+    public void unretain(int slot) {
+        if (pins[slot] > 0 && --pins[slot] == 0 && (flags[slot] & LIVE) == 0) {
+            offerFreeSlot(slot);
+        }
+    }
+
+    private void offerFreeSlot(int slot) {
+        // 参照されているかどうかは取り出すときにもう一度確かめる. 削除の通知の後で履歴に記録されるため
+        if ((flags[slot] & FREE) != 0) {
+            return;
+        }
+        flags[slot] |= FREE;
+        if (freeCount == freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    private int pollFreeSlot() {
+        while (freeCount > 0) {
+            int slot = freeSlots[--freeCount];
+            flags[slot] &= ~FREE;
+            if ((flags[slot] & LIVE) == 0 && pins[slot] == 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 再利用を待っているスロットの数を返します.
+     *
+     * @return
+     */
+    public int getFreeSlotCount() {
+        return freeCount;
+    }
+
+    /**
+     * 指定のスロットのノートを返します.
+     *
+     * @param slot
+     * @return
+     */
+    public PackedNote get(int slot) {
+        return new PackedNote(this, slot);
+    }
+
+    /**
+     * 割り当て済みのスロットの数を返します. 削除済みで再利用を待っているスロットも含みます。
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 削除されていないノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return liveCount;
+    }
+
+    public boolean isLive(int slot) {
+        return (flags[slot] & LIVE) != 0;
+    }
+
+    public int getKeyIndex(int slot) {
+        return keys[slot];
+    }
+
+    public int getMeasureIndex(int slot) {
+        return measures[slot];
+    }
+
+    public int getBeatIndex(int slot) {
+        return beats[slot];
+    }
+
+    public int getOffset(int slot) {
+        return offsets[slot];
+    }
+
+    public float getLength(int slot) {
+        return lengths[slot];
+    }
+
+    public int getVelocity(int slot) {
+        return velocities[slot];
+    }
+
+    public boolean isSelected(int slot) {
+        return (flags[slot] & SELECTED) != 0;
+    }
+
+    public boolean isTrigger(int slot) {
+        return (flags[slot] & TRIGGER) != 0;
+    }
+
+    PackedBeat getOwner(int slot) {
+        return owners[slot];
+    }
+
+    void setOffset(int slot, int offset) {
+        offsets[slot] = offset;
+    }
+
+    void setLength(int slot, float length) {
+        lengths[slot] = length;
+    }
+
+    void setVelocity(int slot, int velocity) {
+        velocities[slot] = (byte) velocity;
+    }
+
+    void setSelected(int slot, boolean selected) {
+        if (selected) {
+            flags[slot] |= SELECTED;
+        } else {
+            flags[slot] &= ~SELECTED;
+        }
+    }
+
+    void setTrigger(int slot, boolean isTrigger) {
+        if (isTrigger) {
+            flags[slot] |= TRIGGER;
+        } else {
+            flags[slot] &= ~TRIGGER;
+        }
+    }
+
+    void addNoteListener(int slot, NoteListener listener) {
+        listenerTable.computeIfAbsent(slot, (e) -> new EventListenerList()).add(NoteListener.class, listener);
+    }
+
+    void removeNoteListener(int slot, NoteListener listener) {
+        EventListenerList listenerList = listenerTable.get(slot);
+        if (listenerList == null) {
+            return;
+        }
+        listenerList.remove(NoteListener.class, listener);
+        if (listenerList.getListenerCount() == 0) {
+            listenerTable.remove(slot);
+        }
+    }
+
+    void fireNoteChange(PackedNote note, NoteEventType type, boolean hasValue, double oldValue, double newValue) {
+        int slot = note.getSlot();
+        // 全てのノートの変更で同じイベントを使う. 通知の途中で変更された場合だけ新しく作る
+        NoteEvent e = firing || event == null ? new NoteEvent(note, type) : event;
+        e.reset(note, type, hasValue, oldValue, newValue);
+        boolean outer = !firing;
+        if (outer) {
+            this.event = e;
+            this.firing = true;
+        }
+        try {
+            // スロット番号のボックス化を避けるため、リスナーが無ければ表を引かない
+            EventListenerList listenerList = listenerTable.isEmpty() ? null : listenerTable.get(slot);
+            if (listenerList != null) {
+                Object[] listeners = listenerList.getListenerList();
+                for (int i = listeners.length - 2; i >= 0; i -= 2) {
+                    if (listeners[i] == NoteListener.class) {
+                        ((NoteListener) listeners[i + 1]).noteChange(e);
+                    }
+                }
+            }
+            PackedBeat owner = owners[slot];
+            if (owner != null) {
+                owner.noteChange(e);
+            }
+        } finally {
+            if (outer) {
+                this.firing = false;
+            }
+        }
+    }
+}
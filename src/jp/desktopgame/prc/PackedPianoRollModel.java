@@ -0,0 +1,134 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ノートをPackedNoteStoreに保存するPianoRollModelの実装です.
+ * <br>
+ * キー/小節/拍の構造はDefaultPianoRollModelと同じですが、拍はPackedBeatになり、<br>
+ * ノートは一つ一つのオブジェクトではなく列ごとのプリミティブ配列に保存されます。<br>
+ * 全てのノートや選択中のノートの取得は木ではなく配列を走査して行います。<br>
+ *
+ * @author desktopgame
+ */
+public class PackedPianoRollModel extends DefaultPianoRollModel {
+
+    private PackedNoteStore noteStore;
+
+    public PackedPianoRollModel(int keyCount, int measureCount, int beatCount) {
+        this(keyCount, measureCount, beatCount, false);
+    }
+
+    public PackedPianoRollModel(int keyCount, int measureCount, int beatCount, boolean sparse) {
+        super(keyCount, measureCount, beatCount, sparse);
+    }
+
+    /**
+     * ノートが保存されているストアを返します.
+     *
+     * @return
+     */
+    public PackedNoteStore getNoteStore() {
+        // createKeyはスーパークラスのコンストラクタから呼ばれるので、ここで初期化する
+        if (noteStore == null) {
+            this.noteStore = new PackedNoteStore();
+        }
+        return noteStore;
+    }
+
+    @Override
+    protected Key createKey(int measureCount, int beatCount, int height) {
+        return new PackedKey(this, measureCount, beatCount, height + 1, isSparse());
+    }
+
+    @Override
+    protected void keyRemoved(Key key) {
+        ((PackedKey) key).releaseNotes();
+    }
+
+    @Override
+    public List<Note> getAllNotes() {
+        PackedNoteStore store = getNoteStore();
+        ArrayList<Note> r = new ArrayList<>(store.getNoteCount());
+        for (int i = 0; i < store.size(); i++) {
+            if (store.isLive(i)) {
+                r.add(store.get(i));
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public List<Note> getSelectedNotes() {
+        PackedNoteStore store = getNoteStore();
+        ArrayList<Note> r = new ArrayList<>();
+        for (int i = 0; i < store.size(); i++) {
+            if (store.isLive(i) && store.isSelected(i)) {
+                r.add(store.get(i));
+            }
+        }
+        return r;
+    }
+
+    protected static class PackedKey extends DefaultKey {
+
+        public PackedKey(PackedPianoRollModel model, int measureCount, int beatCount, int height, boolean sparse) {
+            super(model, measureCount, beatCount, height, sparse);
+        }
+
+        @Override
+        protected Measure createMeasure(int index, int beatCount) {
+            return new PackedMeasure(this, index, beatCount, isSparse());
+        }
+
+        @Override
+        protected void measureRemoved(Measure measure) {
+            ((PackedMeasure) measure).releaseNotes();
+        }
+
+        /**
+         * 作成されている全ての小節のノートのスロットを解放します.
+         */
+        void releaseNotes() {
+            for (int i = 0; i < getMeasureCount(); i++) {
+                if (isMeasureMaterialized(i)) {
+                    ((PackedMeasure) getMeasure(i)).releaseNotes();
+                }
+            }
+        }
+    }
+
+    private static class PackedMeasure extends DefaultMeasure {
+
+        public PackedMeasure(Key key, int index, int beatCount, boolean sparse) {
+            super(key, index, beatCount, sparse);
+        }
+
+        @Override
+        protected Beat createBeat(int index) {
+            return new PackedBeat(this, index, ((PackedPianoRollModel) getKey().getModel()).getNoteStore());
+        }
+
+        @Override
+        protected void beatRemoved(Beat beat) {
+            ((PackedBeat) beat).releaseNotes();
+        }
+
+        void releaseNotes() {
+            for (int i = 0; i < getBeatCount(); i++) {
+                if (isBeatMaterialized(i)) {
+                    ((PackedBeat) getBeat(i)).releaseNotes();
+                }
+            }
+        }
+    }
+}
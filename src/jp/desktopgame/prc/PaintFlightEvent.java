@@ -0,0 +1,63 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * BasicPianoRollUIの一回の描画を表すJFRのイベントです.
+ * <br>
+ * 記録が無効な場合は、イベントは作成されません。<br>
+ *
+ * @author desktopgame
+ */
+@Name("jp.desktopgame.prc.Paint")
+@Label("Piano Roll Paint")
+@Description("One call of BasicPianoRollUI.paint")
+@Category({"PianoRollComponent", "Paint"})
+@StackTrace(false)
+public final class PaintFlightEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(PaintFlightEvent.class);
+
+    /**
+     * このイベントの記録が有効ならtrueを返します. 無効な場合はイベントを作成する必要はありません。
+     *
+     * @return
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    @Label("Clip X")
+    public int clipX;
+
+    @Label("Clip Y")
+    public int clipY;
+
+    @Label("Clip Width")
+    public int clipWidth;
+
+    @Label("Clip Height")
+    public int clipHeight;
+
+    @Label("Notes Drawn")
+    @Description("Notes drawn as rectangles or written to the note layer")
+    public int notesDrawn;
+
+    @Label("Coarse")
+    @Description("True if the zoomed out level of detail was used")
+    public boolean coarse;
+}
@@ -8,7 +8,11 @@
  */
 package jp.desktopgame.prc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -115,6 +119,68 @@ public class Phrase {
         return name;
     }
 
+    /**
+     * フレーズを書き出します.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeInt(virtualNotes.size());
+        for (VirtualNote vnote : virtualNotes) {
+            out.writeInt(vnote.keyIndex);
+            out.writeInt(vnote.measureIndex);
+            out.writeInt(vnote.beatIndex);
+            out.writeInt(vnote.noteOffset);
+            out.writeFloat(vnote.noteLength);
+        }
+    }
+
+    /**
+     * writeToで書き出したフレーズを読み込みます.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static Phrase readFrom(DataInput in) throws IOException {
+        String name = in.readUTF();
+        int count = in.readInt();
+        List<VirtualNote> virtualNotes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            virtualNotes.add(new VirtualNote(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readFloat()));
+        }
+        Phrase p = new Phrase(virtualNotes);
+        p.setName(name);
+        return p;
+    }
+
+    /**
+     * ノートの内容から計算したハッシュ値を返します.
+     * <br>
+     * 名前やノートの並び順には影響されないので、同じ内容のフレーズを見つけるために使用できます。<br>
+     *
+     * @return
+     */
+    public long contentHash() {
+        List<VirtualNote> sorted = new ArrayList<>(virtualNotes);
+        sorted.sort(Comparator.comparingInt((VirtualNote e) -> e.keyIndex)
+                .thenComparingInt((e) -> e.measureIndex)
+                .thenComparingInt((e) -> e.beatIndex)
+                .thenComparingInt((e) -> e.noteOffset)
+                .thenComparingInt((e) -> Float.floatToIntBits(e.noteLength)));
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (VirtualNote vnote : sorted) {
+            int[] fields = {vnote.keyIndex, vnote.measureIndex, vnote.beatIndex, vnote.noteOffset, Float.floatToIntBits(vnote.noteLength)};
+            for (int field : fields) {
+                h = (h ^ field) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
     /**
      * このフレーズをモデルの指定位置に挿入します.
      *
@@ -140,9 +206,8 @@ public class Phrase {
             return false;
         }
         final int basePos = basePosTemp;
-        model.beginCompoundUndoableEdit();
         // 全てのノートを貼り付け
-        noteLocList.forEach((vNoteLoc) -> {
+        model.batch((editor) -> noteLocList.forEach((vNoteLoc) -> {
             NoteLocation noteLoc = vNoteLoc.loc;
             int gp = noteLoc.globalPos;
             int lp = gp - basePos;
@@ -159,9 +224,8 @@ public class Phrase {
             int beatMod = measureMod % beatWidth;
             Measure offsetMeasure = key.getMeasure(measureIndex);
             Beat offsetBeat = offsetMeasure.getBeat(beatIndex);
-            offsetBeat.generateNote(beatMod, vNoteLoc.note.noteLength);
-        });
-        model.endCompoundUndoableEdit();
+            editor.generateNote(offsetBeat, beatMod, vNoteLoc.note.noteLength);
+        }));
         return true;
     }
 }
@@ -0,0 +1,366 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * 多数のフレーズを一つのファイルに保存するライブラリです.
+ * <br>
+ * ファイルには追記だけが行われ、同じ名前で保存し直した場合や削除した場合も新しいレコードが追加されます。<br>
+ * 開いた時点ではレコードの名前とハッシュ値だけを読み、名前とノートの内容のハッシュ値で引ける索引を作ります。<br>
+ * フレーズの本体は要求された時点で読み込まれ、最近使われたものだけがキャッシュされます。<br>
+ * キャッシュには複製が保持され、返されるフレーズも毎回複製されるので、呼び出し側で変更しても構いません。<br>
+ *
+ * @author desktopgame
+ */
+public class PhraseLibrary implements Closeable {
+
+    public static final int CACHE_SIZE_DEFAULT = 64;
+
+    private static final int MAGIC = 0x5052504C;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte RECORD_PHRASE = 1;
+    private static final byte RECORD_REMOVED = 2;
+
+    private FileChannel channel;
+    private LinkedHashMap<String, Entry> nameTable;
+    private HashMap<Long, Entry> hashTable;
+    private LinkedHashMap<Long, Phrase> cache;
+
+    private static class Entry {
+
+        public final String name;
+        public final long hash;
+        public final long position;
+        public final int length;
+
+        public Entry(String name, long hash, long position, int length) {
+            this.name = name;
+            this.hash = hash;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    private PhraseLibrary(FileChannel channel, int cacheSize) {
+        this.channel = channel;
+        this.nameTable = new LinkedHashMap<>();
+        this.hashTable = new HashMap<>();
+        this.cache = new LinkedHashMap<Long, Phrase>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Phrase> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * ライブラリを開きます. ファイルが無ければ作成します。
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static PhraseLibrary open(Path path) throws IOException {
+        return open(path, CACHE_SIZE_DEFAULT);
+    }
+
+    /**
+     * ライブラリを開きます. ファイルが無ければ作成します。
+     *
+     * @param path
+     * @param cacheSize キャッシュするフレーズの数
+     * @return
+     * @throws IOException
+     */
+    public static PhraseLibrary open(Path path, int cacheSize) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        PhraseLibrary lib = new PhraseLibrary(ch, cacheSize);
+        try {
+            lib.scan();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return lib;
+    }
+
+    private void scan() throws IOException {
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(header, 0);
+            return;
+        }
+        ByteBuffer header = readFully(0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("not a phrase library");
+        }
+        // レコードの本体は読まずに、長さを使って読み飛ばす
+        // 末尾を切り詰めるので、マップせずに位置を指定して読む(Windowsではマップ中のファイルは切り詰められない)
+        long size = channel.size();
+        int headLength = 4 + 1 + 8 + 2;
+        ScanWindow window = new ScanWindow(size);
+        long position = HEADER_SIZE;
+        while (position + headLength <= size) {
+            ByteBuffer head = window.get(position, headLength);
+            int length = head.getInt();
+            byte type = head.get();
+            long hash = head.getLong();
+            int nameLength = head.getShort() & 0xFFFF;
+            long next = position + 4 + length;
+            // 書き込みの途中で終了したレコードは無視する
+            if (length < headLength - 4 + nameLength || next > size) {
+                break;
+            }
+            ByteBuffer nameBytes = window.get(position + headLength, nameLength);
+            String name = StandardCharsets.UTF_8.decode(nameBytes).toString();
+            if (type == RECORD_PHRASE) {
+                index(new Entry(name, hash, position, length));
+            } else if (type == RECORD_REMOVED) {
+                unindex(name);
+            }
+            position = next;
+        }
+        channel.truncate(position);
+    }
+
+    /**
+     * ファイルを大きな単位で読み込んで、レコードの先頭と名前を切り出すクラスです.
+     */
+    private final class ScanWindow {
+
+        private final long size;
+        private final ByteBuffer buf;
+        private long start;
+
+        ScanWindow(long size) {
+            this.size = size;
+            // 名前の最大長を含むレコードの先頭が必ず収まる大きさ
+            this.buf = ByteBuffer.allocate(1 << 17);
+            buf.limit(0);
+        }
+
+        ByteBuffer get(long position, int length) throws IOException {
+            if (position < start || position + length > start + buf.limit()) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), size - position));
+                this.start = position;
+                readFully(buf, position);
+            }
+            ByteBuffer b = buf.duplicate();
+            b.position((int) (position - start));
+            b.limit(b.position() + length);
+            return b;
+        }
+    }
+
+    private void index(Entry e) {
+        unindex(e.name);
+        nameTable.put(e.name, e);
+        hashTable.put(e.hash, e);
+    }
+
+    private void unindex(String name) {
+        Entry old = nameTable.remove(name);
+        if (old != null) {
+            cache.remove(old.position);
+            if (hashTable.remove(old.hash, old)) {
+                // 同じ内容で別の名前のフレーズがあればそちらを引けるようにする
+                nameTable.values().stream().filter((e) -> e.hash == old.hash).findFirst().ifPresent((e) -> hashTable.put(e.hash, e));
+            }
+        }
+    }
+
+    /**
+     * フレーズを追加します. 同じ名前のフレーズは置き換えられます。
+     * <br>
+     * 同じ名前で同じ内容のフレーズが既にあれば何も書き込みません。<br>
+     *
+     * @param phrase
+     * @throws IOException
+     */
+    public synchronized void add(Phrase phrase) throws IOException {
+        long hash = phrase.contentHash();
+        Entry old = nameTable.get(phrase.getName());
+        if (old != null && old.hash == hash) {
+            return;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        phrase.writeTo(new DataOutputStream(body));
+        long position = append(RECORD_PHRASE, hash, phrase.getName(), body.toByteArray());
+        Entry e = new Entry(phrase.getName(), hash, position, (int) (channel.size() - position - 4));
+        index(e);
+        // 呼び出し側が後から変更してもキャッシュが変わらないように複製する
+        cache.put(e.position, copyOf(phrase));
+    }
+
+    /**
+     * 指定の名前のフレーズを削除します.
+     *
+     * @param name
+     * @return 削除したならtrue
+     * @throws IOException
+     */
+    public synchronized boolean remove(String name) throws IOException {
+        if (!nameTable.containsKey(name)) {
+            return false;
+        }
+        append(RECORD_REMOVED, 0, name, new byte[0]);
+        unindex(name);
+        return true;
+    }
+
+    private long append(byte type, long hash, String name, byte[] body) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF) {
+            throw new IOException("name too long");
+        }
+        int length = 1 + 8 + 2 + nameBytes.length + body.length;
+        ByteBuffer buf = ByteBuffer.allocate(4 + length);
+        buf.putInt(length).put(type).putLong(hash).putShort((short) nameBytes.length).put(nameBytes).put(body).flip();
+        long position = channel.size();
+        writeFully(buf, position);
+        return position;
+    }
+
+    /**
+     * 指定の名前のフレーズの複製を返します. キャッシュに無ければファイルから読み込みます。
+     *
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public synchronized Optional<Phrase> get(String name) throws IOException {
+        Entry e = nameTable.get(name);
+        if (e == null) {
+            return Optional.empty();
+        }
+        return Optional.of(load(e));
+    }
+
+    /**
+     * 指定の内容のハッシュ値を持つフレーズの複製を返します.
+     *
+     * @param hash
+     * @return
+     * @throws IOException
+     * @see Phrase#contentHash()
+     */
+    public synchronized Optional<Phrase> findByHash(long hash) throws IOException {
+        Entry e = hashTable.get(hash);
+        if (e == null) {
+            return Optional.empty();
+        }
+        return Optional.of(load(e));
+    }
+
+    private Phrase load(Entry e) throws IOException {
+        Phrase p = cache.get(e.position);
+        if (p == null) {
+            int nameLength = e.name.getBytes(StandardCharsets.UTF_8).length;
+            long bodyPosition = e.position + 4 + 1 + 8 + 2 + nameLength;
+            int bodyLength = e.length - (1 + 8 + 2 + nameLength);
+            ByteBuffer body = readFully(bodyPosition, bodyLength);
+            p = Phrase.readFrom(new DataInputStream(new ByteArrayInputStream(body.array(), 0, bodyLength)));
+            cache.put(e.position, p);
+        }
+        return copyOf(p);
+    }
+
+    private static Phrase copyOf(Phrase phrase) {
+        // VirtualNoteは変更できないので、一覧だけを複製すればよい
+        Phrase p = new Phrase(phrase.getVirtualNotes());
+        p.setName(phrase.getName());
+        return p;
+    }
+
+    /**
+     * 保存されている全てのフレーズの名前を保存された順に返します. フレーズは読み込まれません。
+     *
+     * @return
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(nameTable.keySet());
+    }
+
+    /**
+     * 指定の名前のフレーズがあるならtrueを返します.
+     *
+     * @param name
+     * @return
+     */
+    public synchronized boolean contains(String name) {
+        return nameTable.containsKey(name);
+    }
+
+    /**
+     * 保存されているフレーズの数を返します.
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return nameTable.size();
+    }
+
+    /**
+     * キャッシュされているフレーズの数を返します.
+     *
+     * @return
+     */
+    public synchronized int getCachedCount() {
+        return cache.size();
+    }
+
+    private ByteBuffer readFully(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(buf, position);
+        return buf;
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        long p = position;
+        while (buf.hasRemaining()) {
+            p += channel.write(buf, p);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
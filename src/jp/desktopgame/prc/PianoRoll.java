@@ -49,15 +49,15 @@ import javax.swing.SwingUtilities;
  * <br>
  * Undo/Redoのサポート<br>
  * ノートに対する編集操作はほとんどUndo/Redoに対応しています。<br>
- * 正し、のちに述べるような基準単位の変更が行われた後では正常にUndo/Redoできることが保証されません。<br>
- * このような変更が行われた場合にはUndoManager#discardAllEditsで変更履歴を破棄するべきです。<br>
+ * のちに述べるような基準単位の変更も、それによって失われるノートと一緒に記録されます。<br>
+ * 変更履歴が使用するメモリの量はBudgetUndoManagerで制限できます。<br>
  * <br>
  * 基準単位の変更<br>
  * このコンポーネントだけでなく、他の多くのMIDIシーケンサーに言えることですが、<br>
  * 基本的に小節や拍の分割単位を一部分だけ変更することはできません。<br>
  * このコンポーネントでは後から分割単位を変更することも可能ですが、必ず全体に対して同じような変更を加える必要があります。<br>
  * また、分割単位が縮小された場合にはいくつかのノートや拍が削除されますが、<br>
- * このような分割単位の変更による削除については変更履歴が保存されません。<br>
+ * このような分割単位の変更による削除も変更履歴に保存されます。<br>
  * <br>
  * シーケンサーとの同期<br>
  * UpdateRate, PianoRollLayerUIクラスを参照してください。<br>
@@ -111,7 +111,7 @@ public class PianoRoll extends JComponent implements Scrollable {
         List<Note> selected = getModel().getSelectedNotes();
         this.clipboard = Phrase.createFromNotes(selected);
         if (remove) {
-            selected.forEach(Note::removeFromBeat);
+            getModel().batch((editor) -> selected.forEach(editor::removeNote));
         }
     }
 
@@ -134,7 +134,6 @@ public class PianoRoll extends JComponent implements Scrollable {
         int beatInMeasure = getModel().getKey(0).getMeasure(0).getBeatCount();
         clipboard.expand(getModel(), offset, beatInMeasure, getBeatWidth());
         getModel().clearAllSelection();
-        this.clipboard = null;
     }
 
     /**
@@ -10,13 +10,12 @@ package jp.desktopgame.prc;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.util.Optional;
 import javax.swing.JLayer;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
-import javax.swing.undo.UndoManager;
+import jp.desktopgame.prc.undo.BudgetUndoManager;
 
 /**
  *
@@ -28,7 +27,7 @@ public class PianoRollEditorPane extends JPanel {
     private PianoRollLayerUI pianoRollLayerUI;
     private Keyboard keyboard;
     private Ruler ruler;
-    private UndoManager undoManager;
+    private BudgetUndoManager undoManager;
 
     private UndoableEditHandler undoableEditHandler;
     private NoteResizeHandler noteResizeHandler;
@@ -42,7 +41,7 @@ public class PianoRollEditorPane extends JPanel {
         JScrollPane s = new JScrollPane(new JLayer<PianoRoll>(pianoRoll, pianoRollLayerUI));
         this.keyboard = new Keyboard(pianoRoll, s);
         this.ruler = new Ruler(pianoRoll, pianoRollLayerUI, s, keyboard);
-        this.undoManager = new UndoManager();
+        this.undoManager = new BudgetUndoManager(pianoRoll.getModel());
         this.undoableEditHandler = new UndoableEditHandler();
         this.noteResizeHandler = new NoteResizeHandler();
         this.noteDragHandler = new NoteDragHandler();
@@ -55,7 +54,7 @@ public class PianoRollEditorPane extends JPanel {
         pianoRoll.getModel().addPianoRollModelListener(pianoRollModelHandler);
         pianoRoll.addPropertyChangeListener((pe) -> {
             if (pe.getPropertyName().equals("model")) {
-                undoManager.discardAllEdits();
+                undoManager.setModel((PianoRollModel) pe.getNewValue());
                 ((PianoRollModel) pe.getOldValue()).removeUndoableEditListener(undoableEditHandler);
                 ((PianoRollModel) pe.getNewValue()).addUndoableEditListener(undoableEditHandler);
                 ((PianoRollModel) pe.getOldValue()).removePianoRollModelListener(pianoRollModelHandler);
@@ -80,7 +79,7 @@ public class PianoRollEditorPane extends JPanel {
         pianoRoll.cut();
     }
 
-    public UndoManager getUndoManager() {
+    public BudgetUndoManager getUndoManager() {
         return undoManager;
     }
 
@@ -134,23 +133,9 @@ public class PianoRollEditorPane extends JPanel {
 
         @Override
         public void pianoRollModelUpdate(PianoRollModelEvent e) {
-            // 基準となる値が変更された場合には変更履歴自体を削除
-            Optional<MeasureEvent> meOpt = e.getMeasureEvent();
-            Optional<KeyEvent> keOpt = e.getInnerEvent();
-            if (meOpt.isPresent()) {
-                MeasureEvent me = meOpt.get();
-                if (me.getType() == MeasureEventType.BEAT_CREATED || me.getType() == MeasureEventType.BEAT_REMOVED) {
-                    undoManager.discardAllEdits();
-                }
-            } else if (keOpt.isPresent()) {
-                KeyEvent ke = keOpt.get();
-                if (ke.getType() == KeyEventType.MEASURE_CREATED || ke.getType() == KeyEventType.MEASURE_REMOVED) {
-                    undoManager.discardAllEdits();
-                }
-            } else {
-                if (e.getType() == PianoRollModelEventType.KEY_CREATED || e.getType() == PianoRollModelEventType.KEY_REMOVED) {
-                    undoManager.discardAllEdits();
-                }
+            // キー/小節/拍の数の変更は記録されるが、一括読み込みは記録されないので変更履歴自体を削除
+            if (e.getType() == PianoRollModelEventType.BULK_LOAD) {
+                undoManager.discardAllEdits();
             }
         }
 
@@ -11,34 +11,55 @@ package jp.desktopgame.prc;
 import java.awt.AWTEvent;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import javax.swing.JComponent;
 import javax.swing.JLayer;
+import javax.swing.JViewport;
 import javax.swing.Timer;
 import javax.swing.event.EventListenerList;
 import javax.swing.plaf.LayerUI;
 
 /**
+ * ピアノロールの上にシーケンスの位置を示すバーを描画し、再生を制御するレイヤーです.
+ * <br>
+ * ノートの発火はPlaybackSchedulerが専用のスレッドから時刻どおりに行い、<br>
+ * バーの位置は画面の更新間隔ごとにスケジューラの位置から計算されます。<br>
+ * setDiagnosticsVisibleで、描画の速さやモデルのイベントの数を表示する診断用のパネルを重ねることができます。<br>
  *
  * @author desktopgame
  */
 public class PianoRollLayerUI extends LayerUI<PianoRoll> {
 
+    private static final int FRAME_DELAY = 16;
+    private static final int DIAGNOSTICS_DELAY = 500;
+
     private JLayer<PianoRoll> self;
     private PianoRoll p;
     private int barPosition;
     private int barWidth;
     private Color barColor;
     private BarStyle barStyle;
-    private Timer timer;
+    private Timer frameTimer;
     private UpdateRate updateRate;
     private EventListenerList listenerList;
-    private List<Note> cachedNotes;
+    private PlaybackScheduler scheduler;
+    private boolean scheduleDirty;
+    private PianoRollModelHandler pianoRollModelHandler;
+    private PropertyChangeHandler propHandler;
+    private boolean diagnosticsVisible;
+    private Timer diagnosticsTimer;
+    private int viewportScrollMode;
+    private Rectangle diagnosticsRect;
+    private String[] diagnosticsLines;
+    private long sampleNanos;
+    private long samplePaintCount;
+    private long samplePaintNanos;
+    private long sampleEventCount;
 
     public enum BarStyle {
         Loop,
@@ -50,61 +71,68 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
         this.barWidth = 1;
         this.barColor = Color.GRAY;
         this.barStyle = BarStyle.PlayOneShot;
-        this.timer = new Timer(0, this::onTime);
+        this.frameTimer = new Timer(FRAME_DELAY, this::onFrame);
         this.listenerList = new EventListenerList();
-        this.cachedNotes = new ArrayList<>();
+        this.scheduler = new PlaybackScheduler(this);
+        this.scheduleDirty = true;
+        this.pianoRollModelHandler = new PianoRollModelHandler();
+        this.propHandler = new PropertyChangeHandler();
+        this.diagnosticsTimer = new Timer(DIAGNOSTICS_DELAY, this::onDiagnostics);
+        this.diagnosticsRect = new Rectangle();
+        this.diagnosticsLines = new String[0];
     }
 
-    private boolean sync;
-
-    private void onTime(ActionEvent e) {
-        self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
-        this.barPosition++;
-        fireSequenceEvent(new SequenceEvent(this, barPosition - 1, barPosition));
-        int index = p.getUI().getRelativeBeatIndex(barPosition);
-        List<Note> allNote = new ArrayList<>();
-        for (int y = 0; y < p.getUI().computeHeight(); y += p.getBeatHeight()) {
-            List<Note> sub = p.getUI().getNotesAt(barPosition, y);
-            allNote.addAll(sub);
-        }
-        List<Note> notes = allNote.stream().distinct().collect(Collectors.toList());
-        // ノートを再生
-        for (Note note : notes) {
-            if (!cachedNotes.contains(note)) {
-                fireNotePlay(note, NotePlayEventType.NOTE_ON);
-            }
-        }
-        // ノートを停止
-        List<Note> noteOffList = cachedNotes.stream().filter((n) -> !notes.contains(n)).collect(Collectors.toList());
-        for (Note note : noteOffList) {
-            fireNotePlay(note, NotePlayEventType.NOTE_OFF);
+    private void onFrame(ActionEvent e) {
+        // ノートの発火はスケジューラに任せて、ここでは画面の更新だけを行う
+        validateSchedule();
+        if (scheduler.isRunning()) {
+            moveBar(scheduler.tickToX(scheduler.getTickPosition(), p.getBeatWidth()));
+        } else {
+            frameTimer.stop();
+            scheduler.seek(0);
+            moveBar(0);
         }
-        cachedNotes.removeIf((n) -> !notes.contains(n));
-        cachedNotes.addAll(notes);
-        cachedNotes = new ArrayList<>(cachedNotes.stream().distinct().collect(Collectors.toList()));
-        self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
-        if (barPosition < p.getUI().computeWidth()) {
+    }
+
+    private void moveBar(int pos) {
+        if (pos == barPosition) {
             return;
         }
-        if (this.barStyle == BarStyle.Loop) {
-            this.barPosition = 0;
-            fireSequenceEvent(new SequenceEvent(this, barPosition, 0));
-        } else {
-            self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
-            this.barPosition = 0;
-            fireSequenceEvent(new SequenceEvent(this, barPosition, 0));
-            timer.stop();
-            self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
+        self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
+        int a = this.barPosition;
+        this.barPosition = pos;
+        fireSequenceEvent(new SequenceEvent(this, a, pos));
+        self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
+    }
+
+    private void validateSchedule() {
+        if (scheduleDirty) {
+            this.scheduleDirty = false;
+            scheduler.setSchedule(p.getModel(), p.getBeatWidth());
         }
     }
 
-    private void fireNotePlay(Note note, NotePlayEventType type) {
+    /**
+     * ノートの発火を行うスケジューラを返します.
+     *
+     * @return
+     */
+    public PlaybackScheduler getPlaybackScheduler() {
+        return scheduler;
+    }
+
+    void fireNotePlay(Note note, NotePlayEventType type) {
         NotePlayEvent e = new NotePlayEvent(this, note, type);
         for (NotePlayListener listener : listenerList.getListeners(NotePlayListener.class)) {
             listener.notePlay(e);
         }
     }
 
+    /**
+     * ノートのオン/オフを受け取るリスナーを追加します. リスナーはPlaybackSchedulerのスレッドから呼び出されます。
+     *
+     * @param listener
+     */
     public void addNotePlayListener(NotePlayListener listener) {
         listenerList.add(NotePlayListener.class, listener);
     }
@@ -136,6 +164,11 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
         self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
         int a = this.barPosition;
         this.barPosition = pos;
+        // 同期による1ピクセル程度のずれでは鳴っているノートを止めない
+        long tick = scheduler.xToTick(pos, p.getBeatWidth());
+        if (!scheduler.isRunning() || Math.abs(scheduler.getTickPosition() - tick) > scheduler.xToTick(1, p.getBeatWidth())) {
+            scheduler.seek(tick);
+        }
         fireSequenceEvent(new SequenceEvent(this, a, pos));
         self.repaint(new Rectangle(barPosition, 0, barWidth, p.getUI().computeHeight()));
     }
@@ -155,10 +188,10 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
      * @param updateRate
      */
     public void setSequenceUpdateRate(UpdateRate updateRate) {
-        int bw = p.getBeatWidth();
-        int delay = updateRate.computeTimerDelay(bw);
-        timer.setInitialDelay(0);
-        timer.setDelay(delay);
+        if (this.updateRate == null || this.updateRate.timebase != updateRate.timebase) {
+            this.scheduleDirty = true;
+        }
+        scheduler.setUpdateRate(updateRate);
         this.updateRate = updateRate;
     }
 
@@ -175,22 +208,138 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
      * シーケンスの再生を開始します.
      */
     public void playSequence() {
-        timer.setRepeats(true);
-        timer.setInitialDelay(0);
-        timer.start();
+        validateSchedule();
+        scheduler.setLoop(barStyle == BarStyle.Loop);
+        scheduler.start(scheduler.xToTick(barPosition, p.getBeatWidth()));
+        frameTimer.start();
     }
 
     /**
      * シーケンスを停止します.
      */
     public void stopSequence() {
-        timer.stop();
+        frameTimer.stop();
+        scheduler.stop();
     }
 
     public PianoRoll getPianoRoll() {
         return p;
     }
 
+    /**
+     * 診断用のパネルを表示するかどうかを設定します.
+     * <br>
+     * パネルには描画の回数/秒, 最後と平均の描画時間, 最後に描画した範囲の面積,<br>
+     * モデルのイベントの数/秒, 変更履歴の記録の数, ノートの数が表示されます。<br>
+     * 値は一定の間隔で集計され、パネルの再描画も描画の回数に含まれます。<br>
+     * 表示している間は、パネルが残らないようにビューポートのスクロールで画面の複写を行いません。<br>
+     *
+     * @param diagnosticsVisible
+     */
+    public void setDiagnosticsVisible(boolean diagnosticsVisible) {
+        if (this.diagnosticsVisible == diagnosticsVisible) {
+            return;
+        }
+        this.diagnosticsVisible = diagnosticsVisible;
+        JViewport viewport = self != null && self.getParent() instanceof JViewport ? (JViewport) self.getParent() : null;
+        if (diagnosticsVisible) {
+            if (viewport != null) {
+                this.viewportScrollMode = viewport.getScrollMode();
+                viewport.setScrollMode(JViewport.SIMPLE_SCROLL_MODE);
+            }
+            this.diagnosticsLines = new String[0];
+            sampleDiagnostics(System.nanoTime());
+            diagnosticsTimer.start();
+        } else {
+            diagnosticsTimer.stop();
+            if (viewport != null) {
+                viewport.setScrollMode(viewportScrollMode);
+            }
+            repaintDiagnostics();
+        }
+    }
+
+    /**
+     * 診断用のパネルを表示しているならtrueを返します.
+     *
+     * @return
+     */
+    public boolean isDiagnosticsVisible() {
+        return diagnosticsVisible;
+    }
+
+    private void onDiagnostics(ActionEvent e) {
+        if (p == null || !(p.getUI() instanceof BasicPianoRollUI)) {
+            return;
+        }
+        BasicPianoRollUI ui = (BasicPianoRollUI) p.getUI();
+        PianoRollModel model = p.getModel();
+        long now = System.nanoTime();
+        double seconds = (now - sampleNanos) / 1e9;
+        long paints = ui.getPaintCount() - samplePaintCount;
+        long paintNanos = ui.getTotalPaintNanos() - samplePaintNanos;
+        String events = "-";
+        String undo = "-";
+        if (model instanceof DefaultPianoRollModel) {
+            DefaultPianoRollModel dModel = (DefaultPianoRollModel) model;
+            events = String.format("%.1f", (dModel.getFiredEventCount() - sampleEventCount) / seconds);
+            undo = String.valueOf(dModel.getUndoJournal().size());
+        }
+        this.diagnosticsLines = new String[]{
+            String.format("paint: %.1f fps", paints / seconds),
+            String.format("paint ms: %.2f last, %.2f avg", ui.getLastPaintNanos() / 1e6, paints > 0 ? paintNanos / 1e6 / paints : 0),
+            String.format("dirty area: %d px", ui.getLastPaintArea()),
+            "model events/s: " + events,
+            "undo records: " + undo,
+            "notes: " + ui.getNoteCount()
+        };
+        sampleDiagnostics(now);
+        repaintDiagnostics();
+    }
+
+    private void sampleDiagnostics(long now) {
+        this.sampleNanos = now;
+        if (p != null && p.getUI() instanceof BasicPianoRollUI) {
+            BasicPianoRollUI ui = (BasicPianoRollUI) p.getUI();
+            this.samplePaintCount = ui.getPaintCount();
+            this.samplePaintNanos = ui.getTotalPaintNanos();
+        }
+        if (p != null && p.getModel() instanceof DefaultPianoRollModel) {
+            this.sampleEventCount = ((DefaultPianoRollModel) p.getModel()).getFiredEventCount();
+        }
+    }
+
+    private void repaintDiagnostics() {
+        if (self == null) {
+            return;
+        }
+        // 前回の位置と、スクロール後の現在の位置の両方を描き直す
+        self.repaint(diagnosticsRect);
+        Rectangle visible = self.getVisibleRect();
+        self.repaint(visible.x, visible.y, diagnosticsRect.width, diagnosticsRect.height);
+    }
+
+    private void drawDiagnostics(Graphics2D g2, JComponent c) {
+        if (diagnosticsLines.length == 0) {
+            return;
+        }
+        FontMetrics fm = g2.getFontMetrics();
+        int width = 0;
+        for (String line : diagnosticsLines) {
+            width = Math.max(width, fm.stringWidth(line));
+        }
+        Rectangle visible = c.getVisibleRect();
+        diagnosticsRect.setBounds(visible.x, visible.y, width + 16, (fm.getHeight() * diagnosticsLines.length) + 12);
+        g2.setColor(new Color(0, 0, 0, 160));
+        g2.fillRect(diagnosticsRect.x + 4, diagnosticsRect.y + 4, diagnosticsRect.width - 4, diagnosticsRect.height - 4);
+        g2.setColor(Color.white);
+        int y = diagnosticsRect.y + 8 + fm.getAscent();
+        for (String line : diagnosticsLines) {
+            g2.drawString(line, diagnosticsRect.x + 10, y);
+            y += fm.getHeight();
+        }
+    }
+
     @Override
     public void paint(Graphics g, JComponent c) {
         super.paint(g, c);
@@ -198,6 +347,9 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
         Color color = g2.getColor();
         g2.setColor(Color.red);
         g2.fillRect(barPosition, 0, barWidth, p.getUI().computeHeight());
+        if (diagnosticsVisible) {
+            drawDiagnostics(g2, c);
+        }
         g2.setColor(color);
     }
 
@@ -206,6 +358,9 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
         super.installUI(c);
         ((JLayer) c).setLayerEventMask(AWTEvent.MOUSE_EVENT_MASK);
         this.p = (this.self = ((JLayer<PianoRoll>) c)).getView();
+        p.addPropertyChangeListener(propHandler);
+        p.getModel().addPianoRollModelListener(pianoRollModelHandler);
+        this.scheduleDirty = true;
         setSequenceUpdateRate(UpdateRate.bpmToUpdateRate(480, 60));
     }
 
@@ -213,6 +368,38 @@ public class PianoRollLayerUI extends LayerUI<PianoRoll> {
     public void uninstallUI(JComponent c) {
         super.uninstallUI(c);
         ((JLayer) c).setLayerEventMask(0);
+        stopSequence();
+        setDiagnosticsVisible(false);
+        p.removePropertyChangeListener(propHandler);
+        p.getModel().removePianoRollModelListener(pianoRollModelHandler);
         this.p = null;
     }
+
+    private class PianoRollModelHandler implements PianoRollModelListener {
+
+        @Override
+        public void pianoRollModelUpdate(PianoRollModelEvent e) {
+            // 選択や試聴では発火のタイミングは変わらない
+            NoteEvent ne = e.peekNoteEvent();
+            boolean ignore = ne != null && (ne.getType() == NoteEventType.PLAY || ne.getType() == NoteEventType.SELECTION_CHANGE);
+            if (!ignore) {
+                PianoRollLayerUI.this.scheduleDirty = true;
+            }
+        }
+    }
+
+    private class PropertyChangeHandler implements PropertyChangeListener {
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            String name = evt.getPropertyName();
+            if ("model".equals(name)) {
+                ((PianoRollModel) evt.getOldValue()).removePianoRollModelListener(pianoRollModelHandler);
+                ((PianoRollModel) evt.getNewValue()).addPianoRollModelListener(pianoRollModelHandler);
+                PianoRollLayerUI.this.scheduleDirty = true;
+            } else if ("beatWidth".equals(name)) {
+                PianoRollLayerUI.this.scheduleDirty = true;
+            }
+        }
+    }
 }
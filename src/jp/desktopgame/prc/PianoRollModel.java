@@ -10,6 +10,7 @@ package jp.desktopgame.prc;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import javax.swing.event.UndoableEditListener;
 
@@ -66,6 +67,41 @@ public interface PianoRollModel {
      */
     public void endCompoundUndoableEdit();
 
+    /**
+     * ノートに対する一連の変更をまとめて適用します.
+     * <br>
+     * 実装はこの間のイベントをまとめて、PianoRollModelEventType.BATCH_UPDATEとして一度だけ通知できます。<br>
+     * 変更は一つのUndoableEditとして記録されます。<br>
+     *
+     * @param c
+     */
+    public default void batch(Consumer<BatchEditor> c) {
+        beginCompoundUndoableEdit();
+        try {
+            c.accept(new DefaultBatchEditor());
+        } finally {
+            endCompoundUndoableEdit();
+        }
+    }
+
+    /**
+     * ノートを一括で読み込みます.
+     * <br>
+     * batchと異なり変更は記録されず、Undo/Redoすることはできません。<br>
+     * 実装はこの間のイベントを通知せず、最後にPianoRollModelEventType.BULK_LOADを一度だけ通知できます。<br>
+     * ファイルからの読み込みのように、大量のノートを作成する場合に使用します。<br>
+     *
+     * @param c
+     */
+    public default void bulkLoad(Consumer<BatchEditor> c) {
+        beginApplyUndoableEdit();
+        try {
+            c.accept(new DefaultBatchEditor());
+        } finally {
+            endApplyUndoableEdit();
+        }
+    }
+
     public int getKeyHeight(int keyIndex);
 
     public Key getKey(int i);
@@ -83,29 +119,25 @@ public interface PianoRollModel {
     public default List<Note> getAllNotes() {
         return copyKeyList()
                 .stream()
-                .flatMap((e) -> e.copyMeasureList().stream())
-                .flatMap((e) -> e.copyBeatList().stream())
+                .flatMap((e) -> e.copyMaterializedMeasureList().stream())
+                .flatMap((e) -> e.copyMaterializedBeatList().stream())
                 .flatMap((e) -> e.copyNoteList().stream()).collect(Collectors.toList());
     }
 
     public default List<Note> getSelectedNotes() {
         return copyKeyList()
                 .stream()
-                .flatMap((e) -> e.copyMeasureList().stream())
-                .flatMap((e) -> e.copyBeatList().stream())
+                .flatMap((e) -> e.copyMaterializedMeasureList().stream())
+                .flatMap((e) -> e.copyMaterializedBeatList().stream())
                 .flatMap((e) -> e.copyNoteList().stream())
                 .filter((e) -> e.isSelected()).collect(Collectors.toList());
     }
 
     public default void clearAllSelection() {
-        copyKeyList().forEach((k) -> {
-            k.copyMeasureList().forEach((me) -> {
-                me.copyBeatList().forEach((bb) -> {
-                    bb.copyNoteList().forEach((nn) -> {
-                        nn.setSelected(false);
-                    });
-                });
-            });
-        });
+        List<Note> notes = getSelectedNotes();
+        if (notes.isEmpty()) {
+            return;
+        }
+        batch((editor) -> notes.forEach((nn) -> editor.setSelected(nn, false)));
     }
 }
@@ -8,22 +8,48 @@
  */
 package jp.desktopgame.prc;
 
+import java.util.Collections;
 import java.util.EventObject;
+import java.util.List;
 import java.util.Optional;
 
 /**
+ * モデルの変更を表すイベントです.
+ * <br>
+ * ノートの変更などを伝えるイベントは、モデルとその下のキー/小節/拍/ノートで再利用されます。<br>
+ * 通知の後もイベントを保持する場合はcopyで複製してください。<br>
  *
  * @author desktopgame
  */
 public class PianoRollModelEvent extends EventObject {
 
     private PianoRollModelEventType type;
-    private Optional<KeyEvent> innerEvent;
+    private KeyEvent innerEvent;
+    private List<PianoRollModelEvent> batchEvents;
 
     public PianoRollModelEvent(PianoRollModel o, PianoRollModelEventType type, KeyEvent innerEvent) {
+        this(o, type, innerEvent, Collections.emptyList());
+    }
+
+    public PianoRollModelEvent(PianoRollModel o, PianoRollModelEventType type, KeyEvent innerEvent, List<PianoRollModelEvent> batchEvents) {
         super(o);
         this.type = type;
-        this.innerEvent = Optional.ofNullable(innerEvent);
+        this.innerEvent = innerEvent;
+        this.batchEvents = Collections.unmodifiableList(batchEvents);
+    }
+
+    void reset(PianoRollModelEventType type, KeyEvent innerEvent) {
+        this.type = type;
+        this.innerEvent = innerEvent;
+    }
+
+    /**
+     * 内側のイベントも含めて複製した新しいイベントを返します.
+     *
+     * @return
+     */
+    public PianoRollModelEvent copy() {
+        return new PianoRollModelEvent(getSource(), type, innerEvent == null ? null : innerEvent.copy(), batchEvents);
     }
 
     @Override
@@ -36,32 +62,47 @@ public class PianoRollModelEvent extends EventObject {
     }
 
     public Optional<KeyEvent> getInnerEvent() {
-        return innerEvent;
+        return Optional.ofNullable(innerEvent);
+    }
+
+    /**
+     * BATCH_UPDATEの場合に、まとめられた個々のイベントを発生した順に返します.
+     *
+     * @return
+     */
+    public List<PianoRollModelEvent> getBatchEvents() {
+        return batchEvents;
     }
 
     public Optional<MeasureEvent> getMeasureEvent() {
-        if (!innerEvent.isPresent()) {
-            return Optional.empty();
-        }
-        KeyEvent k = innerEvent.get();
-        return k.getInnerEvent();
+        return Optional.ofNullable(peekMeasureEvent());
     }
 
     public Optional<BeatEvent> getBeatEvent() {
-        Optional<MeasureEvent> m = getMeasureEvent();
-        if (!m.isPresent()) {
-            return Optional.empty();
-        }
-        MeasureEvent b = m.get();
-        return b.getInnerEvent();
+        return Optional.ofNullable(peekBeatEvent());
     }
 
     public Optional<NoteEvent> getNoteEvent() {
-        Optional<BeatEvent> b = getBeatEvent();
-        if (!b.isPresent()) {
-            return Optional.empty();
-        }
-        BeatEvent be = b.get();
-        return be.getInnerEvent();
+        return Optional.ofNullable(peekNoteEvent());
+    }
+
+    // 以下はOptionalを作らずに内側のイベントを返す. 無ければnull
+
+    KeyEvent peekKeyEvent() {
+        return innerEvent;
+    }
+
+    MeasureEvent peekMeasureEvent() {
+        return innerEvent == null ? null : innerEvent.peekInnerEvent();
+    }
+
+    BeatEvent peekBeatEvent() {
+        MeasureEvent m = peekMeasureEvent();
+        return m == null ? null : m.peekInnerEvent();
+    }
+
+    NoteEvent peekNoteEvent() {
+        BeatEvent b = peekBeatEvent();
+        return b == null ? null : b.peekInnerEvent();
     }
 }
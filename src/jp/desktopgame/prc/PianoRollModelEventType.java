@@ -15,5 +15,7 @@ package jp.desktopgame.prc;
 public enum PianoRollModelEventType {
     KEY_CREATED,
     KEY_REMOVED,
-    PROPAGATION_KEY_EVENTS
+    PROPAGATION_KEY_EVENTS,
+    BATCH_UPDATE,
+    BULK_LOAD
 }
@@ -0,0 +1,106 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+/**
+ * ある時点のPianoRollModelの内容を写し取った変更できない値です.
+ * <br>
+ * ConcurrentPianoRollModelが変更のたびに新しい版を公開します。<br>
+ * 変更されなかったキーのKeySnapshotは前の版と共有されます。<br>
+ * 作成された後は変更されないので、どのスレッドからでもロックせずに参照できます。<br>
+ *
+ * @author desktopgame
+ * @see ConcurrentPianoRollModel
+ */
+public final class PianoRollSnapshot {
+
+    private final long version;
+    private final int measureCount;
+    private final int beatCount;
+    private final KeySnapshot[] keys;
+    private final int noteCount;
+
+    PianoRollSnapshot(long version, int measureCount, int beatCount, KeySnapshot[] keys) {
+        this.version = version;
+        this.measureCount = measureCount;
+        this.beatCount = beatCount;
+        this.keys = keys;
+        int n = 0;
+        for (KeySnapshot key : keys) {
+            n += key.getNoteCount();
+        }
+        this.noteCount = n;
+    }
+
+    /**
+     * 版の番号を返します. 新しい版ほど大きな値になります。
+     *
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * キーの数を返します.
+     *
+     * @return
+     */
+    public int getKeyCount() {
+        return keys.length;
+    }
+
+    /**
+     * 小節の数を返します.
+     *
+     * @return
+     */
+    public int getMeasureCount() {
+        return measureCount;
+    }
+
+    /**
+     * 小節あたりの拍の数を返します.
+     *
+     * @return
+     */
+    public int getBeatCount() {
+        return beatCount;
+    }
+
+    /**
+     * 指定位置のキーの高さを返します.
+     *
+     * @param keyIndex
+     * @return
+     * @see PianoRollModel#getKeyHeight(int)
+     */
+    public int getKeyHeight(int keyIndex) {
+        return keys.length - keyIndex;
+    }
+
+    /**
+     * 指定位置のキーを返します.
+     *
+     * @param keyIndex
+     * @return
+     */
+    public KeySnapshot getKey(int keyIndex) {
+        return keys[keyIndex];
+    }
+
+    /**
+     * 全てのノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+}
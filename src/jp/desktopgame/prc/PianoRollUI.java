@@ -11,6 +11,7 @@ package jp.desktopgame.prc;
 import java.awt.Rectangle;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import javax.swing.plaf.ComponentUI;
 
 /**
@@ -28,6 +29,16 @@ public abstract class PianoRollUI extends ComponentUI {
 
     public abstract List<Note> getNotesAt(int x, int y);
 
+    /**
+     * 指定の矩形と重なるノートを返します.
+     *
+     * @param area
+     * @return
+     */
+    public List<Note> getNotesIn(Rectangle area) {
+        return getPianoRoll().getModel().getAllNotes().stream().filter((e) -> getNoteRect(e).intersects(area)).collect(Collectors.toList());
+    }
+
     public abstract int getRelativeBeatIndex(int x);
 
     public abstract int measureIndexToXOffset(int i);
@@ -0,0 +1,51 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * PlaybackSchedulerがノートのオン/オフをまとめて発火したことを表すJFRのイベントです.
+ *
+ * @author desktopgame
+ */
+@Name("jp.desktopgame.prc.PlaybackDispatch")
+@Label("Playback Dispatch")
+@Description("NotePlayEvents fired by the playback scheduler in one wake-up")
+@Category({"PianoRollComponent", "Playback"})
+@StackTrace(false)
+public final class PlaybackDispatchFlightEvent extends Event {
+
+    private static final EventType TYPE = EventType.getEventType(PlaybackDispatchFlightEvent.class);
+
+    /**
+     * このイベントの記録が有効ならtrueを返します. 無効な場合はイベントを作成する必要はありません。
+     *
+     * @return
+     */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+
+    @Label("Events Scanned")
+    @Description("Schedule entries consumed since the last dispatch")
+    public int eventsScanned;
+
+    @Label("Note On")
+    public int noteOnCount;
+
+    @Label("Note Off")
+    public int noteOffCount;
+}
@@ -0,0 +1,522 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ノートのオン/オフをティック順に並べて、専用のスレッドから時刻どおりに発火するクラスです.
+ * <br>
+ * 時刻はSystem#nanoTimeから計算するので、Swingのタイマーのようにミリ秒単位で丸められたり、<br>
+ * イベントディスパッチスレッドの混雑によって遅れたりすることがありません。<br>
+ * ティックはUpdateRateのタイムベースを単位とした拍の位置です。<br>
+ * 再生中は位置の進んだ区間に始点か終点があるノートだけを処理し、鳴っているノートは番号の集合で管理するので、<br>
+ * イベントの発火以外ではメモリを確保しません。<br>
+ * NotePlayEventはスケジューラのスレッドから発火されることに注意してください。詳しくはNotePlayListenerを参照してください。<br>
+ *
+ * @author desktopgame
+ */
+public class PlaybackScheduler {
+
+    private static final long MAX_PARK_NANOS = 50_000_000L;
+
+    private PianoRollLayerUI layerUI;
+    private final Object lock;
+    private final Object dispatchLock;
+    private Thread thread;
+    private boolean running;
+    private boolean loop;
+    private Schedule schedule;
+    private int cursor;
+    private long startTick;
+    private long startNanos;
+    private double nanosPerTick;
+    private float timebase;
+    private ActiveNoteSet activeNotes;
+    private Note[] pendingNotes;
+    private NotePlayEventType[] pendingTypes;
+    private int pendingCount;
+    private int scannedCount;
+    private Note[] firingNotes;
+    private NotePlayEventType[] firingTypes;
+    private HashSet<Note> releasedNotes;
+
+    public PlaybackScheduler(PianoRollLayerUI layerUI) {
+        this.layerUI = layerUI;
+        this.lock = new Object();
+        this.dispatchLock = new Object();
+        this.schedule = Schedule.EMPTY;
+        this.activeNotes = new ActiveNoteSet(0);
+        this.pendingNotes = new Note[64];
+        this.pendingTypes = new NotePlayEventType[64];
+        this.firingNotes = new Note[64];
+        this.firingTypes = new NotePlayEventType[64];
+        this.releasedNotes = new HashSet<>();
+        setUpdateRate(UpdateRate.bpmToUpdateRate(480, 60));
+    }
+
+    /**
+     * モデルからノートのオン/オフを集めてティック順に並べ直します.
+     * <br>
+     * イベントディスパッチスレッドから呼び出してください。<br>
+     * 再生中であれば、現在の位置で鳴っているべきノートとの差分を発火します。<br>
+     *
+     * @param model
+     * @param beatWidth
+     */
+    public void setSchedule(PianoRollModel model, int beatWidth) {
+        Schedule newSchedule = Schedule.create(model, beatWidth, timebase);
+        synchronized (lock) {
+            Schedule oldSchedule = this.schedule;
+            ActiveNoteSet oldNotes = this.activeNotes;
+            this.schedule = newSchedule;
+            this.activeNotes = new ActiveNoteSet(newSchedule.notes.length);
+            if (!running) {
+                return;
+            }
+            long tick = computeTick(System.nanoTime());
+            this.cursor = newSchedule.replay(tick + 1, activeNotes);
+            // 消えたノートと、新しく現在位置にかかったノートの差分を反映する
+            for (int i = 0; i < oldNotes.size(); i++) {
+                releasedNotes.add(oldSchedule.notes[oldNotes.get(i)]);
+            }
+            for (int i = 0; i < activeNotes.size(); i++) {
+                Note note = newSchedule.notes[activeNotes.get(i)];
+                if (!releasedNotes.remove(note)) {
+                    enqueue(note, NotePlayEventType.NOTE_ON);
+                }
+            }
+            for (Note note : releasedNotes) {
+                enqueue(note, NotePlayEventType.NOTE_OFF);
+            }
+            releasedNotes.clear();
+            wakeUp();
+        }
+    }
+
+    /**
+     * 更新レートを設定します. 再生中であれば現在の位置を保ったまま速度だけが変わります。
+     *
+     * @param updateRate
+     */
+    public void setUpdateRate(UpdateRate updateRate) {
+        synchronized (lock) {
+            long now = System.nanoTime();
+            long tick = running ? computeTick(now) : startTick;
+            // タイムベースが変わった場合はティックの単位も変わる
+            if (timebase > 0 && timebase != updateRate.timebase) {
+                tick = Math.round(tick * (double) updateRate.timebase / timebase);
+            }
+            this.startTick = tick;
+            this.startNanos = now;
+            this.nanosPerTick = updateRate.tick * 1_000_000_000.0;
+            this.timebase = updateRate.timebase;
+            wakeUp();
+        }
+    }
+
+    /**
+     * 末尾に到達したときに先頭に戻るかどうかを設定します.
+     *
+     * @param loop
+     */
+    public void setLoop(boolean loop) {
+        synchronized (lock) {
+            this.loop = loop;
+        }
+    }
+
+    /**
+     * 末尾に到達したときに先頭に戻るならtrueを返します.
+     *
+     * @return
+     */
+    public boolean isLoop() {
+        synchronized (lock) {
+            return loop;
+        }
+    }
+
+    /**
+     * 指定のティックから再生を開始します.
+     *
+     * @param tick
+     */
+    public void start(long tick) {
+        synchronized (lock) {
+            if (running) {
+                seekImpl(tick, System.nanoTime());
+                wakeUp();
+                return;
+            }
+            this.running = true;
+            seekImpl(tick, System.nanoTime());
+            this.thread = new Thread(this::run, "PlaybackScheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /**
+     * 再生を停止します. 鳴っているノートには全てNOTE_OFFが発火されます。
+     * <br>
+     * NOTE_OFFはスケジューラのスレッドが終了する前に発火されます。<br>
+     */
+    public void stop() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            this.startTick = Math.min(computeTick(System.nanoTime()), schedule.endTick);
+            this.running = false;
+            releaseAll();
+            wakeUp();
+            this.thread = null;
+        }
+    }
+
+    /**
+     * 再生位置を移動します. 鳴っているノートには全てNOTE_OFFが発火されます。
+     *
+     * @param tick
+     */
+    public void seek(long tick) {
+        synchronized (lock) {
+            if (!running) {
+                this.startTick = tick;
+                return;
+            }
+            seekImpl(tick, System.nanoTime());
+            wakeUp();
+        }
+    }
+
+    /**
+     * 再生中ならtrueを返します.
+     *
+     * @return
+     */
+    public boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    /**
+     * 現在の再生位置をティックで返します. 末尾を超えることはありません。
+     *
+     * @return
+     */
+    public long getTickPosition() {
+        synchronized (lock) {
+            if (!running) {
+                return startTick;
+            }
+            return Math.min(computeTick(System.nanoTime()), schedule.endTick);
+        }
+    }
+
+    /**
+     * 画面上の位置をティックに変換します.
+     *
+     * @param x
+     * @param beatWidth
+     * @return
+     */
+    public long xToTick(int x, int beatWidth) {
+        return Math.round((double) x * timebase / beatWidth);
+    }
+
+    /**
+     * ティックを画面上の位置に変換します.
+     *
+     * @param tick
+     * @param beatWidth
+     * @return
+     */
+    public int tickToX(long tick, int beatWidth) {
+        return (int) ((double) tick * beatWidth / timebase);
+    }
+
+    private long computeTick(long now) {
+        return startTick + (long) ((now - startNanos) / nanosPerTick);
+    }
+
+    private void seekImpl(long tick, long now) {
+        releaseAll();
+        this.startTick = tick;
+        this.startNanos = now;
+        // 移動先の位置をまたいでいるノートは鳴らし始める
+        this.cursor = schedule.replay(tick, activeNotes);
+        for (int i = 0; i < activeNotes.size(); i++) {
+            enqueue(schedule.notes[activeNotes.get(i)], NotePlayEventType.NOTE_ON);
+        }
+    }
+
+    private void releaseAll() {
+        for (int i = 0; i < activeNotes.size(); i++) {
+            enqueue(schedule.notes[activeNotes.get(i)], NotePlayEventType.NOTE_OFF);
+        }
+        activeNotes.clear();
+    }
+
+    private void wakeUp() {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void enqueue(Note note, NotePlayEventType type) {
+        if (pendingCount == pendingNotes.length) {
+            this.pendingNotes = Arrays.copyOf(pendingNotes, pendingCount * 2);
+            this.pendingTypes = Arrays.copyOf(pendingTypes, pendingCount * 2);
+        }
+        pendingNotes[pendingCount] = note;
+        pendingTypes[pendingCount] = type;
+        this.pendingCount++;
+    }
+
+    private void dispatch() {
+        // リスナーがこのクラスを呼び出してもデッドロックしないように、バッファを入れ替えてロックの外で発火する
+        synchronized (dispatchLock) {
+            // 記録が無効な場合は、発火のたびにイベントを作成しない
+            PlaybackDispatchFlightEvent event = PlaybackDispatchFlightEvent.isTypeEnabled() ? new PlaybackDispatchFlightEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            int count;
+            int scanned;
+            synchronized (lock) {
+                scanned = scannedCount;
+                this.scannedCount = 0;
+                if (pendingCount == 0) {
+                    return;
+                }
+                Note[] notes = this.firingNotes;
+                NotePlayEventType[] types = this.firingTypes;
+                this.firingNotes = pendingNotes;
+                this.firingTypes = pendingTypes;
+                this.pendingNotes = notes;
+                this.pendingTypes = types;
+                count = pendingCount;
+                this.pendingCount = 0;
+            }
+            int on = 0;
+            for (int i = 0; i < count; i++) {
+                layerUI.fireNotePlay(firingNotes[i], firingTypes[i]);
+                if (firingTypes[i] == NotePlayEventType.NOTE_ON) {
+                    on++;
+                }
+                firingNotes[i] = null;
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.eventsScanned = scanned;
+                    event.noteOnCount = on;
+                    event.noteOffCount = count - on;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            long parkNanos;
+            synchronized (lock) {
+                if (!running || thread != self) {
+                    break;
+                }
+                long now = System.nanoTime();
+                long tick = computeTick(now);
+                Schedule s = this.schedule;
+                long limit = Math.min(tick, s.endTick);
+                // 前回から進んだ区間にあるイベントだけを処理する
+                while (cursor < s.size && s.ticks[cursor] <= limit) {
+                    int id = s.ids[cursor];
+                    if (s.on[cursor]) {
+                        activeNotes.add(id);
+                        enqueue(s.notes[id], NotePlayEventType.NOTE_ON);
+                    } else if (activeNotes.remove(id)) {
+                        enqueue(s.notes[id], NotePlayEventType.NOTE_OFF);
+                    }
+                    this.cursor++;
+                    this.scannedCount++;
+                }
+                if (tick >= s.endTick) {
+                    if (loop) {
+                        seekImpl(0, startNanos + (long) ((s.endTick - startTick) * nanosPerTick));
+                    } else {
+                        releaseAll();
+                        this.startTick = s.endTick;
+                        this.running = false;
+                        this.thread = null;
+                    }
+                }
+                long nextTick = cursor < s.size ? Math.min(s.ticks[cursor], s.endTick) : s.endTick;
+                long deadline = startNanos + (long) Math.ceil((nextTick - startTick) * nanosPerTick);
+                parkNanos = Math.min(deadline - System.nanoTime(), MAX_PARK_NANOS);
+            }
+            dispatch();
+            if (parkNanos > 0) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * ティック順に並べたノートのオン/オフです. 作成後は変更されません。
+     */
+    private static final class Schedule {
+
+        static final Schedule EMPTY = new Schedule(new Note[0], new long[0], new int[0], new boolean[0], 0, 0);
+
+        final Note[] notes;
+        final long[] ticks;
+        final int[] ids;
+        final boolean[] on;
+        final int size;
+        final long endTick;
+        final long maxDuration;
+
+        Schedule(Note[] notes, long[] ticks, int[] ids, boolean[] on, long endTick, long maxDuration) {
+            this.notes = notes;
+            this.ticks = ticks;
+            this.ids = ids;
+            this.on = on;
+            this.size = ticks.length;
+            this.endTick = endTick;
+            this.maxDuration = maxDuration;
+        }
+
+        static Schedule create(PianoRollModel model, int beatWidth, float timebase) {
+            List<Note> all = model.getAllNotes();
+            int n = all.size();
+            Note[] notes = all.toArray(new Note[n]);
+            // ティック, オン/オフ, ノートの番号を一つのlongに詰めて並べ替える
+            // 同じティックではオフを先に発火して、連続する同じ音を正しく切り替える
+            long[] keys = new long[n * 2];
+            long maxDuration = 0;
+            for (int i = 0; i < n; i++) {
+                Note note = notes[i];
+                double beats = NoteIndex.toBeatPosition(note.getBeat()) + ((double) note.getOffset() / beatWidth);
+                long start = Math.max(0, Math.round(beats * timebase));
+                long end = Math.max(start + 1, Math.round((beats + note.getLength()) * timebase));
+                keys[i * 2] = (start << 32) | (1L << 31) | i;
+                keys[(i * 2) + 1] = (end << 32) | i;
+                maxDuration = Math.max(maxDuration, end - start);
+            }
+            Arrays.sort(keys);
+            long[] ticks = new long[n * 2];
+            int[] ids = new int[n * 2];
+            boolean[] on = new boolean[n * 2];
+            for (int i = 0; i < keys.length; i++) {
+                ticks[i] = keys[i] >>> 32;
+                on[i] = (keys[i] & (1L << 31)) != 0;
+                ids[i] = (int) (keys[i] & 0x7fffffffL);
+            }
+            long endTick = 0;
+            if (model.getKeyCount() > 0) {
+                Key key = model.getKey(0);
+                int beatCount = key.getMeasureCount() > 0 ? key.getMeasure(0).getBeatCount() : 0;
+                endTick = (long) key.getMeasureCount() * beatCount * (long) timebase;
+            }
+            return new Schedule(notes, ticks, ids, on, endTick, maxDuration);
+        }
+
+        int search(long tick) {
+            // tick 以降にある最初のイベント
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ticks[mid] < tick) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        int replay(long tick, ActiveNoteSet set) {
+            // tick より前のイベントを適用して、その位置で鳴っているノートを集める
+            // 最も長いノートより前に始まったノートは tick までに終わっているので、そこから先だけを適用すればよい
+            set.clear();
+            int end = search(tick);
+            for (int i = search(tick - maxDuration); i < end; i++) {
+                if (on[i]) {
+                    set.add(ids[i]);
+                } else {
+                    set.remove(ids[i]);
+                }
+            }
+            return end;
+        }
+    }
+
+    /**
+     * 鳴っているノートの番号の集合です. 追加と削除は定数時間で、メモリを確保しません。
+     */
+    private static final class ActiveNoteSet {
+
+        private final int[] members;
+        private final int[] positions;
+        private int size;
+
+        ActiveNoteSet(int capacity) {
+            this.members = new int[capacity];
+            this.positions = new int[capacity];
+            Arrays.fill(positions, -1);
+        }
+
+        void add(int id) {
+            if (positions[id] >= 0) {
+                return;
+            }
+            positions[id] = size;
+            members[size++] = id;
+        }
+
+        boolean remove(int id) {
+            int pos = positions[id];
+            if (pos < 0) {
+                return false;
+            }
+            // 末尾の要素で穴を埋める
+            int last = members[--size];
+            members[pos] = last;
+            positions[last] = pos;
+            positions[id] = -1;
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                positions[members[i]] = -1;
+            }
+            this.size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return members[i];
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ProjectWriterで書き出したプロジェクトファイルを読み込むクラスです.
+ * <br>
+ * ファイルはFileChannel#mapでメモリにマップされ、ヘッダとキーの表だけが読まれます。<br>
+ * ノートは返されたMappedPianoRollModelのキーが初めて参照された時点で、キーごとに復号されます。<br>
+ * ヘッダとキーの表は開いた時点で検査され、不正であればIOExceptionがスローされます。<br>
+ * ブロックの中身が不正であることは復号するまで分からないので、その場合は復号したときにUncheckedIOExceptionがスローされます。<br>
+ *
+ * @author desktopgame
+ */
+public class ProjectReader {
+
+    private int beatWidth;
+
+    public ProjectReader(int beatWidth) {
+        this.beatWidth = beatWidth;
+    }
+
+    /**
+     * ファイルを開いてモデルを返します.
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public MappedPianoRollModel read(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            // マップはチャンネルを閉じた後も有効
+            buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        return read(buffer);
+    }
+
+    /**
+     * バッファからモデルを作成します. バッファの内容は複製されません。
+     *
+     * @param buffer
+     * @return
+     * @throws IOException
+     */
+    public MappedPianoRollModel read(ByteBuffer buffer) throws IOException {
+        ByteBuffer b = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (b.remaining() < ProjectWriter.HEADER_SIZE || b.getInt() != ProjectWriter.MAGIC) {
+            throw new IOException("not a project file");
+        }
+        int version = b.getInt();
+        if (version != ProjectWriter.VERSION) {
+            throw new IOException("unsupported version: " + version);
+        }
+        int keyCount = b.getInt();
+        int measureCount = b.getInt();
+        int beatCount = b.getInt();
+        int resolution = b.getInt();
+        b.getInt();
+        b.getInt();
+        if (keyCount <= 0 || measureCount <= 0 || beatCount <= 0 || resolution <= 0) {
+            throw new IOException("illegal header: keys=" + keyCount + " measures=" + measureCount + " beats=" + beatCount + " resolution=" + resolution);
+        }
+        long tableEnd = ProjectWriter.HEADER_SIZE + ((long) keyCount * ProjectWriter.KEY_ENTRY_SIZE);
+        if (tableEnd > buffer.limit()) {
+            throw new IOException("truncated key table");
+        }
+        int[] noteCounts = new int[keyCount];
+        int[] blockLengths = new int[keyCount];
+        long[] blockOffsets = new long[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            noteCounts[i] = b.getInt();
+            blockLengths[i] = b.getInt();
+            blockOffsets[i] = b.getLong();
+            // 一つのノートは三つの列にそれぞれ一バイト以上を使う
+            if (noteCounts[i] < 0 || blockLengths[i] < 0 || (long) noteCounts[i] * 3 > blockLengths[i]) {
+                throw new IOException("illegal block: " + i);
+            }
+            if (blockOffsets[i] < tableEnd || blockOffsets[i] + blockLengths[i] > buffer.limit()) {
+                throw new IOException("truncated block: " + i);
+            }
+        }
+        return new MappedPianoRollModel(buffer, keyCount, measureCount, beatCount, resolution, beatWidth, noteCounts, blockLengths, blockOffsets);
+    }
+
+    /**
+     * 差分で符号化された列を復号します.
+     *
+     * @param b
+     * @param n
+     * @return
+     * @throws IOException 列がブロックの終わりを超える場合
+     */
+    static int[] readColumn(ByteBuffer b, int n) throws IOException {
+        int[] r = new int[n];
+        int prev = 0;
+        for (int i = 0; i < n; i++) {
+            int v = readVarInt(b);
+            prev += (v >>> 1) ^ -(v & 1);
+            r[i] = prev;
+        }
+        return r;
+    }
+
+    private static int readVarInt(ByteBuffer b) throws IOException {
+        int v = 0;
+        int shift = 0;
+        int x;
+        do {
+            if (!b.hasRemaining() || shift > 28) {
+                throw new IOException("corrupt block");
+            }
+            x = b.get();
+            v |= (x & 0x7F) << shift;
+            shift += 7;
+        } while ((x & 0x80) != 0);
+        return v;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PianoRollModelをバイナリ形式のプロジェクトファイルに書き出すクラスです.
+ * <br>
+ * ファイルはヘッダ、キーの表、キーごとのノートのブロックからなります。<br>
+ * ブロックの中ではノートが位置の順に並べられ、位置/長さ/ベロシティがそれぞれ列として差分で符号化されます。<br>
+ * 位置は拍の絶対位置 * 解像度 + オフセット で、解像度には書き出したときの拍の横幅が使われます。<br>
+ * MappedPianoRollModelの、読み込まれていないキーや変更されていないキーのブロックは復号せずにそのまま複製されます。<br>
+ *
+ * @author desktopgame
+ */
+public class ProjectWriter {
+
+    public static final int MAGIC = 0x50524350;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int KEY_ENTRY_SIZE = 16;
+
+    private int beatWidth;
+
+    public ProjectWriter(int beatWidth) {
+        this.beatWidth = beatWidth;
+    }
+
+    /**
+     * モデルをファイルに書き出します.
+     * <br>
+     * 一時ファイルに書き出してから置き換えるので、書き出しに失敗しても元のファイルは残ります。<br>
+     * Windowsではマップされているファイルを置き換えられないので、ProjectReaderで開いたファイルに上書きするとIOExceptionがスローされます。<br>
+     * その場合は別のファイルに書き出してください。元のファイルのマップは、MappedPianoRollModelが回収されるまで解放されません。<br>
+     *
+     * @param model
+     * @param path
+     * @throws IOException
+     */
+    public void write(PianoRollModel model, Path path) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(model, ch);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * モデルをチャンネルの先頭から書き出します.
+     *
+     * @param model
+     * @param ch
+     * @throws IOException
+     */
+    public void write(PianoRollModel model, FileChannel ch) throws IOException {
+        int keyCount = model.getKeyCount();
+        Key key0 = model.getKey(0);
+        int measureCount = key0.getMeasureCount();
+        int beatCount = key0.getMeasure(0).getBeatCount();
+        // キーの表は最後に書くので、先にブロックの位置を空けておく
+        long position = HEADER_SIZE + ((long) keyCount * KEY_ENTRY_SIZE);
+        ByteBuffer table = ByteBuffer.allocate(keyCount * KEY_ENTRY_SIZE).order(ByteOrder.BIG_ENDIAN);
+        BlockEncoder enc = new BlockEncoder();
+        long noteCount = 0;
+        for (int i = 0; i < keyCount; i++) {
+            ByteBuffer block;
+            int count;
+            if (model instanceof MappedPianoRollModel && ((MappedPianoRollModel) model).isKeyReusable(i, beatWidth)) {
+                MappedPianoRollModel mapped = (MappedPianoRollModel) model;
+                block = mapped.getKeyBlock(i);
+                count = mapped.getKeyNoteCount(i);
+            } else {
+                count = enc.encode(model.getKey(i), beatWidth);
+                block = enc.toBuffer();
+            }
+            table.putInt(count);
+            table.putInt(block.remaining());
+            table.putLong(position);
+            position += writeFully(ch, block, position);
+            noteCount += count;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(keyCount);
+        header.putInt(measureCount);
+        header.putInt(beatCount);
+        header.putInt(beatWidth);
+        header.putInt((int) noteCount);
+        header.putInt(0);
+        header.flip();
+        table.flip();
+        writeFully(ch, header, 0);
+        writeFully(ch, table, HEADER_SIZE);
+        ch.truncate(position);
+    }
+
+    private static int writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        int n = 0;
+        while (buf.hasRemaining()) {
+            n += ch.write(buf, position + n);
+        }
+        return n;
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    /**
+     * キーのノートを列ごとの差分に符号化するクラスです. バッファは次のキーで再利用されます。
+     */
+    private static final class BlockEncoder {
+
+        private byte[] data;
+        private int size;
+        private int[] ticks;
+        private int[] lengths;
+        private int[] velocities;
+        private int[] sortedTicks;
+
+        BlockEncoder() {
+            this.data = new byte[256];
+            this.ticks = new int[16];
+            this.lengths = new int[16];
+            this.velocities = new int[16];
+            this.sortedTicks = new int[16];
+        }
+
+        int encode(Key key, int beatWidth) {
+            this.size = 0;
+            List<Note> notes = new ArrayList<>();
+            for (Measure measure : key.copyMaterializedMeasureList()) {
+                for (Beat beat : measure.copyMaterializedBeatList()) {
+                    for (int i = 0; i < beat.getNoteCount(); i++) {
+                        notes.add(beat.getNote(i));
+                    }
+                }
+            }
+            int n = notes.size();
+            if (ticks.length < n) {
+                this.ticks = new int[n];
+                this.lengths = new int[n];
+                this.velocities = new int[n];
+                this.sortedTicks = new int[n];
+            }
+            for (int i = 0; i < n; i++) {
+                Note note = notes.get(i);
+                ticks[i] = (NoteIndex.toBeatPosition(note.getBeat()) * beatWidth) + note.getOffset();
+            }
+            // 差分が負にならないように位置の順に並べる
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            int[] t = ticks;
+            Arrays.sort(order, (a, b) -> Integer.compare(t[a], t[b]));
+            for (int i = 0; i < n; i++) {
+                Note note = notes.get(order[i]);
+                sortedTicks[i] = ticks[order[i]];
+                lengths[i] = Float.floatToRawIntBits(note.getLength());
+                velocities[i] = note instanceof PackedNote ? ((PackedNote) note).getVelocity() : PackedNoteStore.VELOCITY_DEFAULT;
+            }
+            writeColumn(sortedTicks, n);
+            writeColumn(lengths, n);
+            writeColumn(velocities, n);
+            return n;
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(data, 0, size);
+        }
+
+        private void writeColumn(int[] column, int n) {
+            int prev = 0;
+            for (int i = 0; i < n; i++) {
+                writeVarInt(zigzag(column[i] - prev));
+                prev = column[i];
+            }
+        }
+
+        private void writeVarInt(int v) {
+            if (size + 5 > data.length) {
+                this.data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((v & ~0x7F) != 0) {
+                data[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+    }
+}
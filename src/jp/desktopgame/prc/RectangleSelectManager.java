@@ -9,8 +9,10 @@
 package jp.desktopgame.prc;
 
 import java.awt.Rectangle;
-import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -23,11 +25,11 @@ public class RectangleSelectManager {
     private int baseY;
     private int currentX;
     private int currentY;
-    private List<Note> notes;
+    private Set<Note> notes;
 
     public RectangleSelectManager(PianoRollUI ui) {
         this.ui = ui;
-        this.notes = new ArrayList<>();
+        this.notes = new LinkedHashSet<>();
     }
 
     public void start(int x, int y) {
@@ -39,18 +41,19 @@ public class RectangleSelectManager {
         this.currentX = x;
         this.currentY = y;
         Rectangle area = getAreaRect();
-        notes.stream().filter((e) -> !ui.getNoteRect(e).intersects(area)).forEach((n) -> n.setSelected(false));
-        notes.removeIf((e) -> !ui.getNoteRect(e).intersects(area));
-        ui.getPianoRoll().getModel().getAllNotes().forEach(((e) -> {
-            if (notes.contains(e)) {
-                return;
-            }
-            Rectangle noteRect = ui.getNoteRect(e);
-            if (area.intersects(noteRect)) {
-                notes.add(e);
-                e.setSelected(true);
-            }
-        }));
+        // 矩形と重なるノートだけを索引から取り出して、前回との差分だけを反映する
+        Set<Note> hits = new LinkedHashSet<>(ui.getNotesIn(area));
+        List<Note> deselected = notes.stream().filter((e) -> !hits.contains(e)).collect(Collectors.toList());
+        List<Note> selected = hits.stream().filter((e) -> !notes.contains(e)).collect(Collectors.toList());
+        if (deselected.isEmpty() && selected.isEmpty()) {
+            return;
+        }
+        notes.removeAll(deselected);
+        notes.addAll(selected);
+        ui.getPianoRoll().getModel().batch((editor) -> {
+            deselected.forEach((e) -> editor.setSelected(e, false));
+            selected.forEach((e) -> editor.setSelected(e, true));
+        });
     }
 
     public void stop() {
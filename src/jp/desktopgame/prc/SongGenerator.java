@@ -0,0 +1,280 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * シード値から負荷試験用の曲を作るクラスです.
+ * <br>
+ * 同じシード値と設定からは、実行環境によらず常に同じノートの並びが作られます。<br>
+ * 拍をstepsPerBeatに分割した位置ごとに、密度から決まる数の和音を置きます。<br>
+ * モデルへの追加はPianoRollModel#bulkLoadで行われるので、ノートごとのイベントや変更履歴は作成されません。<br>
+ * MIDIファイルが必要な場合は、作成したモデルをMidiFileWriterで書き出してください。<br>
+ *
+ * @author desktopgame
+ */
+public class SongGenerator {
+
+    private static final int[] CHORD_INTERVALS = {0, 4, 7, 11, 14, 17, 21};
+
+    private long seed;
+    private int minKeyIndex;
+    private int maxKeyIndex;
+    private int measureCount;
+    private int stepsPerBeat;
+    private float density;
+    private int minChordSize;
+    private int maxChordSize;
+    private float[] lengths;
+    private double selectionRatio;
+    private int noteCount;
+
+    @FunctionalInterface
+    private interface NoteSink {
+
+        void add(int keyIndex, int measureIndex, int beatIndex, int step, float length, boolean selected);
+    }
+
+    public SongGenerator(long seed) {
+        this.seed = seed;
+        this.minKeyIndex = 0;
+        this.maxKeyIndex = Integer.MAX_VALUE;
+        this.measureCount = 16;
+        this.stepsPerBeat = 4;
+        this.density = 1;
+        this.minChordSize = 1;
+        this.maxChordSize = 3;
+        this.lengths = new float[]{0.25f, 0.5f, 1f, 2f};
+        this.selectionRatio = 0;
+    }
+
+    /**
+     * シード値を設定します.
+     *
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * シード値を返します.
+     *
+     * @return
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * ノートを置くキーの範囲を設定します. モデルの範囲を超える部分は無視されます。
+     *
+     * @param minKeyIndex 0から始まるキーの位置(含む)
+     * @param maxKeyIndex 0から始まるキーの位置(含む)
+     */
+    public void setKeyRange(int minKeyIndex, int maxKeyIndex) {
+        if (minKeyIndex < 0 || minKeyIndex > maxKeyIndex) {
+            throw new IllegalArgumentException("illegal key range: " + minKeyIndex + ".." + maxKeyIndex);
+        }
+        this.minKeyIndex = minKeyIndex;
+        this.maxKeyIndex = maxKeyIndex;
+    }
+
+    /**
+     * 作成する小節の数を設定します.
+     *
+     * @param measureCount
+     */
+    public void setMeasureCount(int measureCount) {
+        if (measureCount <= 0) {
+            throw new IllegalArgumentException("measureCount <= 0");
+        }
+        this.measureCount = measureCount;
+    }
+
+    /**
+     * 作成する小節の数を返します.
+     *
+     * @return
+     */
+    public int getMeasureCount() {
+        return measureCount;
+    }
+
+    /**
+     * 和音を置ける位置として、拍をいくつに分割するかを設定します.
+     *
+     * @param stepsPerBeat
+     */
+    public void setStepsPerBeat(int stepsPerBeat) {
+        if (stepsPerBeat <= 0) {
+            throw new IllegalArgumentException("stepsPerBeat <= 0");
+        }
+        this.stepsPerBeat = stepsPerBeat;
+    }
+
+    /**
+     * 一拍あたりに置く和音の平均の数を設定します.
+     *
+     * @param density
+     */
+    public void setDensity(float density) {
+        if (density < 0) {
+            throw new IllegalArgumentException("density < 0");
+        }
+        this.density = density;
+    }
+
+    /**
+     * 一拍あたりに置く和音の平均の数を返します.
+     *
+     * @return
+     */
+    public float getDensity() {
+        return density;
+    }
+
+    /**
+     * 和音を構成するノートの数の範囲を設定します.
+     *
+     * @param minChordSize
+     * @param maxChordSize
+     */
+    public void setChordSize(int minChordSize, int maxChordSize) {
+        if (minChordSize <= 0 || minChordSize > maxChordSize || maxChordSize > CHORD_INTERVALS.length) {
+            throw new IllegalArgumentException("illegal chord size: " + minChordSize + ".." + maxChordSize);
+        }
+        this.minChordSize = minChordSize;
+        this.maxChordSize = maxChordSize;
+    }
+
+    /**
+     * ノートの長さの候補を拍単位で設定します. 候補は等しい確率で選ばれるので、同じ値を重ねると重みになります。
+     *
+     * @param lengths
+     */
+    public void setLengths(float... lengths) {
+        if (lengths.length == 0) {
+            throw new IllegalArgumentException("lengths is empty");
+        }
+        this.lengths = lengths.clone();
+    }
+
+    /**
+     * 選択状態にするノートの割合を設定します.
+     *
+     * @param selectionRatio
+     */
+    public void setSelectionRatio(double selectionRatio) {
+        this.selectionRatio = selectionRatio;
+    }
+
+    /**
+     * 最後に作成したノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return noteCount;
+    }
+
+    /**
+     * 一小節あたりのノートの数のおおよその期待値を返します.
+     *
+     * @param beatCount
+     * @return
+     */
+    public float getExpectedNotesPerMeasure(int beatCount) {
+        return density * beatCount * (minChordSize + maxChordSize) / 2f;
+    }
+
+    /**
+     * モデルにノートを追加します.
+     * <br>
+     * モデルの小節の数が足りなければ追加されます。既存のノートは削除されません。<br>
+     *
+     * @param model
+     * @param beatWidth ノートのオフセットの計算に使う拍の横幅
+     * @return 追加したノートの数
+     */
+    public int generate(PianoRollModel model, int beatWidth) {
+        int keyCount = model.getKeyCount();
+        if (keyCount == 0) {
+            this.noteCount = 0;
+            return 0;
+        }
+        if (model.getKey(0).getMeasureCount() < measureCount) {
+            model.extentMeasureCount(measureCount);
+        }
+        int beatCount = model.getKey(0).getMeasure(0).getBeatCount();
+        model.bulkLoad((editor) -> {
+            generate(keyCount, beatCount, (keyIndex, measureIndex, beatIndex, step, length, selected) -> {
+                Beat beat = model.getKey(keyIndex).getMeasure(measureIndex).getBeat(beatIndex);
+                Note note = editor.generateNote(beat, step * beatWidth / stepsPerBeat, length);
+                if (selected) {
+                    editor.setSelected(note, true);
+                }
+            });
+        });
+        return noteCount;
+    }
+
+    /**
+     * モデルを使わずにフレーズを作成します.
+     *
+     * @param keyCount
+     * @param beatCount
+     * @param beatWidth ノートのオフセットの計算に使う拍の横幅
+     * @return
+     */
+    public Phrase generatePhrase(int keyCount, int beatCount, int beatWidth) {
+        List<Phrase.VirtualNote> notes = new ArrayList<>();
+        generate(keyCount, beatCount, (keyIndex, measureIndex, beatIndex, step, length, selected) -> {
+            notes.add(new Phrase.VirtualNote(keyIndex + 1, measureIndex, beatIndex, step * beatWidth / stepsPerBeat, length));
+        });
+        Phrase p = new Phrase(notes);
+        p.setName("Generated " + Long.toHexString(seed));
+        return p;
+    }
+
+    private void generate(int keyCount, int beatCount, NoteSink sink) {
+        this.noteCount = 0;
+        int low = Math.min(minKeyIndex, keyCount - 1);
+        int high = Math.min(maxKeyIndex, keyCount - 1);
+        int range = high - low + 1;
+        Random r = new Random(seed);
+        float perStep = density / stepsPerBeat;
+        int whole = (int) perStep;
+        float fraction = perStep - whole;
+        for (int m = 0; m < measureCount; m++) {
+            for (int b = 0; b < beatCount; b++) {
+                for (int s = 0; s < stepsPerBeat; s++) {
+                    int chords = whole + (r.nextFloat() < fraction ? 1 : 0);
+                    for (int c = 0; c < chords; c++) {
+                        int size = minChordSize + r.nextInt(maxChordSize - minChordSize + 1);
+                        // キーの位置は高い音ほど小さいので、根音から位置を減らして積み上げる
+                        int root = low + r.nextInt(range);
+                        float length = lengths[r.nextInt(lengths.length)];
+                        for (int i = 0; i < size; i++) {
+                            int keyIndex = root - CHORD_INTERVALS[i];
+                            if (keyIndex < low) {
+                                break;
+                            }
+                            sink.add(keyIndex, m, b, s, length, selectionRatio > 0 && r.nextDouble() < selectionRatio);
+                            this.noteCount++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * 変更の数ではなく、使用するメモリのバイト数で履歴の量を制限するUndoManagerです.
+ * <br>
+ * 予算の1/8の変更が記録されるたびに、モデル全体のスナップショットをチェックポイントとして保持します。<br>
+ * 予算を超えた場合は、まず起点の直後の変更から最初のチェックポイントまでを一つのSnapshotEditに畳み込みます。<br>
+ * 畳み込めない場合は、古い方から変更を破棄します。<br>
+ * 起点は履歴の先頭か、いずれかの変更の直後の状態のスナップショットです。<br>
+ * 履歴を破棄した直後は起点を取らず、次に変更が追加されたときにその変更の直後の状態を起点にします。<br>
+ * 先頭を破棄して起点が失われる場合は、残っている最初のチェックポイントを新しい起点にします。<br>
+ * 起点のスナップショットは予算に数えないので、モデルが予算より大きくても変更の履歴は残ります。<br>
+ * 変更の数による制限(setLimit)は使用されません。<br>
+ *
+ * @author desktopgame
+ */
+public class BudgetUndoManager extends UndoManager {
+
+    public static final long BYTE_BUDGET_DEFAULT = 32L * 1024 * 1024;
+    private static final long EDIT_SIZE_DEFAULT = 64;
+
+    private PianoRollModel model;
+    private UndoJournal journal;
+    private long byteBudget;
+    private long usedBytes;
+    private long bytesSinceCheckpoint;
+    private ModelSnapshot base;
+    private UndoableEdit baseEdit;
+    private List<Checkpoint> checkpoints;
+
+    private static class Checkpoint {
+
+        public final UndoableEdit edit;
+        public final ModelSnapshot snapshot;
+
+        public Checkpoint(UndoableEdit edit, ModelSnapshot snapshot) {
+            this.edit = edit;
+            this.snapshot = snapshot;
+        }
+    }
+
+    public BudgetUndoManager(PianoRollModel model) {
+        this(model, BYTE_BUDGET_DEFAULT);
+    }
+
+    public BudgetUndoManager(PianoRollModel model, long byteBudget) {
+        if (byteBudget <= 0) {
+            throw new IllegalArgumentException("byteBudget <= 0");
+        }
+        super.setLimit(Integer.MAX_VALUE);
+        this.byteBudget = byteBudget;
+        this.checkpoints = new ArrayList<>();
+        setModel(model);
+    }
+
+    /**
+     * 対象のモデルを変更します. それまでの変更履歴は破棄されます。
+     *
+     * @param model
+     */
+    public synchronized void setModel(PianoRollModel model) {
+        dropCheckpoints();
+        this.model = model;
+        this.journal = model instanceof DefaultPianoRollModel ? ((DefaultPianoRollModel) model).getUndoJournal() : null;
+        discardAllEdits();
+    }
+
+    /**
+     * 対象のモデルを返します.
+     *
+     * @return
+     */
+    public synchronized PianoRollModel getModel() {
+        return model;
+    }
+
+    /**
+     * 履歴に使用できるおおよそのバイト数を設定します.
+     *
+     * @param byteBudget
+     */
+    public synchronized void setByteBudget(long byteBudget) {
+        if (byteBudget <= 0) {
+            throw new IllegalArgumentException("byteBudget <= 0");
+        }
+        this.byteBudget = byteBudget;
+        enforceBudget();
+    }
+
+    /**
+     * 履歴に使用できるおおよそのバイト数を返します.
+     *
+     * @return
+     */
+    public synchronized long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * 履歴とチェックポイントが使用しているおおよそのバイト数を返します. 起点のスナップショットは含みません。
+     *
+     * @return
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * 保持しているチェックポイントの数を返します. 起点のスナップショットは含みません。
+     *
+     * @return
+     */
+    public synchronized int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * 保持している変更の数を返します.
+     *
+     * @return
+     */
+    public synchronized int getEditCount() {
+        return edits.size();
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        boolean r = super.addEdit(anEdit);
+        // 直前の変更に吸収された場合は何もしない
+        if (edits.isEmpty() || edits.lastElement() != anEdit) {
+            return r;
+        }
+        long size = sizeOf(anEdit);
+        this.usedBytes += size;
+        this.bytesSinceCheckpoint += size;
+        if (base == null) {
+            // 起点が無ければこの変更の直後の状態を起点にする. 起点がチェックポイントを兼ねる
+            setBase(ModelSnapshot.capture(model), anEdit);
+            this.bytesSinceCheckpoint = 0;
+        } else if (bytesSinceCheckpoint >= byteBudget / 8) {
+            takeCheckpoint(anEdit);
+        }
+        enforceBudget();
+        return r;
+    }
+
+    private void takeCheckpoint(UndoableEdit edit) {
+        this.bytesSinceCheckpoint = 0;
+        ModelSnapshot snapshot = ModelSnapshot.capture(model);
+        // 予算に比べて大きすぎるスナップショットは保持しても畳み込みの役に立たない
+        if (snapshot.getByteSize() > byteBudget / 4) {
+            return;
+        }
+        checkpoints.add(new Checkpoint(edit, snapshot));
+        register(snapshot);
+        this.usedBytes += snapshot.getByteSize();
+    }
+
+    private void enforceBudget() {
+        while (usedBytes > byteBudget && edits.size() > 1) {
+            if (collapse()) {
+                continue;
+            }
+            if (getDoneCount() > 0) {
+                trimEdits(0, 0);
+            } else {
+                trimEdits(edits.size() - 1, edits.size() - 1);
+            }
+        }
+    }
+
+    private boolean collapse() {
+        if (base == null) {
+            return false;
+        }
+        // 起点より後にある最初のチェックポイントまでを畳み込む
+        int baseIndex = getBaseIndex();
+        Checkpoint target = null;
+        int pos = -1;
+        for (Checkpoint c : checkpoints) {
+            int i = edits.indexOf(c.edit);
+            if (i > baseIndex) {
+                target = c;
+                pos = i;
+                break;
+            }
+        }
+        // 畳み込めるのは適用済みの変更だけ
+        if (target == null || pos >= getDoneCount()) {
+            return false;
+        }
+        SnapshotEdit collapsed = new SnapshotEdit(model, journal, base, target.snapshot);
+        checkpoints.remove(target);
+        // スナップショットの所有はチェックポイントからSnapshotEditに移る
+        this.usedBytes -= target.snapshot.getByteSize();
+        for (int i = baseIndex + 1; i <= pos; i++) {
+            this.usedBytes -= sizeOf(edits.get(i));
+        }
+        UndoableEdit replaced = edits.set(pos, collapsed);
+        replaced.die();
+        super.trimEdits(baseIndex + 1, pos - 1);
+        this.usedBytes += collapsed.getByteSize();
+        return true;
+    }
+
+    private int getBaseIndex() {
+        return baseEdit == null ? -1 : edits.indexOf(baseEdit);
+    }
+
+    private int getDoneCount() {
+        int n = 0;
+        while (n < edits.size() && edits.get(n).canUndo()) {
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        if (from > to) {
+            return;
+        }
+        int baseIndex = getBaseIndex();
+        int doneCount = getDoneCount();
+        ModelSnapshot next = null;
+        if (from == 0 && baseIndex < to) {
+            // 破棄した範囲の直後の状態を新しい起点にする
+            UndoableEdit last = edits.get(to);
+            if (last instanceof SnapshotEdit) {
+                next = ((SnapshotEdit) last).getAfter();
+            } else {
+                for (int i = 0; i < checkpoints.size(); i++) {
+                    if (checkpoints.get(i).edit == last) {
+                        next = checkpoints.remove(i).snapshot;
+                        this.usedBytes -= next.getByteSize();
+                        unregister(next);
+                        break;
+                    }
+                }
+            }
+        }
+        for (int i = from; i <= to; i++) {
+            UndoableEdit edit = edits.get(i);
+            this.usedBytes -= sizeOf(edit);
+            for (int j = checkpoints.size() - 1; j >= 0; j--) {
+                if (checkpoints.get(j).edit == edit) {
+                    Checkpoint c = checkpoints.remove(j);
+                    this.usedBytes -= c.snapshot.getByteSize();
+                    unregister(c.snapshot);
+                }
+            }
+        }
+        super.trimEdits(from, to);
+        if (from > 0) {
+            // 起点の直前の変更が破棄された場合は、その状態に戻る手段が無くなる
+            if (baseIndex >= from && baseIndex <= to) {
+                rebase();
+            }
+        } else if (edits.isEmpty()) {
+            // 全て破棄した場合は、次の変更の前の状態、つまり現在の状態が起点になる
+            if (baseIndex == doneCount - 1) {
+                this.baseEdit = null;
+            } else if (next != null && doneCount == to + 1) {
+                setBase(next, null);
+            } else {
+                setBase(null, null);
+            }
+        } else if (baseIndex > to) {
+            // 起点は破棄した範囲より後にあるのでそのまま使える
+        } else if (baseIndex == to) {
+            this.baseEdit = null;
+        } else if (next != null) {
+            setBase(next, null);
+        } else {
+            rebase();
+        }
+    }
+
+    private void rebase() {
+        // 残っている最初のチェックポイントがあれば、その変更の直後の状態を起点にする
+        if (!checkpoints.isEmpty()) {
+            Checkpoint c = checkpoints.remove(0);
+            this.usedBytes -= c.snapshot.getByteSize();
+            unregister(c.snapshot);
+            setBase(c.snapshot, c.edit);
+        } else {
+            setBase(null, null);
+        }
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        super.discardAllEdits();
+        dropCheckpoints();
+        this.usedBytes = 0;
+        this.bytesSinceCheckpoint = 0;
+        // BULK_LOADのたびに呼ばれるので、起点は次の変更が追加されるまで取らない
+    }
+
+    private void dropCheckpoints() {
+        for (Checkpoint c : checkpoints) {
+            unregister(c.snapshot);
+        }
+        checkpoints.clear();
+        setBase(null, null);
+    }
+
+    private void setBase(ModelSnapshot snapshot, UndoableEdit edit) {
+        // 起点はモデル全体を写し取るので、予算に数えると予算より大きいモデルでは履歴が一つまで削られてしまう
+        if (base != null) {
+            unregister(base);
+        }
+        this.base = snapshot;
+        this.baseEdit = edit;
+        if (base != null) {
+            register(base);
+        }
+    }
+
+    private void register(ModelSnapshot snapshot) {
+        if (journal != null) {
+            journal.register(snapshot);
+        }
+    }
+
+    private void unregister(ModelSnapshot snapshot) {
+        if (journal != null) {
+            journal.unregister(snapshot);
+        }
+    }
+
+    private static long sizeOf(UndoableEdit edit) {
+        return edit instanceof SizedUndoableEdit ? ((SizedUndoableEdit) edit).getByteSize() : EDIT_SIZE_DEFAULT;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jp.desktopgame.prc.Beat;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.Key;
+import jp.desktopgame.prc.Measure;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.PackedNote;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * モデルのキー/小節/拍の数とノートを列ごとのプリミティブ配列に写し取ったものです.
+ * <br>
+ * 全体を写し取ったものはチェックポイントとして、一部の範囲だけを写し取ったものは構造の変更の記録として使われます。<br>
+ * 復元するときは、範囲内で位置と長さが一致するノートはそのまま残し、足りないノートだけを作り直します。<br>
+ * 作り直したノートへの参照は、UndoJournalの記録と登録されたスナップショットで置き換えられます。<br>
+ *
+ * @author desktopgame
+ */
+public class ModelSnapshot {
+
+    private static final byte SELECTED = 1;
+    private static final byte TRIGGER = 2;
+
+    private final int keyCount;
+    private final int measureCount;
+    private final int beatCount;
+    private final boolean partial;
+    private final int regionKeyCount;
+    private final int regionMeasureCount;
+    private final int regionBeatCount;
+    private int size;
+    private int[] keys;
+    private int[] positions;
+    private int[] offsets;
+    private int[] lengths;
+    private byte[] flags;
+    private byte[] velocities;
+    private Note[] notes;
+    private int retainCount;
+
+    private ModelSnapshot(PianoRollModel model, boolean partial, int regionKeyCount, int regionMeasureCount, int regionBeatCount) {
+        this.keyCount = model.getKeyCount();
+        this.measureCount = keyCount > 0 ? model.getKey(0).getMeasureCount() : 0;
+        if (measureCount == 0) {
+            this.beatCount = 0;
+        } else if (model instanceof DefaultPianoRollModel) {
+            // 疎なモデルで小節を作成しないように、モデルが持っている数を使う
+            this.beatCount = ((DefaultPianoRollModel) model).getBeatCount();
+        } else {
+            this.beatCount = model.getKey(0).getMeasure(0).getBeatCount();
+        }
+        this.partial = partial;
+        this.regionKeyCount = regionKeyCount;
+        this.regionMeasureCount = regionMeasureCount;
+        this.regionBeatCount = regionBeatCount;
+        this.keys = new int[16];
+        this.positions = new int[16];
+        this.offsets = new int[16];
+        this.lengths = new int[16];
+        this.flags = new byte[16];
+        this.velocities = new byte[16];
+        this.notes = new Note[16];
+    }
+
+    /**
+     * モデル全体を写し取ります.
+     *
+     * @param model
+     * @return
+     */
+    public static ModelSnapshot capture(PianoRollModel model) {
+        ModelSnapshot s = new ModelSnapshot(model, false, 0, 0, 0);
+        s.collect(model);
+        return s;
+    }
+
+    /**
+     * モデルを指定の数に変更した場合に失われるノートと、現在の数を写し取ります.
+     *
+     * @param model
+     * @param keyCount 変更後のキーの数
+     * @param measureCount 変更後の小節の数
+     * @param beatCount 変更後の拍の数
+     * @return
+     */
+    public static ModelSnapshot captureDropped(PianoRollModel model, int keyCount, int measureCount, int beatCount) {
+        ModelSnapshot s = new ModelSnapshot(model, true, keyCount, measureCount, beatCount);
+        s.collect(model);
+        return s;
+    }
+
+    private boolean covers(int keyIndex, int measureIndex, int beatIndex) {
+        return !partial || keyIndex >= regionKeyCount || measureIndex >= regionMeasureCount || beatIndex >= regionBeatCount;
+    }
+
+    private void collect(PianoRollModel model) {
+        for (int k = 0; k < keyCount; k++) {
+            for (Note note : liveNotes(model.getKey(k), k)) {
+                add(k, note);
+            }
+        }
+        // 復元のときに位置の順で突き合わせられるように並べておく
+        // 木を走査した順でキーと拍の位置は並んでいるので、同じ拍の中のノートだけを並べ替える
+        long[] order = new long[16];
+        int start = 0;
+        while (start < size) {
+            int end = start + 1;
+            while (end < size && keys[end] == keys[start] && positions[end] == positions[start]) {
+                end++;
+            }
+            if (end - start > 1) {
+                if (order.length < end - start) {
+                    order = new long[Integer.highestOneBit(end - start) << 1];
+                }
+                sortBeat(start, end, order);
+            }
+            start = end;
+        }
+        // 追記のために広げた余分な容量は保持しない
+        this.keys = Arrays.copyOf(keys, size);
+        this.positions = Arrays.copyOf(positions, size);
+        this.offsets = Arrays.copyOf(offsets, size);
+        this.lengths = Arrays.copyOf(lengths, size);
+        this.flags = Arrays.copyOf(flags, size);
+        this.velocities = Arrays.copyOf(velocities, size);
+        this.notes = Arrays.copyOf(notes, size);
+    }
+
+    private void sortBeat(int start, int end, long[] order) {
+        int n = end - start;
+        // 符号付きのオフセットを上位に、拍の中での番号を下位に詰めて、プリミティブの配列のまま並べる
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) offsets[start + i] << 32) | i;
+        }
+        Arrays.sort(order, 0, n);
+        int[] o = Arrays.copyOfRange(offsets, start, end);
+        int[] l = Arrays.copyOfRange(lengths, start, end);
+        byte[] f = Arrays.copyOfRange(flags, start, end);
+        byte[] v = Arrays.copyOfRange(velocities, start, end);
+        Note[] nn = Arrays.copyOfRange(notes, start, end);
+        for (int i = 0; i < n; i++) {
+            int j = (int) order[i];
+            offsets[start + i] = o[j];
+            lengths[start + i] = l[j];
+            flags[start + i] = f[j];
+            velocities[start + i] = v[j];
+            notes[start + i] = nn[j];
+        }
+        // オフセットが同じノートはほとんど無いので、長さの順は挿入ソートで整える
+        for (int i = start + 1; i < end; i++) {
+            for (int j = i; j > start && offsets[j - 1] == offsets[j] && lengths[j - 1] > lengths[j]; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        int o = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = o;
+        int l = lengths[i];
+        lengths[i] = lengths[j];
+        lengths[j] = l;
+        byte f = flags[i];
+        flags[i] = flags[j];
+        flags[j] = f;
+        byte v = velocities[i];
+        velocities[i] = velocities[j];
+        velocities[j] = v;
+        Note n = notes[i];
+        notes[i] = notes[j];
+        notes[j] = n;
+    }
+
+    private void add(int keyIndex, Note note) {
+        if (size == keys.length) {
+            int n = size * 2;
+            this.keys = Arrays.copyOf(keys, n);
+            this.positions = Arrays.copyOf(positions, n);
+            this.offsets = Arrays.copyOf(offsets, n);
+            this.lengths = Arrays.copyOf(lengths, n);
+            this.flags = Arrays.copyOf(flags, n);
+            this.velocities = Arrays.copyOf(velocities, n);
+            this.notes = Arrays.copyOf(notes, n);
+        }
+        keys[size] = keyIndex;
+        positions[size] = positionOf(note);
+        offsets[size] = note.getOffset();
+        lengths[size] = Float.floatToRawIntBits(note.getLength());
+        flags[size] = (byte) ((note.isSelected() ? SELECTED : 0) | (note.isTrigger() ? TRIGGER : 0));
+        velocities[size] = (byte) (note instanceof PackedNote ? ((PackedNote) note).getVelocity() : 0);
+        notes[size] = note;
+        this.size++;
+    }
+
+    private int positionOf(Note note) {
+        Beat beat = note.getBeat();
+        return (beat.getMeasure().getIndex() * beatCount) + beat.getIndex();
+    }
+
+    private List<Note> liveNotes(Key key, int keyIndex) {
+        List<Note> r = new ArrayList<>();
+        for (int m = 0; m < key.getMeasureCount(); m++) {
+            if (!key.isMeasureMaterialized(m)) {
+                continue;
+            }
+            Measure measure = key.getMeasure(m);
+            for (int b = 0; b < measure.getBeatCount(); b++) {
+                if (!measure.isBeatMaterialized(b) || !covers(keyIndex, m, b)) {
+                    continue;
+                }
+                Beat beat = measure.getBeat(b);
+                for (int i = 0; i < beat.getNoteCount(); i++) {
+                    r.add(beat.getNote(i));
+                }
+            }
+        }
+        return r;
+    }
+
+    private static int compare(int k1, int p1, int o1, int l1, int k2, int p2, int o2, int l2) {
+        int c = Integer.compare(k1, k2);
+        if (c == 0) {
+            c = Integer.compare(p1, p2);
+        }
+        if (c == 0) {
+            c = Integer.compare(o1, o2);
+        }
+        if (c == 0) {
+            c = Integer.compare(l1, l2);
+        }
+        return c;
+    }
+
+    /**
+     * モデルを写し取った時点の状態に戻します.
+     * <br>
+     * 部分的なスナップショットでは、数を戻したうえで範囲内のノートだけを復元します。<br>
+     * 変更は記録されません。<br>
+     *
+     * @param model
+     * @param journal 作り直したノートの参照を置き換えるジャーナル. nullでも構いません
+     */
+    public void restore(PianoRollModel model, UndoJournal journal) {
+        model.beginApplyUndoableEdit();
+        try {
+            model.batch((editor) -> restoreImpl(model, journal));
+        } finally {
+            model.endApplyUndoableEdit();
+        }
+    }
+
+    private void restoreImpl(PianoRollModel model, UndoJournal journal) {
+        model.resizeKeyCount(keyCount);
+        model.resizeMeasureCount(measureCount);
+        if (beatCount > 0) {
+            model.resizeBeatCount(beatCount);
+        }
+        Map<Note, Note> table = new HashMap<>();
+        int i = 0;
+        for (int k = 0; k < keyCount; k++) {
+            int end = i;
+            while (end < size && keys[end] == k) {
+                end++;
+            }
+            Key key = model.getKey(k);
+            List<Note> live = liveNotes(key, k);
+            if (i == end && live.isEmpty()) {
+                continue;
+            }
+            live.sort((a, b) -> compare(0, positionOf(a), a.getOffset(), Float.floatToRawIntBits(a.getLength()), 0, positionOf(b), b.getOffset(), Float.floatToRawIntBits(b.getLength())));
+            int j = 0;
+            while (i < end || j < live.size()) {
+                int c;
+                if (i >= end) {
+                    c = 1;
+                } else if (j >= live.size()) {
+                    c = -1;
+                } else {
+                    Note n = live.get(j);
+                    c = compare(0, positions[i], offsets[i], lengths[i], 0, positionOf(n), n.getOffset(), Float.floatToRawIntBits(n.getLength()));
+                }
+                if (c == 0) {
+                    link(i++, live.get(j++), table);
+                } else if (c < 0) {
+                    Beat beat = key.getMeasure(positions[i] / beatCount).getBeat(positions[i] % beatCount);
+                    Note note = beat.generateNote(offsets[i], Float.intBitsToFloat(lengths[i]));
+                    if (note instanceof PackedNote) {
+                        ((PackedNote) note).setVelocity(velocities[i]);
+                    }
+                    link(i++, note, table);
+                } else {
+                    live.get(j++).removeFromBeat();
+                }
+            }
+        }
+        if (journal != null && !table.isEmpty()) {
+            journal.remap(table);
+        }
+    }
+
+    private void link(int i, Note note, Map<Note, Note> table) {
+        note.setSelected((flags[i] & SELECTED) != 0);
+        note.setTrigger((flags[i] & TRIGGER) != 0);
+        if (notes[i] != null && notes[i] != note) {
+            table.put(notes[i], note);
+        }
+        setNote(i, note);
+    }
+
+    /**
+     * 部分的なスナップショットについて、モデルを写し取ったときに指定された数に変更します.
+     *
+     * @param model
+     */
+    void resizeToRegion(PianoRollModel model) {
+        model.resizeKeyCount(regionKeyCount);
+        model.resizeMeasureCount(regionMeasureCount);
+        model.resizeBeatCount(regionBeatCount);
+    }
+
+    void remap(Map<Note, Note> table) {
+        for (int i = 0; i < size; i++) {
+            Note to = table.get(notes[i]);
+            if (to != null) {
+                setNote(i, to);
+            }
+        }
+    }
+
+    private void setNote(int i, Note note) {
+        if (retainCount > 0 && notes[i] != note) {
+            UndoJournal.unretain(notes[i]);
+            UndoJournal.retain(note);
+        }
+        notes[i] = note;
+    }
+
+    /**
+     * ジャーナルに登録されたときに、写し取ったノートの参照を数えます.
+     */
+    void retainNotes() {
+        if (retainCount++ == 0) {
+            for (int i = 0; i < size; i++) {
+                UndoJournal.retain(notes[i]);
+            }
+        }
+    }
+
+    void unretainNotes() {
+        if (retainCount > 0 && --retainCount == 0) {
+            for (int i = 0; i < size; i++) {
+                UndoJournal.unretain(notes[i]);
+            }
+        }
+    }
+
+    /**
+     * 写し取ったノートの数を返します.
+     *
+     * @return
+     */
+    public int getNoteCount() {
+        return size;
+    }
+
+    /**
+     * このスナップショットが使用するおおよそのバイト数を返します.
+     *
+     * @return
+     */
+    public long getByteSize() {
+        return 64 + ((long) keys.length * (4 + 4 + 4 + 4 + 1 + 1 + 8));
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * 使用するメモリのおおよそのバイト数を返すUndoableEditです.
+ *
+ * @author desktopgame
+ * @see BudgetUndoManager
+ */
+public interface SizedUndoableEdit extends UndoableEdit {
+
+    /**
+     * この変更が保持しているおおよそのバイト数を返します.
+     *
+     * @return
+     */
+    public long getByteSize();
+}
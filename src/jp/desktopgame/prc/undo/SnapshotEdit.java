@@ -0,0 +1,79 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * 二つのチェックポイントの間の変更をまとめて、スナップショットの復元としてUndo/Redoします.
+ * <br>
+ * BudgetUndoManagerが古い履歴を畳み込むときに作成します。<br>
+ * 変更後のスナップショットはこの変更が破棄されるときにUndoJournalから登録を解除されます。<br>
+ *
+ * @author desktopgame
+ * @see BudgetUndoManager
+ */
+public class SnapshotEdit extends AbstractUndoableEdit implements SizedUndoableEdit {
+
+    private PianoRollModel model;
+    private UndoJournal journal;
+    private ModelSnapshot before;
+    private ModelSnapshot after;
+
+    SnapshotEdit(PianoRollModel model, UndoJournal journal, ModelSnapshot before, ModelSnapshot after) {
+        this.model = model;
+        this.journal = journal;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * 変更後のスナップショットのバイト数を返します. 変更前のスナップショットはBudgetUndoManagerの起点と共有されます。
+     *
+     * @return
+     */
+    @Override
+    public long getByteSize() {
+        return after.getByteSize();
+    }
+
+    /**
+     * 変更後のスナップショットを返します.
+     *
+     * @return
+     */
+    ModelSnapshot getAfter() {
+        return after;
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        before.restore(model, journal);
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        after.restore(model, journal);
+    }
+
+    @Override
+    public void die() {
+        if (journal != null) {
+            journal.unregister(after);
+        }
+        super.die();
+        model = null;
+        journal = null;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.swing.undo.UndoableEdit;
+import jp.desktopgame.prc.Beat;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.PackedNote;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * ノートの変更を列ごとのプリミティブ配列に記録するUndoの履歴です.
+ * <br>
+ * 記録は連番で識別され、容量が足りなくなると最大容量まで倍に広げるリングバッファに追記されます。<br>
+ * 最大容量に達した場合は、commit済みの最も古い記録から上書きされ、その記録を含むUndoJournalEditはUndo/Redoできなくなります。<br>
+ * commitするとそれまでの記録が一つのUndoJournalEditにまとめられます。<br>
+ * commitされていない間に同じノートのオフセット/長さ/選択が続けて変更された場合は、最初の記録の変更後の値だけを書き換えます。<br>
+ * UndoJournalEditが破棄されると、その範囲の記録はノートへの参照を解放し、古い方から順に再利用されます。<br>
+ * PackedNoteへの参照はPackedNoteStore#retainで数えられ、解放されるまでスロットは再利用されません。<br>
+ * キー/小節/拍の数の変更は、失われるノートのModelSnapshotとして記録されます。<br>
+ *
+ * @author desktopgame
+ */
+public class UndoJournal {
+
+    static final byte CREATE = 1;
+    static final byte REMOVE = 2;
+    static final byte OFFSET = 3;
+    static final byte LENGTH = 4;
+    static final byte SELECT = 5;
+    static final byte STRUCTURE = 6;
+
+    /**
+     * 一つの記録が使用するおおよそのバイト数です.
+     */
+    public static final int RECORD_SIZE = 32;
+
+    /**
+     * 最大容量の既定値です.
+     */
+    public static final int MAX_CAPACITY_DEFAULT = 1 << 20;
+
+    private PianoRollModel model;
+    private byte[] ops;
+    private Note[] notes;
+    private Object[] extras;
+    private int[] oldValues;
+    private int[] newValues;
+    private int mask;
+    private long head;
+    private long tail;
+    private long committed;
+    private long evicted;
+    private int maxCapacity;
+    private TreeMap<Long, Long> releasedRanges;
+    private MergeTable mergeTable;
+    private List<ModelSnapshot> snapshots;
+
+    public UndoJournal(PianoRollModel model) {
+        this(model, 256);
+    }
+
+    public UndoJournal(PianoRollModel model, int capacity) {
+        this.model = model;
+        int n = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+        allocate(n);
+        this.maxCapacity = Math.max(n, MAX_CAPACITY_DEFAULT);
+        this.releasedRanges = new TreeMap<>();
+        this.mergeTable = new MergeTable();
+        this.snapshots = new ArrayList<>();
+    }
+
+    private void allocate(int n) {
+        this.ops = new byte[n];
+        this.notes = new Note[n];
+        this.extras = new Object[n];
+        this.oldValues = new int[n];
+        this.newValues = new int[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * ノートの生成を記録します.
+     *
+     * @param beat
+     * @param note
+     */
+    public void recordCreate(Beat beat, Note note) {
+        mergeTable.forget(note);
+        append(CREATE, note, beat, 0, 0);
+    }
+
+    /**
+     * ノートの削除を記録します.
+     *
+     * @param beat
+     * @param note
+     */
+    public void recordRemove(Beat beat, Note note) {
+        mergeTable.forget(note);
+        append(REMOVE, note, beat, 0, 0);
+    }
+
+    /**
+     * キー/小節/拍の数の変更を記録します.
+     * <br>
+     * 変更前の数と、変更によって失われるノートを含むスナップショットを渡します。<br>
+     * 取り消すと数を戻して失われたノートを作り直し、やり直すとスナップショットの範囲の数に変更します。<br>
+     *
+     * @param dropped
+     * @see ModelSnapshot#captureDropped(jp.desktopgame.prc.PianoRollModel, int, int, int)
+     */
+    public void recordStructure(ModelSnapshot dropped) {
+        mergeTable.clear();
+        register(dropped);
+        append(STRUCTURE, null, dropped, 0, 0);
+    }
+
+    /**
+     * オフセットの変更を記録します.
+     *
+     * @param note
+     * @param oldOffset
+     * @param newOffset
+     */
+    public void recordOffset(Note note, int oldOffset, int newOffset) {
+        record(OFFSET, note, oldOffset, newOffset);
+    }
+
+    /**
+     * 長さの変更を記録します.
+     *
+     * @param note
+     * @param oldLength
+     * @param newLength
+     */
+    public void recordLength(Note note, float oldLength, float newLength) {
+        record(LENGTH, note, Float.floatToRawIntBits(oldLength), Float.floatToRawIntBits(newLength));
+    }
+
+    /**
+     * 選択状態の変更を記録します.
+     *
+     * @param note
+     * @param selected 変更後の選択状態
+     */
+    public void recordSelection(Note note, boolean selected) {
+        record(SELECT, note, selected ? 0 : 1, selected ? 1 : 0);
+    }
+
+    private void record(byte op, Note note, int oldValue, int newValue) {
+        long seq = mergeTable.find(note, op);
+        if (seq >= 0) {
+            newValues[index(seq)] = newValue;
+            return;
+        }
+        mergeTable.put(note, op, tail);
+        append(op, note, null, oldValue, newValue);
+    }
+
+    private void append(byte op, Note note, Object extra, int oldValue, int newValue) {
+        if (tail - head == ops.length) {
+            // commitされていない記録は上書きできないので、その場合は最大容量を超えても広げる
+            if (ops.length >= maxCapacity && head < committed) {
+                evict();
+            } else {
+                grow();
+            }
+        }
+        int i = index(tail);
+        ops[i] = op;
+        notes[i] = note;
+        retain(note);
+        extras[i] = extra;
+        oldValues[i] = oldValue;
+        newValues[i] = newValue;
+        this.tail++;
+    }
+
+    private void grow() {
+        byte[] oldOps = ops;
+        Note[] oldNotes = notes;
+        Object[] oldExtras = extras;
+        int[] oldOld = oldValues;
+        int[] oldNew = newValues;
+        int oldMask = mask;
+        allocate(ops.length * 2);
+        for (long seq = head; seq < tail; seq++) {
+            int from = (int) (seq & oldMask);
+            int to = index(seq);
+            ops[to] = oldOps[from];
+            notes[to] = oldNotes[from];
+            extras[to] = oldExtras[from];
+            oldValues[to] = oldOld[from];
+            newValues[to] = oldNew[from];
+        }
+    }
+
+    private void evict() {
+        int i = index(head);
+        if (ops[i] == STRUCTURE) {
+            unregister((ModelSnapshot) extras[i]);
+        }
+        unretain(notes[i]);
+        notes[i] = null;
+        extras[i] = null;
+        this.head++;
+        this.evicted = head;
+        Map.Entry<Long, Long> e;
+        while ((e = releasedRanges.firstEntry()) != null && e.getKey() <= head) {
+            releasedRanges.pollFirstEntry();
+            this.head = Math.max(head, e.getValue());
+        }
+    }
+
+    /**
+     * 指定の範囲の記録が上書きされずに残っているならtrueを返します.
+     *
+     * @param start
+     * @return
+     */
+    boolean isAvailable(long start) {
+        return start >= evicted;
+    }
+
+    /**
+     * 最大容量を設定します. 既に確保している容量より小さくしても、容量は縮小されません。
+     *
+     * @param maxCapacity 記録の数
+     */
+    public void setMaxCapacity(int maxCapacity) {
+        if (maxCapacity < 16) {
+            throw new IllegalArgumentException("maxCapacity < 16");
+        }
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * 最大容量を返します.
+     *
+     * @return
+     */
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    private int index(long seq) {
+        return (int) (seq & mask);
+    }
+
+    /**
+     * 前回のcommitから後の記録を一つの変更にまとめて返します.
+     *
+     * @return 記録が無ければnull
+     */
+    public UndoableEdit commit() {
+        mergeTable.clear();
+        if (committed == tail) {
+            return null;
+        }
+        UndoableEdit edit = new UndoJournalEdit(model, this, committed, tail, getByteSize(committed, tail));
+        this.committed = tail;
+        return edit;
+    }
+
+    /**
+     * 指定の範囲の記録を新しい方から取り消します.
+     *
+     * @param start
+     * @param end
+     */
+    void undo(long start, long end) {
+        for (long seq = end - 1; seq >= start; seq--) {
+            int i = index(seq);
+            Note note = notes[i];
+            switch (ops[i]) {
+                case CREATE:
+                    note.removeFromBeat();
+                    break;
+                case REMOVE:
+                    ((Beat) extras[i]).restoreNote(note);
+                    break;
+                case OFFSET:
+                    note.setOffset(oldValues[i]);
+                    break;
+                case LENGTH:
+                    note.setLength(Float.intBitsToFloat(oldValues[i]));
+                    break;
+                case SELECT:
+                    note.setSelected(oldValues[i] != 0);
+                    break;
+                case STRUCTURE:
+                    ((ModelSnapshot) extras[i]).restore(model, this);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 指定の範囲の記録を古い方からやり直します.
+     *
+     * @param start
+     * @param end
+     */
+    void redo(long start, long end) {
+        for (long seq = start; seq < end; seq++) {
+            int i = index(seq);
+            Note note = notes[i];
+            switch (ops[i]) {
+                case CREATE:
+                    ((Beat) extras[i]).restoreNote(note);
+                    break;
+                case REMOVE:
+                    note.removeFromBeat();
+                    break;
+                case OFFSET:
+                    note.setOffset(newValues[i]);
+                    break;
+                case LENGTH:
+                    note.setLength(Float.intBitsToFloat(newValues[i]));
+                    break;
+                case SELECT:
+                    note.setSelected(newValues[i] != 0);
+                    break;
+                case STRUCTURE:
+                    ((ModelSnapshot) extras[i]).resizeToRegion(model);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 指定の範囲の記録を解放します. 一番古い範囲なら、続けて解放済みの範囲もまとめて再利用できるようにします。
+     *
+     * @param start
+     * @param end
+     */
+    void release(long start, long end) {
+        // 上書きされた記録は既に解放されていて、同じ位置は新しい記録が使っている
+        start = Math.max(start, evicted);
+        if (start >= end) {
+            return;
+        }
+        for (long seq = start; seq < end; seq++) {
+            int i = index(seq);
+            if (ops[i] == STRUCTURE) {
+                unregister((ModelSnapshot) extras[i]);
+            }
+            unretain(notes[i]);
+            notes[i] = null;
+            extras[i] = null;
+        }
+        // Undoの履歴は古い方から破棄されるが、やり直しの分岐は途中で破棄されるので後で回収する
+        releasedRanges.put(start, end);
+        Map.Entry<Long, Long> e;
+        while ((e = releasedRanges.firstEntry()) != null && e.getKey() <= head) {
+            releasedRanges.pollFirstEntry();
+            this.head = Math.max(head, e.getValue());
+        }
+    }
+
+    /**
+     * 指定の範囲の記録が使用するおおよそのバイト数を返します.
+     *
+     * @param start
+     * @param end
+     * @return
+     */
+    long getByteSize(long start, long end) {
+        long size = (end - start) * RECORD_SIZE;
+        for (long seq = start; seq < end; seq++) {
+            int i = index(seq);
+            if (ops[i] == STRUCTURE && extras[i] != null) {
+                size += ((ModelSnapshot) extras[i]).getByteSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * スナップショットを登録します. 登録されたスナップショットのノートへの参照は、remapで一緒に置き換えられます。
+     *
+     * @param snapshot
+     */
+    void register(ModelSnapshot snapshot) {
+        snapshots.add(snapshot);
+        snapshot.retainNotes();
+    }
+
+    void unregister(ModelSnapshot snapshot) {
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            if (snapshots.get(i) == snapshot) {
+                snapshots.remove(i);
+                snapshot.unretainNotes();
+                return;
+            }
+        }
+    }
+
+    static void retain(Note note) {
+        if (note instanceof PackedNote) {
+            PackedNote pn = (PackedNote) note;
+            pn.getStore().retain(pn.getSlot());
+        }
+    }
+
+    static void unretain(Note note) {
+        if (note instanceof PackedNote) {
+            PackedNote pn = (PackedNote) note;
+            pn.getStore().unretain(pn.getSlot());
+        }
+    }
+
+    /**
+     * スナップショットから作り直されたノートについて、記録と登録されたスナップショットの参照を置き換えます.
+     *
+     * @param table 古いノートから新しいノートへの表
+     */
+    void remap(Map<Note, Note> table) {
+        for (long seq = head; seq < tail; seq++) {
+            int i = index(seq);
+            Note note = notes[i];
+            if (note != null) {
+                Note to = table.get(note);
+                if (to != null) {
+                    unretain(note);
+                    retain(to);
+                    notes[i] = to;
+                }
+            }
+        }
+        for (ModelSnapshot snapshot : snapshots) {
+            snapshot.remap(table);
+        }
+        mergeTable.clear();
+    }
+
+    /**
+     * 保持している記録の数を返します. 解放された記録のうち、まだ再利用されていないものも含みます。
+     *
+     * @return
+     */
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * 記録のために確保している容量を返します.
+     *
+     * @return
+     */
+    public int getCapacity() {
+        return ops.length;
+    }
+
+    /**
+     * commitされていない間に、ノートと変更の種類ごとに最初の記録の番号を引くためのオープンアドレスの表です.
+     */
+    private static final class MergeTable {
+
+        private Note[] keys;
+        private long[] offsetSeqs;
+        private long[] lengthSeqs;
+        private long[] selectSeqs;
+        private int size;
+
+        MergeTable() {
+            allocate(64);
+        }
+
+        private void allocate(int n) {
+            this.keys = new Note[n];
+            this.offsetSeqs = new long[n];
+            this.lengthSeqs = new long[n];
+            this.selectSeqs = new long[n];
+        }
+
+        private int slotOf(Note note) {
+            int m = keys.length - 1;
+            int h = note.hashCode() * 0x9E3779B9;
+            int i = (h ^ (h >>> 16)) & m;
+            while (keys[i] != null && !keys[i].equals(note)) {
+                i = (i + 1) & m;
+            }
+            return i;
+        }
+
+        private long[] column(byte op) {
+            switch (op) {
+                case OFFSET:
+                    return offsetSeqs;
+                case LENGTH:
+                    return lengthSeqs;
+                default:
+                    return selectSeqs;
+            }
+        }
+
+        long find(Note note, byte op) {
+            if (size == 0) {
+                return -1;
+            }
+            int i = slotOf(note);
+            return keys[i] == null ? -1 : column(op)[i];
+        }
+
+        void put(Note note, byte op, long seq) {
+            if ((size + 1) * 2 > keys.length) {
+                rehash();
+            }
+            int i = slotOf(note);
+            if (keys[i] == null) {
+                keys[i] = note;
+                offsetSeqs[i] = -1;
+                lengthSeqs[i] = -1;
+                selectSeqs[i] = -1;
+                this.size++;
+            }
+            column(op)[i] = seq;
+        }
+
+        void forget(Note note) {
+            if (size == 0) {
+                return;
+            }
+            // 生成/削除をまたいで統合すると取り消す順序が変わるので、以降は新しく記録させる
+            int i = slotOf(note);
+            if (keys[i] != null) {
+                offsetSeqs[i] = -1;
+                lengthSeqs[i] = -1;
+                selectSeqs[i] = -1;
+            }
+        }
+
+        private void rehash() {
+            Note[] oldKeys = keys;
+            long[] oldOffsets = offsetSeqs;
+            long[] oldLengths = lengthSeqs;
+            long[] oldSelects = selectSeqs;
+            allocate(keys.length * 2);
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int i = slotOf(oldKeys[j]);
+                    keys[i] = oldKeys[j];
+                    offsetSeqs[i] = oldOffsets[j];
+                    lengthSeqs[i] = oldLengths[j];
+                    selectSeqs[i] = oldSelects[j];
+                }
+            }
+        }
+
+        void clear() {
+            if (size == 0) {
+                return;
+            }
+            // 大きなまとまりの後は表を小さく作り直し、一件ごとのcommitで全体を消さないようにする
+            if (keys.length > 64) {
+                allocate(64);
+            } else {
+                Arrays.fill(keys, null);
+            }
+            this.size = 0;
+        }
+    }
+}
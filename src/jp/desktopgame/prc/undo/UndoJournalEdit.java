@@ -0,0 +1,102 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import jp.desktopgame.prc.PianoRollModel;
+
+/**
+ * UndoJournalの連続した範囲の記録を一つの変更としてUndo/Redoします.
+ * <br>
+ * 複数の記録を含む場合は、PianoRollModel#batchの中で適用します。<br>
+ *
+ * @author desktopgame
+ */
+public class UndoJournalEdit extends AbstractUndoableEdit implements SizedUndoableEdit {
+
+    private PianoRollModel model;
+    private UndoJournal journal;
+    private long start;
+    private long end;
+    private long byteSize;
+
+    UndoJournalEdit(PianoRollModel model, UndoJournal journal, long start, long end, long byteSize) {
+        this.model = model;
+        this.journal = journal;
+        this.start = start;
+        this.end = end;
+        this.byteSize = byteSize;
+    }
+
+    @Override
+    public long getByteSize() {
+        return byteSize;
+    }
+
+    /**
+     * 含まれる記録の数を返します.
+     *
+     * @return
+     */
+    public int getRecordCount() {
+        return (int) (end - start);
+    }
+
+    @Override
+    public boolean canUndo() {
+        return super.canUndo() && journal.isAvailable(start);
+    }
+
+    @Override
+    public boolean canRedo() {
+        return super.canRedo() && journal.isAvailable(start);
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+        super.undo();
+        model.beginApplyUndoableEdit();
+        try {
+            if (end - start == 1) {
+                journal.undo(start, end);
+            } else {
+                model.batch((editor) -> journal.undo(start, end));
+            }
+        } finally {
+            model.endApplyUndoableEdit();
+        }
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+        super.redo();
+        model.beginApplyUndoableEdit();
+        try {
+            if (end - start == 1) {
+                journal.redo(start, end);
+            } else {
+                model.batch((editor) -> journal.redo(start, end));
+            }
+        } finally {
+            model.endApplyUndoableEdit();
+        }
+    }
+
+    @Override
+    public void die() {
+        if (journal != null) {
+            journal.release(start, end);
+        }
+        super.die();
+        model = null;
+        journal = null;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.undo.UndoManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * 通知のたびに再利用されるイベントが、入れ子になった通知で書き換えられないことを確かめます.
+ *
+ * @author desktopgame
+ */
+public class EventReuseTest {
+
+    private static DefaultPianoRollModel[] models() {
+        return new DefaultPianoRollModel[]{new DefaultPianoRollModel(4, 4, 4), new PackedPianoRollModel(4, 4, 4)};
+    }
+
+    private static Note sourceOf(PianoRollModelEvent e) {
+        return e.getNoteEvent().map(NoteEvent::getSource).orElse(null);
+    }
+
+    @Test
+    public void testEventIsReused() {
+        for (DefaultPianoRollModel model : models()) {
+            Beat beat = model.getKey(0).getMeasure(0).getBeat(0);
+            Note note = beat.generateNote(0, 1f);
+            List<BeatEvent> beatEvents = new ArrayList<>();
+            List<PianoRollModelEvent> modelEvents = new ArrayList<>();
+            beat.addBeatListener(beatEvents::add);
+            model.addPianoRollModelListener(modelEvents::add);
+            note.setOffset(10);
+            note.setOffset(20);
+            assertEquals(2, beatEvents.size());
+            assertSame(beatEvents.get(0), beatEvents.get(1));
+            assertEquals(2, modelEvents.size());
+            assertSame(modelEvents.get(0), modelEvents.get(1));
+        }
+    }
+
+    @Test
+    public void testNestedNotificationDoesNotOverwriteOuterEvent() {
+        for (DefaultPianoRollModel model : models()) {
+            Beat beat = model.getKey(1).getMeasure(1).getBeat(1);
+            Note outer = beat.generateNote(0, 1f);
+            Note inner = beat.generateNote(48, 1f);
+            List<Object> sources = new ArrayList<>();
+            model.addPianoRollModelListener((e) -> {
+                if (sourceOf(e) == outer && inner.getLength() == 1f) {
+                    // 通知の途中で別のノートを変更する
+                    inner.setLength(2f);
+                    sources.add(sourceOf(e));
+                }
+            });
+            beat.addBeatListener((e) -> {
+                if (e.getNote() == outer && !inner.isSelected()) {
+                    inner.setSelected(true);
+                    sources.add(e.getNote());
+                }
+            });
+            outer.setOffset(10);
+            assertEquals(2, sources.size());
+            assertSame(outer, sources.get(0));
+            assertSame(outer, sources.get(1));
+            assertEquals(2f, inner.getLength(), 0f);
+            assertTrue(inner.isSelected());
+        }
+    }
+
+    @Test
+    public void testUndoAfterReusedEvents() {
+        for (DefaultPianoRollModel model : models()) {
+            UndoManager um = new UndoManager();
+            model.addUndoableEditListener(um);
+            model.addPianoRollModelListener((e) -> {
+            });
+            Note note = model.getKey(2).getMeasure(3).getBeat(2).generateNote(0, 1f);
+            note.setOffset(10);
+            note.setLength(2f);
+            note.setOffset(30);
+            um.undo();
+            assertEquals(10, note.getOffset());
+            assertEquals(2f, note.getLength(), 0f);
+            um.undo();
+            assertEquals(1f, note.getLength(), 0f);
+            um.undo();
+            assertEquals(0, note.getOffset());
+        }
+    }
+}
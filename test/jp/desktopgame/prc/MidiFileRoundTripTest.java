@@ -0,0 +1,79 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * MidiFileWriterで書き出したファイルをMidiFileReaderで読み込み、同じノートに戻ることを確かめます.
+ *
+ * @author desktopgame
+ */
+public class MidiFileRoundTripTest {
+
+    private static byte[] write(PianoRollModel model, int format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new MidiFileWriter(format, 480, TestModels.BEAT_WIDTH).write(model, out);
+        return out.toByteArray();
+    }
+
+    private static DefaultPianoRollModel read(byte[] data) throws IOException {
+        DefaultPianoRollModel model = new DefaultPianoRollModel(128, 16, 4);
+        new MidiFileReader(TestModels.BEAT_WIDTH).read(model, new ByteArrayInputStream(data));
+        return model;
+    }
+
+    @Test
+    public void testFormat0() throws IOException {
+        DefaultPianoRollModel model = new DefaultPianoRollModel(128, 16, 4);
+        TestModels.fillWithoutOverlap(model, 1, 40);
+        assertEquals(TestModels.dump(model), TestModels.dump(read(write(model, 0))));
+    }
+
+    @Test
+    public void testFormat1() throws IOException {
+        PackedPianoRollModel model = new PackedPianoRollModel(128, 16, 4, true);
+        TestModels.fillWithoutOverlap(model, 2, 40);
+        assertEquals(TestModels.dump(model), TestModels.dump(read(write(model, 1))));
+    }
+
+    @Test
+    public void testExtentMeasureCount() throws IOException {
+        DefaultPianoRollModel model = new DefaultPianoRollModel(128, 16, 4);
+        TestModels.fillWithoutOverlap(model, 3, 40);
+        DefaultPianoRollModel small = new DefaultPianoRollModel(128, 2, 4);
+        MidiFileReader reader = new MidiFileReader(TestModels.BEAT_WIDTH);
+        reader.read(small, new ByteArrayInputStream(write(model, 1)));
+        assertEquals(model.getAllNotes().size(), reader.getNoteCount());
+        assertEquals(16, small.getMeasureCount());
+        assertEquals(TestModels.dump(model), TestModels.dump(small));
+    }
+
+    @Test
+    public void testTruncatedFileLeavesModelUnchanged() throws IOException {
+        DefaultPianoRollModel model = new DefaultPianoRollModel(128, 16, 4);
+        TestModels.fillWithoutOverlap(model, 4, 10);
+        byte[] data = write(model, 1);
+        byte[] truncated = new byte[data.length - 10];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        DefaultPianoRollModel target = new DefaultPianoRollModel(128, 16, 4);
+        String before = TestModels.dump(target);
+        try {
+            new MidiFileReader(TestModels.BEAT_WIDTH).read(target, new ByteArrayInputStream(truncated));
+            fail();
+        } catch (IOException e) {
+            assertEquals(before, TestModels.dump(target));
+        }
+    }
+}
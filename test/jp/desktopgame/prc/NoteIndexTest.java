@@ -0,0 +1,128 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * NoteIndexの問い合わせが、モデルの木を走査した結果と一致することを確かめます.
+ *
+ * @author desktopgame
+ */
+public class NoteIndexTest {
+
+    private static final int BW = TestModels.BEAT_WIDTH;
+    private static final int BH = 10;
+
+    private static Set<Note> overlapping(PianoRollModel model, int keyIndex, int fromX, int toX) {
+        Set<Note> r = new HashSet<>();
+        for (Note note : TestModels.collectNotes(model)) {
+            if (note.getBeat().getMeasure().getKey().getIndex() - 1 != keyIndex) {
+                continue;
+            }
+            int sx = (NoteIndex.toBeatPosition(note.getBeat()) * BW) + note.getOffset();
+            int ex = sx + note.scaledLength(BW);
+            if (sx < toX && ex > fromX) {
+                r.add(note);
+            }
+        }
+        return r;
+    }
+
+    private static void assertIndexed(IndexedPianoRollModel model, Random r) {
+        NoteIndex index = model.getNoteIndex();
+        List<Note> notes = TestModels.collectNotes(model);
+        assertEquals(notes.size(), index.getNoteCount());
+        assertEquals(new HashSet<>(notes), new HashSet<>(index.getAllNotes()));
+        Set<Note> selected = new HashSet<>();
+        for (Note note : notes) {
+            if (note.isSelected()) {
+                selected.add(note);
+            }
+        }
+        assertEquals(selected, new HashSet<>(index.getSelectedNotes()));
+        int width = model.getMeasureCount() * model.getBeatCount() * BW;
+        for (int i = 0; i < 50; i++) {
+            int key = r.nextInt(model.getKeyCount());
+            int fromX = r.nextInt(width);
+            int toX = fromX + 1 + r.nextInt(BW * 4);
+            assertEquals(overlapping(model, key, fromX, toX), new HashSet<>(index.getNotesInRange(key, fromX, toX, BW)));
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdate() {
+        IndexedPianoRollModel model = new IndexedPianoRollModel(24, 8, 4);
+        Random r = new Random(1);
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            notes.add(model.getKey(r.nextInt(24)).getMeasure(r.nextInt(8)).getBeat(r.nextInt(4)).generateNote(r.nextInt(BW), 0.25f * (1 + r.nextInt(12))));
+        }
+        assertIndexed(model, r);
+        for (int i = 0; i < 300; i++) {
+            Note note = notes.get(r.nextInt(notes.size()));
+            switch (r.nextInt(4)) {
+                case 0:
+                    note.setOffset(r.nextInt(BW * 2) - BW / 2);
+                    break;
+                case 1:
+                    note.setLength(0.25f * (1 + r.nextInt(16)));
+                    break;
+                case 2:
+                    note.setSelected(!note.isSelected());
+                    break;
+                default:
+                    note.removeFromBeat();
+                    notes.remove(note);
+                    break;
+            }
+        }
+        assertIndexed(model, r);
+        model.getNoteIndex().clearAllSelection();
+        assertTrue(model.getNoteIndex().getSelectedNotes().isEmpty());
+        assertIndexed(model, r);
+    }
+
+    @Test
+    public void testStructureChange() {
+        IndexedPianoRollModel model = new IndexedPianoRollModel(24, 8, 4);
+        TestModels.fill(model, 2, 300);
+        Random r = new Random(3);
+        assertIndexed(model, r);
+        model.resizeMeasureCount(5);
+        assertIndexed(model, r);
+        model.extentBeatCount(6);
+        assertIndexed(model, r);
+        model.resizeKeyCount(10);
+        assertIndexed(model, r);
+    }
+
+    @Test
+    public void testNotesInAfterStructureChange() {
+        IndexedPianoRollModel model = new IndexedPianoRollModel(24, 8, 4);
+        TestModels.fill(model, 4, 300);
+        NoteIndex index = model.getNoteIndex();
+        Rectangle all = new Rectangle(0, 0, 8 * 4 * BW, 24 * BH);
+        assertEquals(300, index.getNotesIn(all, BW, BH).size());
+        // 索引が作り直される前の問い合わせでも、取り除かれたキーのノートは返さない
+        model.resizeKeyCount(10);
+        Set<Note> expected = new HashSet<>(TestModels.collectNotes(model));
+        assertEquals(expected, new HashSet<>(index.getNotesIn(all, BW, BH)));
+        Rectangle one = new Rectangle(BW, 3 * BH + 2, BW * 2, 1);
+        assertEquals(overlapping(model, 3, BW, BW * 3), new HashSet<>(index.getNotesIn(one, BW, BH)));
+    }
+}
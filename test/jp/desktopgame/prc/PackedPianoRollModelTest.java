@@ -0,0 +1,113 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import javax.swing.undo.UndoManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * PackedPianoRollModelが、同じ操作をしたDefaultPianoRollModelと同じノートを返すことを確かめます.
+ *
+ * @author desktopgame
+ */
+public class PackedPianoRollModelTest {
+
+    private static void assertSameNotes(DefaultPianoRollModel expected, PackedPianoRollModel actual) {
+        assertEquals(TestModels.dump(expected), TestModels.dump(actual));
+        List<Note> all = actual.getAllNotes();
+        assertEquals(expected.getAllNotes().size(), all.size());
+        assertEquals(all.size(), actual.getNoteStore().getNoteCount());
+        // ストアを走査した結果に、モデルから取り除かれたノートが含まれていない
+        assertEquals(new HashSet<>(TestModels.collectNotes(actual)), new HashSet<>(all));
+        assertEquals(expected.getSelectedNotes().size(), actual.getSelectedNotes().size());
+    }
+
+    private static void generate(PianoRollModel model, int key, int measure, int beat, boolean selected) {
+        model.getKey(key).getMeasure(measure).getBeat(beat).generateNote(0, 1f).setSelected(selected);
+    }
+
+    @Test
+    public void testShrinkReleasesNotes() {
+        DefaultPianoRollModel expected = new DefaultPianoRollModel(4, 4, 4);
+        PackedPianoRollModel actual = new PackedPianoRollModel(4, 4, 4);
+        for (DefaultPianoRollModel model : new DefaultPianoRollModel[]{expected, actual}) {
+            generate(model, 0, 3, 0, true);
+            generate(model, 3, 1, 2, true);
+            generate(model, 1, 0, 3, false);
+        }
+        assertSameNotes(expected, actual);
+        expected.resizeMeasureCount(2);
+        actual.resizeMeasureCount(2);
+        assertSameNotes(expected, actual);
+        expected.resizeBeatCount(2);
+        actual.resizeBeatCount(2);
+        assertSameNotes(expected, actual);
+        expected.resizeKeyCount(2);
+        actual.resizeKeyCount(2);
+        assertSameNotes(expected, actual);
+        assertTrue(actual.getAllNotes().isEmpty());
+    }
+
+    @Test
+    public void testRandomEditsAndResizes() {
+        DefaultPianoRollModel expected = new DefaultPianoRollModel(16, 8, 4, true);
+        PackedPianoRollModel actual = new PackedPianoRollModel(16, 8, 4, true);
+        TestModels.fill(expected, 1, 400);
+        TestModels.fill(actual, 1, 400);
+        Random r = new Random(2);
+        for (int i = 0; i < 30; i++) {
+            int keyCount = 4 + r.nextInt(16);
+            int measureCount = 2 + r.nextInt(8);
+            int beatCount = 2 + r.nextInt(4);
+            expected.resizeKeyCount(keyCount);
+            actual.resizeKeyCount(keyCount);
+            expected.resizeMeasureCount(measureCount);
+            actual.resizeMeasureCount(measureCount);
+            expected.resizeBeatCount(beatCount);
+            actual.resizeBeatCount(beatCount);
+            long seed = r.nextLong();
+            TestModels.fill(expected, seed, 20);
+            TestModels.fill(actual, seed, 20);
+            assertSameNotes(expected, actual);
+        }
+    }
+
+    @Test
+    public void testUndoShrinkRestoresReleasedNotes() {
+        PackedPianoRollModel model = new PackedPianoRollModel(8, 8, 4);
+        UndoManager um = new UndoManager();
+        um.setLimit(1000);
+        model.addUndoableEditListener(um);
+        TestModels.fill(model, 3, 200);
+        String before = TestModels.dump(model);
+        model.resizeMeasureCount(3);
+        model.resizeKeyCount(4);
+        // 取り除かれたノートのスロットは、履歴から参照されている間は再利用されない
+        Random r = new Random(4);
+        for (int i = 0; i < 200; i++) {
+            generate(model, r.nextInt(4), r.nextInt(3), r.nextInt(4), false);
+        }
+        assertEquals(TestModels.collectNotes(model).size(), model.getAllNotes().size());
+        for (int i = 0; i < 200; i++) {
+            List<Note> notes = model.getAllNotes();
+            notes.get(i % notes.size()).removeFromBeat();
+        }
+        while (um.canUndo()) {
+            um.undo();
+        }
+        assertEquals(before, TestModels.dump(model));
+        assertEquals(200, model.getAllNotes().size());
+        assertEquals(200, model.getNoteStore().getNoteCount());
+    }
+}
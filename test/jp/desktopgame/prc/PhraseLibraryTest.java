@@ -0,0 +1,119 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PhraseLibraryへの追加と削除が、開き直した後も保たれることを確かめます.
+ *
+ * @author desktopgame
+ */
+public class PhraseLibraryTest {
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        this.path = Files.createTempFile("prc", ".prpl");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    private static Phrase createPhrase(String name, long seed) {
+        Random r = new Random(seed);
+        List<Phrase.VirtualNote> notes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            notes.add(new Phrase.VirtualNote(1 + r.nextInt(100), r.nextInt(4), r.nextInt(4), r.nextInt(96), 0.5f));
+        }
+        Phrase phrase = new Phrase(notes);
+        phrase.setName(name);
+        return phrase;
+    }
+
+    private static String toString(Phrase phrase) {
+        StringBuilder sb = new StringBuilder(phrase.getName());
+        for (Phrase.VirtualNote n : phrase.getVirtualNotes()) {
+            sb.append(' ').append(n.keyIndex).append(',').append(n.measureIndex).append(',').append(n.beatIndex).append('@').append(n.noteOffset).append('x').append(n.noteLength);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testAddRemoveAndReopen() throws IOException {
+        try (PhraseLibrary lib = PhraseLibrary.open(path, 4)) {
+            for (int i = 0; i < 100; i++) {
+                lib.add(createPhrase("riff" + i, i));
+            }
+            assertTrue(lib.remove("riff3"));
+            assertFalse(lib.remove("riff3"));
+            // 同じ名前で保存し直すと置き換えられる
+            lib.add(createPhrase("riff10", 1000));
+        }
+        try (PhraseLibrary lib = PhraseLibrary.open(path, 4)) {
+            assertEquals(99, lib.size());
+            assertEquals(0, lib.getCachedCount());
+            assertFalse(lib.contains("riff3"));
+            assertEquals("riff0", lib.getNames().get(0));
+            assertEquals(toString(createPhrase("riff42", 42)), toString(lib.get("riff42").get()));
+            assertEquals(toString(createPhrase("riff10", 1000)), toString(lib.get("riff10").get()));
+            Phrase p = createPhrase("riff50", 50);
+            assertEquals("riff50", lib.findByHash(p.contentHash()).get().getName());
+            assertFalse(lib.get("riff3").isPresent());
+        }
+    }
+
+    @Test
+    public void testReturnedPhraseIsCopy() throws IOException {
+        try (PhraseLibrary lib = PhraseLibrary.open(path)) {
+            Phrase p = createPhrase("riff", 1);
+            lib.add(p);
+            p.setName("changed");
+            lib.get("riff").get().setName("changed");
+            assertEquals("riff", lib.get("riff").get().getName());
+        }
+    }
+
+    @Test
+    public void testTruncatedRecordIsIgnored() throws IOException {
+        try (PhraseLibrary lib = PhraseLibrary.open(path)) {
+            lib.add(createPhrase("a", 1));
+            lib.add(createPhrase("b", 2));
+        }
+        // 書き込みの途中で終了した場合を再現する
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+        try (PhraseLibrary lib = PhraseLibrary.open(path)) {
+            assertEquals(Arrays.asList("a"), lib.getNames());
+            lib.add(createPhrase("c", 3));
+        }
+        try (PhraseLibrary lib = PhraseLibrary.open(path)) {
+            assertEquals(Arrays.asList("a", "c"), lib.getNames());
+        }
+    }
+}
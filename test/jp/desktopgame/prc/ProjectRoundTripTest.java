@@ -0,0 +1,87 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ProjectWriterで書き出したファイルをProjectReaderでマップして読み込み、同じモデルに戻ることを確かめます.
+ *
+ * @author desktopgame
+ */
+public class ProjectRoundTripTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.dir = Files.createTempDirectory("prc");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Path p : Files.newDirectoryStream(dir)) {
+            Files.deleteIfExists(p);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        PackedPianoRollModel model = new PackedPianoRollModel(128, 32, 4, true);
+        TestModels.fill(model, 1, 5000);
+        Path path = dir.resolve("a.prc");
+        new ProjectWriter(TestModels.BEAT_WIDTH).write(model, path);
+        MappedPianoRollModel mapped = new ProjectReader(TestModels.BEAT_WIDTH).read(path);
+        assertEquals(TestModels.dump(model), TestModels.dump(mapped));
+    }
+
+    @Test
+    public void testEditAndWriteAgain() throws IOException {
+        PackedPianoRollModel model = new PackedPianoRollModel(128, 32, 4, true);
+        TestModels.fill(model, 2, 5000);
+        Path a = dir.resolve("a.prc");
+        Path b = dir.resolve("b.prc");
+        new ProjectWriter(TestModels.BEAT_WIDTH).write(model, a);
+        MappedPianoRollModel mapped = new ProjectReader(TestModels.BEAT_WIDTH).read(a);
+        // 変更したキーだけが復号され、他のキーのブロックはそのまま複製される
+        mapped.getKey(10).getMeasure(3).getBeat(1).generateNote(5, 1f);
+        model.getKey(10).getMeasure(3).getBeat(1).generateNote(5, 1f);
+        assertTrue(mapped.isKeyLoaded(10));
+        assertFalse(mapped.isKeyLoaded(11));
+        new ProjectWriter(TestModels.BEAT_WIDTH).write(mapped, b);
+        assertEquals(TestModels.dump(model), TestModels.dump(new ProjectReader(TestModels.BEAT_WIDTH).read(b)));
+    }
+
+    @Test
+    public void testCorruptHeader() throws IOException {
+        PackedPianoRollModel model = new PackedPianoRollModel(12, 4, 4);
+        TestModels.fill(model, 3, 100);
+        Path path = dir.resolve("a.prc");
+        new ProjectWriter(TestModels.BEAT_WIDTH).write(model, path);
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+        // キーの数を壊す
+        buf.putInt(8, -1);
+        try {
+            new ProjectReader(TestModels.BEAT_WIDTH).read(buf);
+            fail();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * テストで使うモデルを作成し、比較できる文字列に変換するクラスです.
+ *
+ * @author desktopgame
+ */
+public final class TestModels {
+
+    public static final int BEAT_WIDTH = 96;
+
+    private TestModels() {
+    }
+
+    /**
+     * モデルに決まった乱数でノートを追加します.
+     * <br>
+     * オフセットと長さは、MIDIのティックやプロジェクトファイルとの変換で誤差が出ない値だけを使います。<br>
+     *
+     * @param model
+     * @param seed
+     * @param count
+     */
+    public static void fill(PianoRollModel model, long seed, int count) {
+        Random r = new Random(seed);
+        int keyCount = model.getKeyCount();
+        int measureCount = model.getKey(0).getMeasureCount();
+        int beatCount = model.getKey(0).getMeasure(0).getBeatCount();
+        model.bulkLoad((editor) -> {
+            for (int i = 0; i < count; i++) {
+                Beat beat = model.getKey(r.nextInt(keyCount)).getMeasure(r.nextInt(measureCount)).getBeat(r.nextInt(beatCount));
+                editor.generateNote(beat, r.nextInt(BEAT_WIDTH), 0.25f * (1 + r.nextInt(8)));
+            }
+        });
+    }
+
+    /**
+     * モデルに決まった乱数で、同じキーの中で重ならないノートを追加します.
+     * <br>
+     * 同じ音の高さで重なるノートは、MIDIファイルではノートオンとノートオフの対応が一通りに決まらないので使いません。<br>
+     *
+     * @param model
+     * @param seed
+     * @param notesPerKey
+     */
+    public static void fillWithoutOverlap(PianoRollModel model, long seed, int notesPerKey) {
+        Random r = new Random(seed);
+        int measureCount = model.getKey(0).getMeasureCount();
+        int beatCount = model.getKey(0).getMeasure(0).getBeatCount();
+        int width = measureCount * beatCount * BEAT_WIDTH;
+        model.bulkLoad((editor) -> {
+            for (int k = 0; k < model.getKeyCount(); k += 1 + r.nextInt(4)) {
+                int x = 0;
+                for (int i = 0; i < notesPerKey; i++) {
+                    x += r.nextInt(BEAT_WIDTH);
+                    if (x >= width) {
+                        break;
+                    }
+                    float length = 0.25f * (1 + r.nextInt(8));
+                    int beatPos = x / BEAT_WIDTH;
+                    Beat beat = model.getKey(k).getMeasure(beatPos / beatCount).getBeat(beatPos % beatCount);
+                    editor.generateNote(beat, x % BEAT_WIDTH, length);
+                    x += (int) (length * BEAT_WIDTH);
+                }
+            }
+        });
+    }
+
+    /**
+     * キー/小節/拍の木を走査して、作成されている全てのノートを返します.
+     * <br>
+     * 索引やストアを使わずに数えるので、それらを使う実装と比べるために使用します。<br>
+     *
+     * @param model
+     * @return
+     */
+    public static List<Note> collectNotes(PianoRollModel model) {
+        List<Note> notes = new ArrayList<>();
+        for (int k = 0; k < model.getKeyCount(); k++) {
+            for (Measure measure : model.getKey(k).copyMaterializedMeasureList()) {
+                for (Beat beat : measure.copyMaterializedBeatList()) {
+                    for (int i = 0; i < beat.getNoteCount(); i++) {
+                        notes.add(beat.getNote(i));
+                    }
+                }
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * モデルの構造と全てのノートを、ノートの順序に依存しない文字列に変換します.
+     *
+     * @param model
+     * @return
+     */
+    public static String dump(PianoRollModel model) {
+        StringBuilder sb = new StringBuilder();
+        Key key0 = model.getKey(0);
+        sb.append(model.getKeyCount()).append('/').append(key0.getMeasureCount()).append('/').append(key0.getMeasure(0).getBeatCount());
+        List<String> notes = new ArrayList<>();
+        for (Note note : collectNotes(model)) {
+            Beat beat = note.getBeat();
+            Measure measure = beat.getMeasure();
+            int k = measure.getKey().getIndex() - 1;
+            notes.add(k + "," + measure.getIndex() + "," + beat.getIndex() + "@" + note.getOffset() + "x" + note.getLength() + (note.isSelected() ? "s" : ""));
+        }
+        Collections.sort(notes);
+        for (String note : notes) {
+            sb.append(' ').append(note);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.PackedPianoRollModel;
+import jp.desktopgame.prc.PianoRollModel;
+import jp.desktopgame.prc.TestModels;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * BudgetUndoManagerで、構造の変更をはさんだ履歴や予算より大きいモデルの履歴を取り消してやり直せることを確かめます.
+ *
+ * @author desktopgame
+ */
+public class BudgetUndoManagerTest {
+
+    private static BudgetUndoManager install(PianoRollModel model, long budget) {
+        BudgetUndoManager um = new BudgetUndoManager(model, budget);
+        model.addUndoableEditListener((e) -> um.addEdit(e.getEdit()));
+        return um;
+    }
+
+    private static void edit(PianoRollModel model, Random r, int count) {
+        List<Note> notes = model.getAllNotes();
+        // 必ず違うオフセットにして、一回の呼び出しが一つの変更になるようにする
+        for (int i = 0; i < count; i++) {
+            Note note = notes.get(r.nextInt(notes.size()));
+            note.setOffset((note.getOffset() + 1 + r.nextInt(40)) % TestModels.BEAT_WIDTH);
+        }
+    }
+
+    @Test
+    public void testUndoRedoAcrossStructureChange() {
+        PackedPianoRollModel model = new PackedPianoRollModel(12, 8, 4);
+        BudgetUndoManager um = install(model, BudgetUndoManager.BYTE_BUDGET_DEFAULT);
+        TestModels.fill(model, 1, 200);
+        String start = TestModels.dump(model);
+        Random r = new Random(2);
+        edit(model, r, 50);
+        String beforeShrink = TestModels.dump(model);
+        // 失われるノートも一緒に戻る
+        model.shrinkMeasureCount(4);
+        model.extentBeatCount(6);
+        String afterStructure = TestModels.dump(model);
+        edit(model, r, 50);
+        String end = TestModels.dump(model);
+        for (int i = 0; i < 50; i++) {
+            um.undo();
+        }
+        assertEquals(afterStructure, TestModels.dump(model));
+        um.undo();
+        um.undo();
+        assertEquals(beforeShrink, TestModels.dump(model));
+        while (um.canUndo()) {
+            um.undo();
+        }
+        assertEquals(start, TestModels.dump(model));
+        while (um.canRedo()) {
+            um.redo();
+        }
+        assertEquals(end, TestModels.dump(model));
+    }
+
+    @Test
+    public void testCollapseAcrossStructureChange() {
+        long budget = 8 * 1024;
+        PackedPianoRollModel model = new PackedPianoRollModel(12, 8, 4);
+        BudgetUndoManager um = install(model, budget);
+        TestModels.fill(model, 3, 30);
+        Random r = new Random(4);
+        for (int i = 0; i < 20; i++) {
+            edit(model, r, 100);
+            if (i % 5 == 0) {
+                model.extentMeasureCount(model.getMeasureCount() + 1);
+            }
+        }
+        assertTrue(um.getUsedBytes() <= budget);
+        String end = TestModels.dump(model);
+        while (um.canUndo()) {
+            um.undo();
+        }
+        String oldest = TestModels.dump(model);
+        while (um.canRedo()) {
+            um.redo();
+        }
+        assertEquals(end, TestModels.dump(model));
+        while (um.canUndo()) {
+            um.undo();
+        }
+        assertEquals(oldest, TestModels.dump(model));
+    }
+
+    @Test
+    public void testBaseSnapshotLargerThanBudget() {
+        long budget = 16 * 1024;
+        PackedPianoRollModel model = new PackedPianoRollModel(24, 8, 4);
+        TestModels.fill(model, 5, 2000);
+        BudgetUndoManager um = install(model, budget);
+        // 起点のスナップショットだけで予算を超えても、変更の履歴は予算の範囲で残る
+        assertTrue(ModelSnapshot.capture(model).getByteSize() > budget);
+        int[] states = new int[1001];
+        states[0] = TestModels.dump(model).hashCode();
+        Random r = new Random(6);
+        for (int i = 1; i <= 1000; i++) {
+            edit(model, r, 1);
+            states[i] = TestModels.dump(model).hashCode();
+        }
+        int count = um.getEditCount();
+        assertTrue(um.getUsedBytes() <= budget);
+        assertTrue(count >= 256);
+        String end = TestModels.dump(model);
+        while (um.canUndo()) {
+            um.undo();
+        }
+        assertEquals(states[1000 - count], TestModels.dump(model).hashCode());
+        while (um.canRedo()) {
+            um.redo();
+        }
+        assertEquals(end, TestModels.dump(model));
+    }
+
+    @Test
+    public void testSnapshotOrderWithinBeat() {
+        DefaultPianoRollModel model = new DefaultPianoRollModel(4, 2, 2);
+        // 同じ拍の中で、負のオフセットや同じオフセットで長さだけが違うノートを作る
+        float[] lengths = {2f, 0.5f, 1f, 0.25f};
+        int[] offsets = {30, -10, 30, 0, 30, -10};
+        for (int k = 0; k < 4; k++) {
+            for (int i = 0; i < offsets.length; i++) {
+                model.getKey(k).getMeasure(1).getBeat(k % 2).generateNote(offsets[i], lengths[(i + k) % lengths.length]).setSelected(i % 2 == 0);
+            }
+        }
+        String before = TestModels.dump(model);
+        ModelSnapshot snapshot = ModelSnapshot.capture(model);
+        assertEquals(24, snapshot.getNoteCount());
+        List<Note> notes = model.getAllNotes();
+        List<Note> kept = new ArrayList<>();
+        for (int i = 0; i < notes.size(); i++) {
+            if (i % 3 == 0) {
+                notes.get(i).removeFromBeat();
+            } else {
+                kept.add(notes.get(i));
+            }
+        }
+        model.getKey(2).getMeasure(0).getBeat(1).generateNote(5, 1f);
+        snapshot.restore(model, null);
+        assertEquals(before, TestModels.dump(model));
+        // 位置と長さが一致するノートは作り直さずにそのまま残る
+        assertTrue(model.getAllNotes().containsAll(kept));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * PianoRollComponent
+ *
+ * Copyright (c) 2020 desktopgame
+ *
+ * This software is released under the MIT License.
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.desktopgame.prc.undo;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.event.UndoableEditListener;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import jp.desktopgame.prc.DefaultPianoRollModel;
+import jp.desktopgame.prc.Note;
+import jp.desktopgame.prc.PackedPianoRollModel;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * UndoJournalが変更をまとめ、最大容量を超えた記録を上書きし、リスナーが無ければ記録しないことを確かめます.
+ *
+ * @author desktopgame
+ */
+public class UndoJournalTest {
+
+    private static DefaultPianoRollModel[] models() {
+        return new DefaultPianoRollModel[]{new DefaultPianoRollModel(8, 4, 4), new PackedPianoRollModel(8, 4, 4)};
+    }
+
+    private static List<Note> generate(DefaultPianoRollModel model, int count) {
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            notes.add(model.getKey(i % 8).getMeasure((i / 8) % 4).getBeat((i / 32) % 4).generateNote(i / 128, 1f));
+        }
+        return notes;
+    }
+
+    @Test
+    public void testMergeInCompoundEdit() {
+        for (DefaultPianoRollModel model : models()) {
+            Note note = generate(model, 1).get(0);
+            List<UndoableEdit> edits = new ArrayList<>();
+            model.addUndoableEditListener((e) -> edits.add(e.getEdit()));
+            UndoJournal journal = model.getUndoJournal();
+            int before = journal.size();
+            model.beginCompoundUndoableEdit();
+            for (int i = 1; i <= 10; i++) {
+                note.setOffset(i * 4);
+                note.setLength(1f + i * 0.25f);
+                note.setSelected(i % 2 == 0);
+            }
+            model.endCompoundUndoableEdit();
+            // ドラッグのように同じノートを何度変更しても、変更の種類ごとに一つの記録にまとめられる
+            assertEquals(before + 3, journal.size());
+            assertEquals(1, edits.size());
+            UndoJournalEdit edit = (UndoJournalEdit) edits.get(0);
+            assertEquals(3, edit.getRecordCount());
+            edit.undo();
+            assertEquals(0, note.getOffset());
+            assertEquals(Float.valueOf(1f), Float.valueOf(note.getLength()));
+            assertFalse(note.isSelected());
+            edit.redo();
+            assertEquals(40, note.getOffset());
+            assertEquals(Float.valueOf(3.5f), Float.valueOf(note.getLength()));
+            assertTrue(note.isSelected());
+        }
+    }
+
+    @Test
+    public void testRemoveStopsMerging() {
+        for (DefaultPianoRollModel model : models()) {
+            Note note = generate(model, 1).get(0);
+            List<UndoableEdit> edits = new ArrayList<>();
+            model.addUndoableEditListener((e) -> edits.add(e.getEdit()));
+            model.beginCompoundUndoableEdit();
+            note.setOffset(10);
+            note.removeFromBeat();
+            model.getKey(0).getMeasure(0).getBeat(0).restoreNote(note);
+            note.setOffset(20);
+            model.endCompoundUndoableEdit();
+            // 削除と生成をまたいだ変更はまとめずに記録する
+            assertEquals(4, ((UndoJournalEdit) edits.get(0)).getRecordCount());
+            edits.get(0).undo();
+            assertEquals(0, note.getOffset());
+            assertEquals(1, note.getBeat().getNoteCount());
+        }
+    }
+
+    @Test
+    public void testMaxCapacityOverwritesOldestRecords() {
+        for (DefaultPianoRollModel model : models()) {
+            List<Note> notes = generate(model, 300);
+            List<UndoableEdit> edits = new ArrayList<>();
+            model.addUndoableEditListener((e) -> edits.add(e.getEdit()));
+            UndoJournal journal = model.getUndoJournal();
+            journal.setMaxCapacity(16);
+            int capacity = journal.getCapacity();
+            for (Note note : notes) {
+                note.setOffset(note.getOffset() + 1);
+            }
+            // 最大容量より大きく確保されていれば、それ以上は広げずに古い記録から上書きする
+            assertEquals(capacity, journal.getCapacity());
+            assertEquals(capacity, journal.size());
+            int lost = notes.size() - capacity;
+            for (int i = 0; i < notes.size(); i++) {
+                assertEquals(i >= lost, edits.get(i).canUndo());
+            }
+            for (int i = notes.size() - 1; i >= lost; i--) {
+                edits.get(i).undo();
+            }
+            for (int i = 0; i < notes.size(); i++) {
+                assertEquals(i / 128 + (i < lost ? 1 : 0), notes.get(i).getOffset());
+            }
+            for (UndoableEdit edit : edits) {
+                edit.die();
+            }
+            assertEquals(0, journal.size());
+        }
+    }
+
+    @Test
+    public void testUncommittedRecordsAreNotOverwritten() {
+        for (DefaultPianoRollModel model : models()) {
+            List<Note> notes = generate(model, 300);
+            UndoManager um = new UndoManager();
+            model.addUndoableEditListener(um);
+            UndoJournal journal = model.getUndoJournal();
+            journal.setMaxCapacity(16);
+            model.beginCompoundUndoableEdit();
+            for (Note note : notes) {
+                note.setOffset(note.getOffset() + 1);
+            }
+            model.endCompoundUndoableEdit();
+            assertTrue(journal.getCapacity() >= notes.size());
+            assertTrue(um.canUndo());
+            um.undo();
+            for (int i = 0; i < notes.size(); i++) {
+                assertEquals(i / 128, notes.get(i).getOffset());
+            }
+        }
+    }
+
+    @Test
+    public void testNoRecordingWithoutListeners() {
+        for (DefaultPianoRollModel model : models()) {
+            List<Note> notes = generate(model, 20);
+            UndoJournal journal = model.getUndoJournal();
+            for (Note note : notes) {
+                note.setOffset(5);
+            }
+            model.resizeMeasureCount(2);
+            assertEquals(0, journal.size());
+            List<UndoableEdit> edits = new ArrayList<>();
+            UndoableEditListener listener = (e) -> edits.add(e.getEdit());
+            model.addUndoableEditListener(listener);
+            notes.get(0).setOffset(6);
+            assertEquals(1, journal.size());
+            // まとめている途中でリスナーが取り除かれた場合は、記録はすぐに解放される
+            model.beginCompoundUndoableEdit();
+            notes.get(1).setOffset(7);
+            model.removeUndoableEditListener(listener);
+            notes.get(2).setOffset(8);
+            model.endCompoundUndoableEdit();
+            assertEquals(1, edits.size());
+            edits.get(0).die();
+            assertEquals(0, journal.size());
+        }
+    }
+}